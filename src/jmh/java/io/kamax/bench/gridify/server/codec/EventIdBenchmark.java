@@ -0,0 +1,194 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.bench.gridify.server.codec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.gridify.server.codec.GridHash;
+import io.kamax.gridify.server.network.matrix.core.event.BareMessageEvent;
+import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgoV6;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Event ID computation from many threads at once, as done when receiving federation transactions
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventIdBenchmark {
+
+    // Canonical encoder as it was before streaming: sorted entries written through a JsonWriter into a String
+    private static class PreviousCanonicalJson {
+
+        private static class JsonWriterUnchecked extends JsonWriter {
+
+            JsonWriterUnchecked(Writer out) {
+                super(out);
+            }
+
+            @Override
+            public JsonWriter name(String value) {
+                try {
+                    return super.name(value);
+                } catch (IOException e) {
+                    throw new JsonIOException(e);
+                }
+            }
+
+        }
+
+        private static void encode(JsonObject el, JsonWriterUnchecked writer) throws IOException {
+            writer.beginObject();
+            el.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEachOrdered(entry -> {
+                writer.name(entry.getKey());
+                encodeElement(entry.getValue(), writer);
+            });
+            writer.endObject();
+        }
+
+        private static void encodeArray(JsonArray array, JsonWriterUnchecked writer) throws IOException {
+            writer.beginArray();
+            array.forEach(el -> encodeElement(el, writer));
+            writer.endArray();
+        }
+
+        private static void encodeElement(JsonElement el, JsonWriterUnchecked writer) {
+            try {
+                if (el.isJsonObject()) encode(el.getAsJsonObject(), writer);
+                else if (el.isJsonPrimitive()) writer.jsonValue(el.toString());
+                else if (el.isJsonArray()) encodeArray(el.getAsJsonArray(), writer);
+                else writer.nullValue();
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+        static String encode(JsonObject obj) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                JsonWriterUnchecked writer = new JsonWriterUnchecked(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                writer.setIndent("");
+                writer.setHtmlSafe(false);
+                writer.setLenient(false);
+
+                encode(obj, writer);
+                writer.close();
+                return out.toString(StandardCharsets.UTF_8.name());
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+    }
+
+    private RoomAlgoV6 algo;
+    private JsonObject event;
+
+    @Setup
+    public void setup() {
+        algo = new RoomAlgoV6();
+
+        event = BareMessageEvent.makeText("Hello world! This is a typical message with a few unicode chars: \u00e9\u65e5\u672c\u8a9e").getJson();
+        event.addProperty("room_id", "!abcdefghijklmnop:example.org");
+        event.addProperty("sender", "@alice:example.org");
+        event.addProperty("origin", "example.org");
+        event.addProperty("origin_server_ts", 1600000000000L);
+        event.addProperty("depth", 12345);
+        JsonArray prevEvents = new JsonArray();
+        prevEvents.add("$Rqnc-F-dvnEYJTyHq_iKxU2bZ1CI92-kuZq3a5lr5Zg");
+        event.add("prev_events", prevEvents);
+        JsonArray authEvents = new JsonArray();
+        authEvents.add("$oJBWbRa0ILZfGaqUBRP8QVd5Bq8TV6RXEs7B9MQw7FU");
+        authEvents.add("$hqWZ3pB8A6eNKP3hPEPIGtqV2ycPzh3fm3e6D8LdExc");
+        authEvents.add("$9G3_KnOjwsVWXXH1x8eIzGJgQm1V2oOVeQ4xG4UPG8Q");
+        event.add("auth_events", authEvents);
+        event.add("hashes", GsonUtil.makeObj("sha256", "5jM4wQpv6lnBo7CLIghJuHdW+s2CMBJPUOGOC89ncos"));
+        event.add("signatures", GsonUtil.makeObj("example.org",
+                GsonUtil.makeObj("ed25519:1", "KxwGjPSDEtvnFgU00fwFz+l6d2pJM6XBIaMEn81SXPTRl16AqLAYqfIReFGZlHi5KLjAWbOoMszkwsQma+lYAg")));
+    }
+
+    // Previous pipeline: full canonical String from the previous encoder, then re-encoded into UTF-8 bytes before hashing
+    private String viaString() {
+        return GridHash.get().hashFromUtf8(PreviousCanonicalJson.encode(event));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String viaString1() {
+        return viaString();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String viaString4() {
+        return viaString();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String viaString16() {
+        return viaString();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String viaString64() {
+        return viaString();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String eventId1() {
+        return algo.getEventId(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String eventId4() {
+        return algo.getEventId(event);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String eventId16() {
+        return algo.getEventId(event);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String eventId64() {
+        return algo.getEventId(event);
+    }
+
+}
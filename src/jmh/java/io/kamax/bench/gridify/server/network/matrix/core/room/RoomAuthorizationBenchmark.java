@@ -0,0 +1,127 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.bench.gridify.server.network.matrix.core.room;
+
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
+import io.kamax.gridify.server.network.matrix.core.event.*;
+import io.kamax.gridify.server.network.matrix.core.room.RoomJoinRule;
+import io.kamax.gridify.server.network.matrix.core.room.RoomState;
+import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgoV6;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Authorizes events against a room state, either from their JSON document, parsed on each call, or from the channel
+// event which keeps its parsed form. State events keep theirs in both cases.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomAuthorizationBenchmark {
+
+    private static final String domain = "example.org";
+
+    private static ChannelEvent make(long lid, BareEvent<?> bare) {
+        bare.setOrigin(domain);
+        bare.setDepth(lid);
+        bare.setPreviousEvents(Collections.singletonList("$" + (lid - 1)));
+        ChannelEvent ev = ChannelEvent.from(1L, "$" + lid, bare.getJson());
+        ev.setLid(lid);
+        ev.getMeta().setAllowed(true);
+        return ev;
+    }
+
+    private static String userId(int i) {
+        return "@user" + i + ":" + domain;
+    }
+
+    @Param({"1000", "50000"})
+    private int members;
+
+    private RoomAlgoV6 algo;
+    private RoomState state;
+    private ChannelEvent message;
+    private ChannelEvent join;
+
+    @Setup
+    public void setup() {
+        algo = new RoomAlgoV6();
+        String creator = userId(0);
+        long lid = 1;
+
+        List<ChannelEvent> events = new ArrayList<>();
+        BareCreateEvent create = BareCreateEvent.withCreator(creator);
+        create.setSender(creator);
+        events.add(make(lid++, create));
+
+        BarePowerEvent powers = algo.getDefaultPowersEvent(creator);
+        powers.setSender(creator);
+        events.add(make(lid++, powers));
+
+        BareJoinRulesEvent joinRules = new BareJoinRulesEvent();
+        joinRules.setSender(creator);
+        joinRules.getContent().setRule(RoomJoinRule.Public.getId());
+        events.add(make(lid++, joinRules));
+
+        for (int i = 0; i < members; i++) {
+            events.add(make(lid++, BareMemberEvent.join(userId(i))));
+        }
+        state = new RoomState(1L, true, true, true, events);
+
+        BareGenericEvent msg = new BareGenericEvent();
+        msg.setType("m.room.message");
+        msg.setSender(userId(members / 2));
+        msg.setContent(GsonUtil.makeObj("body", "Hello"));
+        message = make(lid++, msg);
+
+        join = make(lid, BareMemberEvent.join("@new:" + domain));
+    }
+
+    @Benchmark
+    public ChannelEventAuthorization authorizeMessageDoc() {
+        return algo.authorize(state, message.getId(), message.getData());
+    }
+
+    @Benchmark
+    public ChannelEventAuthorization authorizeMessage() {
+        return algo.authorize(state, message);
+    }
+
+    @Benchmark
+    public ChannelEventAuthorization authorizeJoinDoc() {
+        return algo.authorize(state, join.getId(), join.getData());
+    }
+
+    @Benchmark
+    public ChannelEventAuthorization authorizeJoin() {
+        return algo.authorize(state, join);
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.bench.gridify.server.network.matrix.core.room;
+
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.network.matrix.core.event.BareMemberEvent;
+import io.kamax.gridify.server.network.matrix.core.room.RoomState;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Compares applying a state event on the previous copy-on-write HashMap state against the persistent RoomState
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomStateBenchmark {
+
+    private static ChannelEvent makeMember(long lid, String userId) {
+        JsonObject doc = BareMemberEvent.join(userId).getJson();
+        ChannelEvent ev = ChannelEvent.from(1L, "$" + lid, doc);
+        ev.setLid(lid);
+        ev.getMeta().setAllowed(true);
+        return ev;
+    }
+
+    @Param({"10", "1000", "100000"})
+    private int size;
+
+    private Map<String, ChannelEvent> hashMapState;
+    private RoomState roomState;
+    private ChannelEvent newEvent;
+    private String newEventKey;
+
+    @Setup
+    public void setup() {
+        List<ChannelEvent> events = new ArrayList<>();
+        hashMapState = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String userId = "@user" + i + ":example.org";
+            ChannelEvent ev = makeMember(i + 1, userId);
+            events.add(ev);
+            hashMapState.put("m.room.member" + userId, ev);
+        }
+        roomState = new RoomState(1L, true, true, true, events);
+
+        String userId = "@user" + (size / 2) + ":example.org";
+        newEvent = makeMember(size + 1, userId);
+        newEventKey = "m.room.member" + userId;
+    }
+
+    @Benchmark
+    public Map<String, ChannelEvent> applyOnHashMapCopy() {
+        Map<String, ChannelEvent> state = new HashMap<>(hashMapState);
+        state.put(newEventKey, newEvent);
+        return state;
+    }
+
+    @Benchmark
+    public RoomState applyOnRoomState() {
+        return roomState.apply(newEvent);
+    }
+
+    @Benchmark
+    public Map<String, ChannelEvent> copyHashMap() {
+        return new HashMap<>(hashMapState);
+    }
+
+    @Benchmark
+    public RoomState copyRoomState() {
+        return new RoomState(2L, roomState);
+    }
+
+}
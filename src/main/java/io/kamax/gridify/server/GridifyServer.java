@@ -32,6 +32,7 @@ import io.kamax.gridify.server.core.identity.IdentityManager;
 import io.kamax.gridify.server.core.identity.User;
 import io.kamax.gridify.server.core.signal.SignalBus;
 import io.kamax.gridify.server.core.store.DataStore;
+import io.kamax.gridify.server.core.store.TransactionCache;
 import io.kamax.gridify.server.network.grid.core.GridCore;
 import io.kamax.gridify.server.network.matrix.core.MatrixCore;
 
@@ -57,6 +58,8 @@ public interface GridifyServer {
 
     DataStore getStore();
 
+    TransactionCache getTransactions();
+
     Cryptopher getCrypto();
 
     IdentityManager getIdentity();
@@ -24,77 +24,182 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
-import com.google.gson.stream.JsonWriter;
+import com.google.gson.JsonPrimitive;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.util.Arrays;
 
 public class CanonicalJson {
 
-    // Needed to avoid silly try/catch block in various places
-    // We only use ByteArray streams, so IOException will not happen (unless irrecoverable situation like OOM)
-    private static class JsonWriterUnchecked extends JsonWriter {
+    // Writes UTF-8 bytes directly into a reusable buffer, without building any intermediate String.
+    // Escaping follows what Gson's JsonWriter does without HTML safety, so the output is byte-for-byte the same.
+    private static class Utf8Encoder {
 
-        public JsonWriterUnchecked(Writer out) {
-            super(out);
+        private static final byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final byte[] buffer = new byte[8192];
+        private int pos;
+        private OutputStream out;
+
+        private void write(int b) throws IOException {
+            if (pos == buffer.length) {
+                flush();
+            }
+            buffer[pos++] = (byte) b;
         }
 
-        @Override
-        public JsonWriter name(String value) {
-            try {
-                return super.name(value);
-            } catch (IOException e) {
-                throw new JsonIOException(e);
+        private void writeAscii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
             }
         }
-    }
 
-    private static void encode(JsonObject el, JsonWriterUnchecked writer) throws IOException {
-        writer.beginObject();
-        el.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEachOrdered(entry -> {
-            writer.name(entry.getKey());
-            encodeCanonicalElement(entry.getValue(), writer);
-        });
-        writer.endObject();
-    }
+        private void writeEscaped(char c) throws IOException {
+            write('\\');
+            write('u');
+            write(hex[(c >> 12) & 0xF]);
+            write(hex[(c >> 8) & 0xF]);
+            write(hex[(c >> 4) & 0xF]);
+            write(hex[c & 0xF]);
+        }
 
-    private static void encodeCanonicalArray(JsonArray array, JsonWriterUnchecked writer) throws IOException {
-        writer.beginArray();
-        array.forEach(el -> encodeCanonicalElement(el, writer));
-        writer.endArray();
-    }
+        private void writeString(String s) throws IOException {
+            write('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        write('\\');
+                        write(c);
+                    } else if (c >= 0x20) {
+                        write(c);
+                    } else if (c == '\t') {
+                        writeAscii("\\t");
+                    } else if (c == '\b') {
+                        writeAscii("\\b");
+                    } else if (c == '\n') {
+                        writeAscii("\\n");
+                    } else if (c == '\r') {
+                        writeAscii("\\r");
+                    } else if (c == '\f') {
+                        writeAscii("\\f");
+                    } else {
+                        writeEscaped(c);
+                    }
+                } else if (c < 0x800) {
+                    write(0xC0 | (c >> 6));
+                    write(0x80 | (c & 0x3F));
+                } else if (c == '\u2028' || c == '\u2029') {
+                    writeEscaped(c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    write(0xF0 | (cp >> 18));
+                    write(0x80 | ((cp >> 12) & 0x3F));
+                    write(0x80 | ((cp >> 6) & 0x3F));
+                    write(0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, encoded like the JDK UTF-8 encoder does
+                    write('?');
+                } else {
+                    write(0xE0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3F));
+                    write(0x80 | (c & 0x3F));
+                }
+            }
+            write('"');
+        }
 
-    private static void encodeCanonicalElement(JsonElement el, JsonWriterUnchecked writer) {
-        try {
-            if (el.isJsonObject()) encode(el.getAsJsonObject(), writer);
-            else if (el.isJsonPrimitive()) writer.jsonValue(el.toString());
-            else if (el.isJsonArray()) encodeCanonicalArray(el.getAsJsonArray(), writer);
-            else if (el.isJsonNull()) writer.nullValue();
+        private void writePrimitive(JsonPrimitive p) throws IOException {
+            if (p.isString()) {
+                writeString(p.getAsString());
+            } else if (p.isBoolean()) {
+                writeAscii(p.getAsBoolean() ? "true" : "false");
+            } else {
+                writeAscii(p.getAsNumber().toString());
+            }
+        }
+
+        private void writeObject(JsonObject obj) throws IOException {
+            String[] keys = obj.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+
+            write('{');
+            for (int i = 0; i < keys.length; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeString(keys[i]);
+                write(':');
+                writeElement(obj.get(keys[i]));
+            }
+            write('}');
+        }
+
+        private void writeArray(JsonArray array) throws IOException {
+            write('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeElement(array.get(i));
+            }
+            write(']');
+        }
+
+        private void writeElement(JsonElement el) throws IOException {
+            if (el.isJsonObject()) writeObject(el.getAsJsonObject());
+            else if (el.isJsonPrimitive()) writePrimitive(el.getAsJsonPrimitive());
+            else if (el.isJsonArray()) writeArray(el.getAsJsonArray());
+            else if (el.isJsonNull()) writeAscii("null");
             else
                 throw new RuntimeException("Unexpected JSON type in GridJson canonical methods, this is a bug, report!");
-        } catch (IOException e) {
-            throw new JsonIOException(e);
         }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+
+        void encode(JsonObject obj, OutputStream out) throws IOException {
+            this.out = out;
+            this.pos = 0;
+            try {
+                writeObject(obj);
+                flush();
+            } finally {
+                this.out = null;
+            }
+        }
+
     }
 
-    public static String encode(JsonObject obj) {
+    private static final ThreadLocal<Utf8Encoder> encoders = ThreadLocal.withInitial(Utf8Encoder::new);
+
+    /**
+     * Write the canonical form of the object as UTF-8 bytes to the given stream.
+     *
+     * @param obj The JSON object to encode
+     * @param out Where to write the bytes. It is not flushed nor closed.
+     */
+    public static void encode(JsonObject obj, OutputStream out) {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            JsonWriterUnchecked writer = new JsonWriterUnchecked(new OutputStreamWriter(out, StandardCharsets.UTF_8));
-            writer.setIndent("");
-            writer.setHtmlSafe(false);
-            writer.setLenient(false);
-
-            encode(obj, writer);
-            writer.close();
-            return out.toString(StandardCharsets.UTF_8.name());
+            encoders.get().encode(obj, out);
         } catch (IOException e) {
             throw new JsonIOException(e);
         }
     }
 
+    public static byte[] encodeBytes(JsonObject obj) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(obj, out);
+        return out.toByteArray();
+    }
+
+    public static String encode(JsonObject obj) {
+        return new String(encodeBytes(obj), StandardCharsets.UTF_8);
+    }
+
 }
@@ -20,46 +20,87 @@
 
 package io.kamax.gridify.server.codec;
 
+import com.google.gson.JsonObject;
+
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.Objects;
 
+/**
+ * Thread-safe: each thread gets its own digest, so a single instance can be shared freely.
+ */
 public class GridHash {
 
-    private static GridHash instance;
+    // Feeds bytes straight into a digest, so canonical JSON never needs to be materialized
+    private static class DigestOutputStream extends OutputStream {
 
-    public static GridHash get() {
-        synchronized (GridHash.class) {
-            if (Objects.isNull(instance)) {
-                instance = new GridHash();
-            }
+        private final MessageDigest md;
+
+        DigestOutputStream(MessageDigest md) {
+            this.md = md;
+        }
+
+        @Override
+        public void write(int b) {
+            md.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            md.update(b, off, len);
         }
 
+    }
+
+    private static final GridHash instance = new GridHash();
+
+    public static GridHash get() {
         return instance;
     }
 
-    private MessageDigest md;
+    private final ThreadLocal<DigestOutputStream> digests;
 
     private GridHash(String digest) {
         try {
-            md = MessageDigest.getInstance(digest);
+            MessageDigest.getInstance(digest);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalArgumentException(e);
         }
+
+        digests = ThreadLocal.withInitial(() -> {
+            try {
+                return new DigestOutputStream(MessageDigest.getInstance(digest));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
     }
 
     public GridHash() {
         this("SHA-256");
     }
 
+    private byte[] digest(byte[] data) {
+        MessageDigest md = digests.get().md;
+        md.reset();
+        return md.digest(data);
+    }
+
+    private byte[] digest(JsonObject obj) {
+        DigestOutputStream out = digests.get();
+        out.md.reset();
+        CanonicalJson.encode(obj, out);
+        return out.md.digest();
+    }
+
     public String hash(byte[] data) {
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest(data));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest(data));
     }
 
     public String hashRaw(byte[] data) {
-        return Base64.getEncoder().withoutPadding().encodeToString(md.digest(data));
+        return Base64.getEncoder().withoutPadding().encodeToString(digest(data));
     }
 
     public String hashFromUtf8(String data) {
@@ -70,4 +111,21 @@ public class GridHash {
         return hashRaw(data.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Hash the canonical JSON form of the object, without building it as a String first.
+     *
+     * @param obj The object to hash
+     * @return The URL-safe unpadded Base64 hash, as {@link #hashFromUtf8(String)} would on the canonical form
+     */
+    public String hashCanonical(JsonObject obj) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest(obj));
+    }
+
+    /**
+     * Same as {@link #hashCanonical(JsonObject)} but using standard unpadded Base64, like {@link #hashRaw(byte[])}.
+     */
+    public String hashRawCanonical(JsonObject obj) {
+        return Base64.getEncoder().withoutPadding().encodeToString(digest(obj));
+    }
+
 }
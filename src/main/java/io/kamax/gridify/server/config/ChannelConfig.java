@@ -38,7 +38,23 @@ public class ChannelConfig {
         }
     }
 
+    public static class Cache {
+
+        // Total amount of state events across the channels kept in memory
+        private long maxWeight = 1_000_000;
+
+        public long getMaxWeight() {
+            return maxWeight;
+        }
+
+        public void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+    }
+
     private Creation creation = new Creation();
+    private Cache cache = new Cache();
 
     public Creation getCreation() {
         return creation;
@@ -48,4 +64,12 @@ public class ChannelConfig {
         this.creation = creation;
     }
 
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
 }
@@ -0,0 +1,221 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.config;
+
+public class FederationConfig {
+
+    public static class Client {
+
+        // Across all remote servers
+        private int maxConnections = 200;
+        // For a single remote server
+        private int maxConnectionsPerServer = 20;
+        // All timeouts are in milliseconds
+        private int connectTimeout = 30 * 1000;
+        private int connectionRequestTimeout = 60 * 1000;
+        private int socketTimeout = 5 * 60 * 1000;
+        // Pooled connections idle for longer are closed
+        private long idleTimeout = 60 * 1000;
+        // Used when the remote server does not say how long to keep the connection alive, and as upper bound otherwise
+        private long keepAlive = 30 * 1000;
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public int getMaxConnectionsPerServer() {
+            return maxConnectionsPerServer;
+        }
+
+        public void setMaxConnectionsPerServer(int maxConnectionsPerServer) {
+            this.maxConnectionsPerServer = maxConnectionsPerServer;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public int getConnectionRequestTimeout() {
+            return connectionRequestTimeout;
+        }
+
+        public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout;
+        }
+
+        public int getSocketTimeout() {
+            return socketTimeout;
+        }
+
+        public void setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public long getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(long keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+    }
+
+    public static class Servers {
+
+        // Amount of remote servers kept in memory
+        private long maxSize = 1000;
+        // In seconds, since last use
+        private long expireAfter = 3600;
+        // In seconds, how long a discovered endpoint is used before discovering it again
+        private long endpointTtl = 3600;
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public long getExpireAfter() {
+            return expireAfter;
+        }
+
+        public void setExpireAfter(long expireAfter) {
+            this.expireAfter = expireAfter;
+        }
+
+        public long getEndpointTtl() {
+            return endpointTtl;
+        }
+
+        public void setEndpointTtl(long endpointTtl) {
+            this.endpointTtl = endpointTtl;
+        }
+
+    }
+
+    public static class Outbound {
+
+        // Remote servers sent to at the same time
+        private int threads = 50;
+        // Events waiting to be sent to a single remote server, once full they are read back from the store instead
+        private int queueSize = 10_000;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+    }
+
+    public static class Inbound {
+
+        // Rooms of received transactions offered at the same time, across transactions, 0 for four per CPU
+        private int rooms = 0;
+        // In milliseconds, how long a transaction waits for a room to be offered before failing, to be retried later
+        private long waitTimeout = 30 * 1000;
+
+        public int getRooms() {
+            return rooms;
+        }
+
+        public void setRooms(int rooms) {
+            this.rooms = rooms;
+        }
+
+        public long getWaitTimeout() {
+            return waitTimeout;
+        }
+
+        public void setWaitTimeout(long waitTimeout) {
+            this.waitTimeout = waitTimeout;
+        }
+
+    }
+
+    private Client client = new Client();
+    private Servers servers = new Servers();
+    private Inbound inbound = new Inbound();
+    private Outbound outbound = new Outbound();
+
+    public Client getClient() {
+        return client;
+    }
+
+    public void setClient(Client client) {
+        this.client = client;
+    }
+
+    public Servers getServers() {
+        return servers;
+    }
+
+    public void setServers(Servers servers) {
+        this.servers = servers;
+    }
+
+    public Inbound getInbound() {
+        return inbound;
+    }
+
+    public void setInbound(Inbound inbound) {
+        this.inbound = inbound;
+    }
+
+    public Outbound getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(Outbound outbound) {
+        this.outbound = outbound;
+    }
+
+}
@@ -39,6 +39,8 @@ public class GridifyConfig {
         cfg.getStorage().setData(uuid);
         cfg.getIdentity().getStores().put("memory", MemoryStore.getMinimalConfig(uuid));
         cfg.getAuth().addFlow().addStage("m.login.password");
+        // So the effects of signals can be checked as soon as they are published
+        cfg.getSignal().setAsync(false);
 
         return cfg;
     }
@@ -106,6 +108,8 @@ public class GridifyConfig {
         private boolean tls;
         private String key;
         private String cert;
+        // In bytes, requests with a larger body are refused
+        private long maxBodySize = 10 * 1024 * 1024;
 
         public List<NetworkListener> getNetwork() {
             return network;
@@ -163,6 +167,14 @@ public class GridifyConfig {
             this.cert = cert;
         }
 
+        public long getMaxBodySize() {
+            return maxBodySize;
+        }
+
+        public void setMaxBodySize(long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+        }
+
     }
 
     private List<Listener> listeners = new ArrayList<>();
@@ -172,6 +184,8 @@ public class GridifyConfig {
     private IdentityConfig identity = new IdentityConfig();
     private UIAuthConfig auth = new UIAuthConfig();
     private RoomConfig room = new RoomConfig();
+    private FederationConfig federation = new FederationConfig();
+    private SignalConfig signal = new SignalConfig();
 
     public List<Listener> getListeners() {
         return listeners;
@@ -229,4 +243,20 @@ public class GridifyConfig {
         this.room = room;
     }
 
+    public FederationConfig getFederation() {
+        return federation;
+    }
+
+    public void setFederation(FederationConfig federation) {
+        this.federation = federation;
+    }
+
+    public SignalConfig getSignal() {
+        return signal;
+    }
+
+    public void setSignal(SignalConfig signal) {
+        this.signal = signal;
+    }
+
 }
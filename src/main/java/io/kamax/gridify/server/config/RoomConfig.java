@@ -36,7 +36,23 @@ public class RoomConfig {
         }
     }
 
+    public static class Cache {
+
+        // Total amount of state events across the rooms kept in memory
+        private long maxWeight = 1_000_000;
+
+        public long getMaxWeight() {
+            return maxWeight;
+        }
+
+        public void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+    }
+
     private Creation creation = new Creation();
+    private Cache cache = new Cache();
 
     public Creation getCreation() {
         return creation;
@@ -46,4 +62,12 @@ public class RoomConfig {
         this.creation = creation;
     }
 
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
 }
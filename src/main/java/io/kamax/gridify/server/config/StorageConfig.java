@@ -27,6 +27,19 @@ public class StorageConfig {
     public static class Pool {
 
         private int retryAttempts = 30;
+        private int minSize = 1;
+        private int maxSize = 50;
+        private int acquireIncrement = 2;
+        // How long to wait for a connection, in milliseconds, 0 to wait forever
+        private long checkoutTimeout = 30_000;
+        // After how long a connection is replaced, in seconds, 0 to keep it forever
+        private long maxConnectionAge = 3600;
+        // After how long an unused connection above the minimum size is closed, in seconds, 0 to keep it forever
+        private long maxIdleTime = 600;
+        // Amount of prepared statements cached on each connection, 0 to disable
+        private int maxStatementsPerConnection = 100;
+        // Prepare cached statements on the server so their SQL is only parsed and planned once
+        private boolean serverPreparedStatements = true;
 
         public int getRetryAttempts() {
             return retryAttempts;
@@ -36,6 +49,70 @@ public class StorageConfig {
             this.retryAttempts = retryAttempts;
         }
 
+        public int getMinSize() {
+            return minSize;
+        }
+
+        public void setMinSize(int minSize) {
+            this.minSize = minSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public int getAcquireIncrement() {
+            return acquireIncrement;
+        }
+
+        public void setAcquireIncrement(int acquireIncrement) {
+            this.acquireIncrement = acquireIncrement;
+        }
+
+        public long getCheckoutTimeout() {
+            return checkoutTimeout;
+        }
+
+        public void setCheckoutTimeout(long checkoutTimeout) {
+            this.checkoutTimeout = checkoutTimeout;
+        }
+
+        public long getMaxConnectionAge() {
+            return maxConnectionAge;
+        }
+
+        public void setMaxConnectionAge(long maxConnectionAge) {
+            this.maxConnectionAge = maxConnectionAge;
+        }
+
+        public long getMaxIdleTime() {
+            return maxIdleTime;
+        }
+
+        public void setMaxIdleTime(long maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+        }
+
+        public int getMaxStatementsPerConnection() {
+            return maxStatementsPerConnection;
+        }
+
+        public void setMaxStatementsPerConnection(int maxStatementsPerConnection) {
+            this.maxStatementsPerConnection = maxStatementsPerConnection;
+        }
+
+        public boolean isServerPreparedStatements() {
+            return serverPreparedStatements;
+        }
+
+        public void setServerPreparedStatements(boolean serverPreparedStatements) {
+            this.serverPreparedStatements = serverPreparedStatements;
+        }
+
     }
 
     public static class Database {
@@ -93,8 +170,50 @@ public class StorageConfig {
 
     }
 
+    public static class Cache {
+
+        // Amount of events kept in memory, 0 to disable
+        private long events = 100_000;
+
+        public long getEvents() {
+            return events;
+        }
+
+        public void setEvents(long events) {
+            this.events = events;
+        }
+
+    }
+
+    public static class Transactions {
+
+        // Amount of transaction results kept in memory, in front of the database
+        private long cacheSize = 10_000;
+        // How long transaction results are kept in the database, in seconds
+        private long retention = 24 * 60 * 60;
+
+        public long getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public long getRetention() {
+            return retention;
+        }
+
+        public void setRetention(long retention) {
+            this.retention = retention;
+        }
+
+    }
+
     private Database database = new Database();
     private Keys key = new Keys();
+    private Cache cache = new Cache();
+    private Transactions transactions = new Transactions();
     private String data;
 
     public Database getDatabase() {
@@ -113,6 +232,22 @@ public class StorageConfig {
         this.key = key;
     }
 
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
+    public Transactions getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(Transactions transactions) {
+        this.transactions = transactions;
+    }
+
     public String getData() {
         if (StringUtils.isBlank(data)) {
             throw new RuntimeException("Data storage location is not set");
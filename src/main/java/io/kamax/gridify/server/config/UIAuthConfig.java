@@ -45,8 +45,34 @@ public class UIAuthConfig {
 
     }
 
+    public static class Tokens {
+
+        // Amount of access tokens kept resolved in memory, 0 to disable
+        private long cacheSize = 100_000;
+        // How long an access token is kept resolved in memory, in seconds
+        private long cacheTtl = 600;
+
+        public long getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public long getCacheTtl() {
+            return cacheTtl;
+        }
+
+        public void setCacheTtl(long cacheTtl) {
+            this.cacheTtl = cacheTtl;
+        }
+
+    }
+
     private List<Flow> flows = new ArrayList<>();
     private Map<String, Object> parameters = new HashMap<>();
+    private Tokens tokens = new Tokens();
 
     public List<Flow> getFlows() {
         return flows;
@@ -70,4 +96,12 @@ public class UIAuthConfig {
         this.parameters = parameters;
     }
 
+    public Tokens getTokens() {
+        return tokens;
+    }
+
+    public void setTokens(Tokens tokens) {
+        this.tokens = tokens;
+    }
+
 }
@@ -32,6 +32,7 @@ import io.kamax.gridify.server.config.GridifyConfig;
 import io.kamax.gridify.server.core.admin.AdminCore;
 import io.kamax.gridify.server.core.admin.DefaultAdminCore;
 import io.kamax.gridify.server.core.auth.AuthService;
+import io.kamax.gridify.server.core.auth.TokenCache;
 import io.kamax.gridify.server.core.auth.Credentials;
 import io.kamax.gridify.server.core.auth.UIAuthSession;
 import io.kamax.gridify.server.core.auth.UIAuthStage;
@@ -46,9 +47,13 @@ import io.kamax.gridify.server.core.identity.IdentityManager;
 import io.kamax.gridify.server.core.identity.ThreePid;
 import io.kamax.gridify.server.core.identity.User;
 import io.kamax.gridify.server.core.signal.AppStopping;
+import io.kamax.gridify.server.core.signal.SessionTokenRevoked;
 import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
+import io.kamax.gridify.server.core.store.CachingDataStore;
 import io.kamax.gridify.server.core.store.DataStore;
 import io.kamax.gridify.server.core.store.MemoryStore;
+import io.kamax.gridify.server.core.store.TransactionCache;
 import io.kamax.gridify.server.core.store.crypto.FileKeyStore;
 import io.kamax.gridify.server.core.store.crypto.KeyStore;
 import io.kamax.gridify.server.core.store.crypto.MemoryKeyStore;
@@ -63,6 +68,7 @@ import io.kamax.gridify.server.network.matrix.core.MatrixCore;
 import io.kamax.gridify.server.network.matrix.core.base.BaseMatrixCore;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
+import net.engio.mbassy.listener.Handler;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
@@ -70,7 +76,6 @@ import java.lang.invoke.MethodHandles;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class MonolithGridifyServer implements GridifyServer {
 
@@ -85,6 +90,7 @@ public class MonolithGridifyServer implements GridifyServer {
     private final GridifyConfig cfg;
     private final SignalBus bus;
     private final DataStore store;
+    private final TransactionCache txns;
     private final KeyStore kStore;
     private final Cryptopher crypto;
     private final AuthService authSvc;
@@ -95,7 +101,7 @@ public class MonolithGridifyServer implements GridifyServer {
     private final GridCore gCore;
 
     private boolean isStopping;
-    private final Map<String, Boolean> tokens = new ConcurrentHashMap<>();
+    private final TokenCache<User> tokens;
 
     public MonolithGridifyServer(GridifyConfig cfg) {
         this.cfg = cfg;
@@ -103,7 +109,7 @@ public class MonolithGridifyServer implements GridifyServer {
             cfg.getAuth().addFlow().addStage("m.login.password");
         }
 
-        bus = new SignalBus();
+        bus = new SignalBus(cfg.getSignal());
 
         String kStoreType = cfg.getStorage().getKey().getType();
         String kStoreLoc = cfg.getStorage().getKey().getLocation();
@@ -123,14 +129,19 @@ public class MonolithGridifyServer implements GridifyServer {
 
         // FIXME use ServiceLoader
         String dbStoreType = cfg.getStorage().getDatabase().getType();
+        DataStore dbStore;
         if (StringUtils.equals("memory", dbStoreType)) {
-            store = MemoryStore.get(cfg.getStorage().getDatabase().getConnection());
+            dbStore = MemoryStore.get(cfg.getStorage().getDatabase().getConnection());
         } else if (StringUtils.equals("postgresql", dbStoreType)) {
-            store = new PostgreSQLDataStore(cfg.getStorage());
+            dbStore = new PostgreSQLDataStore(cfg.getStorage());
         } else {
             throw new IllegalArgumentException("Unknown database type: " + dbStoreType);
         }
 
+        long cachedEvents = cfg.getStorage().getCache().getEvents();
+        store = cachedEvents > 0 ? new CachingDataStore(dbStore, cachedEvents) : dbStore;
+        txns = new TransactionCache(store, cfg.getStorage().getTransactions());
+
         if (!store.hasConfig("core.server.id")) {
             store.setConfig("core.server.id", UUID.randomUUID());
         }
@@ -161,6 +172,9 @@ public class MonolithGridifyServer implements GridifyServer {
         admCore = new DefaultAdminCore(this);
         mxCore = new BaseMatrixCore(this);
         gCore = new SimpleGridServer(this, serverId); // FIXME give a proper domain
+
+        tokens = new TokenCache<>(cfg.getAuth().getTokens().getCacheSize(), cfg.getAuth().getTokens().getCacheTtl());
+        bus.forTopic(SignalTopic.Session).subscribe(this);
     }
 
     // FIXME check where it is used and if it used correctly
@@ -246,7 +260,9 @@ public class MonolithGridifyServer implements GridifyServer {
 
     @Override
     public String createSessionToken(String network, User usr) {
+        // Logins within the same second must still get their own token
         String token = JWT.create()
+                .withJWTId(UUID.randomUUID().toString())
                 .withIssuer(serverId)
                 .withIssuedAt(new Date())
                 .withExpiresAt(Date.from(Instant.ofEpochMilli(Long.MAX_VALUE)))
@@ -254,7 +270,6 @@ public class MonolithGridifyServer implements GridifyServer {
                 .sign(jwtAlgo);
 
         store.insertUserAccessToken(usr.getLid(), token);
-        tokens.put(token, true);
         return token;
     }
 
@@ -295,13 +310,21 @@ public class MonolithGridifyServer implements GridifyServer {
     @Override
     public void destroySessionToken(String token) {
         store.deleteUserAccessToken(token);
-        tokens.remove(token);
+        bus.forTopic(SignalTopic.Session).publish(new SessionTokenRevoked(token));
     }
 
     @Override
     public User validateSessionToken(String token) {
+        return tokens.get(token, this::resolveSessionToken);
+    }
+
+    private User resolveSessionToken(String token) {
         try {
             DecodedJWT data = jwtVerifier.verify(JWT.decode(token));
+            if (!store.hasUserAccessToken(token)) {
+                throw new InvalidTokenException("Invalid token");
+            }
+
             String uid = data.getClaim(GridType.of("id.internal")).asString();
             return getIdentity().getUser(uid); // FIXME check in cluster for missing events
         } catch (ObjectNotFoundException e) {
@@ -311,6 +334,11 @@ public class MonolithGridifyServer implements GridifyServer {
         }
     }
 
+    @Handler
+    private void signal(SessionTokenRevoked signal) {
+        tokens.revoke(signal.getToken());
+    }
+
     @Override
     public GridCore overGrid() {
         return gCore;
@@ -331,6 +359,11 @@ public class MonolithGridifyServer implements GridifyServer {
         return store;
     }
 
+    @Override
+    public TransactionCache getTransactions() {
+        return txns;
+    }
+
     @Override
     public Cryptopher getCrypto() {
         return crypto;
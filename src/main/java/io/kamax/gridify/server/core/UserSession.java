@@ -109,15 +109,14 @@ public class UserSession {
         data.setInitial(true);
         data.setPosition(Long.toString(g.server().streamer().getPosition()));
 
-        // FIXME this doesn't scale - we only care about channels where the user has ever been into
-        // so we shouldn't even deal with those. Need to make storage smarter in this case
-        // or use a caching mechanism to know what's the membership status of a given user
-        g.getChannelManager().list().forEach(cId -> {
-            // FIXME we need to get the HEAD event of the timeline instead
-            Channel c = g.getChannelManager().get(cId);
-            String evID = c.getView().getHead();
-            data.getEvents().add(g.server().gridify().getStore().getEvent(cId.full(), evID));
-        });
+        g.server().gridify().getStore().listUserMemberships("grid", uId.full()).stream()
+                .filter(dao -> ChannelMembership.Join.match(dao.getMembership()) || ChannelMembership.Invite.match(dao.getMembership()))
+                .forEach(dao -> {
+                    // FIXME we need to get the HEAD event of the timeline instead
+                    Channel c = g.getChannelManager().get(dao.getChannelId());
+                    String evID = c.getView().getHead();
+                    data.getEvents().add(g.server().gridify().getStore().getEvent(dao.getChannelId(), evID));
+                });
 
         return data;
     }
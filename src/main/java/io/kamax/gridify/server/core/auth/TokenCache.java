@@ -0,0 +1,87 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.core.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of what access tokens resolve to, which never keeps a token revoked while it was being resolved.
+ *
+ * @param <V> The type of value a token resolves to
+ */
+public class TokenCache<V> {
+
+    private final Cache<String, V> values;
+    private final AtomicLong revocations = new AtomicLong();
+
+    /**
+     * @param maxSize The maximum amount of tokens to keep, 0 to disable
+     * @param ttl     How long to keep a token after it was resolved, in seconds
+     */
+    public TokenCache(long maxSize, long ttl) {
+        this.values = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get what a token resolves to, from memory if it was recently resolved.
+     *
+     * @param token    The token
+     * @param resolver How to resolve the token if not in memory, throwing if the token is not valid
+     * @return The resolved value
+     */
+    public V get(String token, Function<String, V> resolver) {
+        V v = values.getIfPresent(token);
+        if (Objects.nonNull(v)) {
+            return v;
+        }
+
+        // A revocation can happen while resolving, in which case the result must not stick
+        long before = revocations.get();
+        v = resolver.apply(token);
+        values.put(token, v);
+        if (revocations.get() != before) {
+            values.invalidate(token);
+        }
+        return v;
+    }
+
+    public void revoke(String token) {
+        revocations.incrementAndGet();
+        values.invalidate(token);
+    }
+
+    public CacheStats getStats() {
+        return values.stats();
+    }
+
+}
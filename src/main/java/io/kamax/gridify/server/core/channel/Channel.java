@@ -37,6 +37,7 @@ import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
 import io.kamax.gridify.server.core.signal.SignalBus;
 import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.core.store.DataStore;
+import io.kamax.gridify.server.core.store.EventCommit;
 import io.kamax.gridify.server.exception.ForbiddenException;
 import io.kamax.gridify.server.exception.NotImplementedException;
 import io.kamax.gridify.server.exception.ObjectNotFoundException;
@@ -46,6 +47,7 @@ import io.kamax.gridify.server.network.grid.core.ServerID;
 import io.kamax.gridify.server.network.grid.core.UserID;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
+import io.kamax.gridify.server.util.Mailbox;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
@@ -53,6 +55,7 @@ import java.lang.invoke.MethodHandles;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 
@@ -70,7 +73,8 @@ public class Channel {
     private SignalBus bus;
 
     private BarePowerEvent.Content defaultPls;
-    private ChannelView view;
+    private final Mailbox mailbox = new Mailbox(); // All changes to the channel are made through it, one at a time
+    private volatile ChannelView view;
 
     public Channel(long sid, ChannelID id, ServerID origin, ChannelAlgo algo, EventService evSvc, DataStore store, DataServerManager srvMgr, SignalBus bus) {
         this(new ChannelDao(sid, "grid", "c", id.full(), "0"), origin, algo, evSvc, store, srvMgr, bus);
@@ -190,12 +194,12 @@ public class Channel {
         return algo.authorize(getView().getState(), (EventID) null, ev);
     }
 
-    private synchronized ChannelEvent processIfNotAlready(EventID evId) {
+    private ChannelEvent processIfNotAlready(EventID evId) {
         process(evId, true, false);
         return store.getEvent(getId().full(), evId.full());
     }
 
-    private synchronized ChannelEventAuthorization process(EventID evId, boolean recursive, boolean force) {
+    private ChannelEventAuthorization process(EventID evId, boolean recursive, boolean force) {
         ChannelEvent ev = store.getEvent(getId().full(), evId.full());
         if (!ev.getMeta().isPresent() || (ev.getMeta().isProcessed() && !force)) {
             return new ChannelEventAuthorization.Builder(evId.full())
@@ -205,11 +209,15 @@ public class Channel {
         return process(ev, recursive);
     }
 
-    public synchronized ChannelEventAuthorization process(ChannelEvent ev, boolean recursive) {
+    public ChannelEventAuthorization process(ChannelEvent ev, boolean recursive) {
         return process(ev, recursive, false);
     }
 
-    public synchronized ChannelEventAuthorization process(ChannelEvent ev, boolean recursive, boolean isSeed) {
+    public ChannelEventAuthorization process(ChannelEvent ev, boolean recursive, boolean isSeed) {
+        return mailbox.call(() -> doProcess(ev, recursive, isSeed));
+    }
+
+    private ChannelEventAuthorization doProcess(ChannelEvent ev, boolean recursive, boolean isSeed) {
         log.info("Processing event {} in channel {}", ev.getId(), ev.getChannelId());
         ChannelEventAuthorization.Builder b = new ChannelEventAuthorization.Builder(ev.getId());
         BareGenericEvent bEv = ev.getBare();
@@ -262,19 +270,20 @@ public class Channel {
             log.info("Because: {}", auth.getReason());
         }
 
-        ev = store.saveEvent(ev);
-        state = new ChannelState(store.getState(store.insertIfNew(getSid(), state)));
-        store.map(ev.getLid(), state.getSid());
-        store.addToStream(EventStreams.GridChannels(), ev.getLid());
+        EventCommit commit = new EventCommit(ev);
+        commit.setState(state);
+        commit.setStream(EventStreams.GridChannels());
+        if (ev.getMeta().isAllowed()) {
+            commit.setExtremity(bEv.getPreviousEvents());
+            if (ChannelEventType.Member.match(bEv.getType()) && StringUtils.isNotEmpty(bEv.getScope())) {
+                String userId = bEv.getScope();
+                state.findMembership(userId).ifPresent(m -> commit.addMembership(userId, m.getId()));
+            }
+        }
+        store.commit(commit);
 
+        state = new ChannelState(store.getState(commit.getStateSid()));
         if (ev.getMeta().isAllowed()) {
-            List<Long> toRemove = ev.getBare().getPreviousEvents().stream()
-                    .map(id -> store.findEventLid(getId().full(), id))
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toList());
-            List<Long> toAdd = Collections.singletonList(ev.getLid());
-            store.updateForwardExtremities(getSid(), toRemove, toAdd);
             view = new ChannelView(origin, ev.getId(), state);
         }
 
@@ -354,7 +363,15 @@ public class Channel {
         events.forEach(chEv -> store.saveEvent(chEv));
     }
 
-    public synchronized List<ChannelEventAuthorization> offer(List<ChannelEvent> events, boolean isSeed) {
+    public CompletableFuture<List<ChannelEventAuthorization>> offerAsync(List<ChannelEvent> events, boolean isSeed) {
+        return mailbox.submit(() -> doOffer(events, isSeed));
+    }
+
+    public List<ChannelEventAuthorization> offer(List<ChannelEvent> events, boolean isSeed) {
+        return mailbox.call(() -> doOffer(events, isSeed));
+    }
+
+    private List<ChannelEventAuthorization> doOffer(List<ChannelEvent> events, boolean isSeed) {
         ChannelState state = getView().getState();
 
         List<ChannelEventAuthorization> auths = new ArrayList<>();
@@ -394,7 +411,7 @@ public class Channel {
                 log.info("Skipping backfill on seed event {}", event.getId());
             }
 
-            auth = process(event, true, isSeed);
+            auth = doProcess(event, true, isSeed);
 
             auths.add(auth);
         });
@@ -406,15 +423,23 @@ public class Channel {
         return offer(from, events, false);
     }
 
+    public CompletableFuture<List<ChannelEventAuthorization>> offerAsync(String from, List<JsonObject> events) {
+        return offerAsync(toEvents(from, events, false), false);
+    }
+
     public List<ChannelEventAuthorization> offer(String from, List<JsonObject> events, boolean isSeed) {
-        return offer(events.stream().map(raw -> {
+        return offer(toEvents(from, events, isSeed), isSeed);
+    }
+
+    private List<ChannelEvent> toEvents(String from, List<JsonObject> events, boolean isSeed) {
+        return events.stream().map(raw -> {
             ChannelEvent ev = ChannelEvent.from(getSid(), raw);
             ev.setId(ev.getBare().getId());
             ev.getMeta().setSeed(isSeed);
             ev.getMeta().setReceivedFrom(from);
             ev.getMeta().setReceivedAt(Instant.now());
             return ev;
-        }).collect(Collectors.toList()), isSeed);
+        }).collect(Collectors.toList());
     }
 
     public ChannelEventAuthorization offer(String from, JsonObject event) {
@@ -429,11 +454,16 @@ public class Channel {
         return offer(Collections.singletonList(cEv), false).get(0);
     }
 
+    // The event is built from the current view, so it must be done within the same change as offering it
     public ChannelEventAuthorization offer(BareEvent<?> ev) {
-        return offer(evSvc.finalize(makeEvent(ev)));
+        return mailbox.call(() -> offer(evSvc.finalize(makeEvent(ev))));
     }
 
     public ChannelEventAuthorization inject(String from, JsonObject event, List<JsonObject> state) {
+        return mailbox.call(() -> doInject(from, event, state));
+    }
+
+    private ChannelEventAuthorization doInject(String from, JsonObject event, List<JsonObject> state) {
         state.stream().map(raw -> {
             ChannelEvent ev = ChannelEvent.from(getSid(), raw);
             ev.setId(ev.getBare().getId());
@@ -455,7 +485,7 @@ public class Channel {
     }
 
     public ChannelEventAuthorization makeAndOffer(JsonObject ev) {
-        return offer(makeEvent(ev));
+        return mailbox.call(() -> offer(makeEvent(ev)));
     }
 
     public ChannelState getState(ChannelEvent ev) {
@@ -20,6 +20,7 @@
 
 package io.kamax.gridify.server.core.channel;
 
+import com.google.common.cache.CacheStats;
 import com.google.gson.JsonObject;
 import io.kamax.gridify.server.GridifyServer;
 import io.kamax.gridify.server.core.channel.algo.ChannelAlgo;
@@ -33,14 +34,18 @@ import io.kamax.gridify.server.core.channel.structure.ApprovalExchange;
 import io.kamax.gridify.server.core.event.EventService;
 import io.kamax.gridify.server.core.federation.DataServer;
 import io.kamax.gridify.server.core.federation.DataServerManager;
+import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
 import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.core.store.DataStore;
 import io.kamax.gridify.server.exception.EntityUnreachableException;
 import io.kamax.gridify.server.exception.ForbiddenException;
 import io.kamax.gridify.server.exception.ObjectNotFoundException;
 import io.kamax.gridify.server.network.grid.core.*;
+import io.kamax.gridify.server.util.EntityCache;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
+import net.engio.mbassy.listener.Handler;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -50,9 +55,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class ChannelManager {
@@ -66,7 +69,7 @@ public class ChannelManager {
     private DataStore store;
     private DataServerManager dsmgr;
 
-    private Map<ChannelID, Channel> channels = new ConcurrentHashMap<>();
+    private EntityCache<ChannelID, Channel> channels;
 
     public ChannelManager(GridDataServer g) {
         this(g.server().gridify(), g.server().evSvc(), g.dataServerMgr());
@@ -83,6 +86,15 @@ public class ChannelManager {
         this.evSvc = evSvc;
         this.store = store;
         this.dsmgr = dsmgr;
+        this.channels = new EntityCache<>("channel", g.getConfig().getChannel().getCache().getMaxWeight(),
+                c -> c.getView().getState().size());
+        bus.forTopic(SignalTopic.Channel).subscribe(this);
+    }
+
+    @Handler
+    private void handle(ChannelMessageProcessed signal) {
+        // The state of the channel might have grown
+        channels.reweigh(ChannelID.parse(signal.getEvent().getChannelId()));
     }
 
     private Channel fromDao(ChannelDao dao) {
@@ -109,8 +121,7 @@ public class ChannelManager {
         ChannelDao dao = new ChannelDao("grid", "c", generateId().full(), "0");
         dao = store.saveChannel(dao); // FIXME rollback creation in case of failure, or use transaction
 
-        Channel ch = new Channel(dao, gSrv.server().getOrigin(), algo, evSvc, store, dsmgr, bus);
-        channels.put(ch.getId(), ch);
+        Channel ch = channels.add(ChannelID.parse(dao.getId()), new Channel(dao, gSrv.server().getOrigin(), algo, evSvc, store, dsmgr, bus));
 
         List<BareEvent<?>> createEvents = algo.getCreationEvents(creator);
         createEvents.stream()
@@ -132,14 +143,13 @@ public class ChannelManager {
 
         BareCreateEvent createEv = GsonUtil.fromJson(stateJson.get(0), BareCreateEvent.class);
         String version = StringUtils.defaultIfEmpty(createEv.getContent().getVersion(), ChannelAlgoV0_0.Version);
-        Channel ch = new Channel(dao, gSrv.server().getOrigin(), ChannelAlgos.get(version), evSvc, store, dsmgr, bus);
+        Channel ch = channels.add(ChannelID.parse(dao.getId()), new Channel(dao, gSrv.server().getOrigin(), ChannelAlgos.get(version), evSvc, store, dsmgr, bus));
 
         ChannelEventAuthorization auth = ch.inject(from, seedJson, stateJson);
         if (!auth.isAuthorized()) {
             throw new ForbiddenException("Seed is not allowed as per state: " + auth.getReason());
         }
 
-        channels.put(ch.getId(), ch);
         return ch;
     }
 
@@ -148,12 +158,12 @@ public class ChannelManager {
         return daos.stream().map(ChannelDao::getId).map(ChannelID::parse).collect(Collectors.toList());
     }
 
-    public synchronized Optional<Channel> find(ChannelID cId) {
-        if (!channels.containsKey(cId)) {
-            store.findChannel(cId).ifPresent(channelDao -> channels.put(cId, fromDao(channelDao)));
-        }
+    public Optional<Channel> find(ChannelID cId) {
+        return channels.find(cId, id -> store.findChannel(id).map(this::fromDao));
+    }
 
-        return Optional.ofNullable(channels.get(cId));
+    public CacheStats getCacheStats() {
+        return channels.getStats();
     }
 
     public Channel get(ChannelID cId) {
@@ -59,6 +59,7 @@ public class ChannelEvent {
     private transient BareGenericEvent asMatrix;
     private transient io.kamax.gridify.server.core.channel.event.BareGenericEvent bare;
     private transient List<String> prevEvents;
+    private transient volatile Object view;
 
     public ChannelEvent() {
         meta = new ChannelEventMeta();
@@ -153,6 +154,7 @@ public class ChannelEvent {
         this.data = data;
         bare = null;
         asMatrix = null;
+        view = null;
 
         getMeta().setPresent(!Objects.isNull(data));
     }
@@ -182,6 +184,24 @@ public class ChannelEvent {
         return asMatrix;
     }
 
+    /**
+     * Get the event data as the given type. It is parsed once and kept until the data changes or another type is asked
+     * for, so the returned object is shared and must not be changed.
+     *
+     * @param type The type to parse the event data as
+     * @param <T>  The type to parse the event data as
+     * @return The parsed event data
+     */
+    public <T> T as(Class<T> type) {
+        Object v = view;
+        if (Objects.isNull(v) || !Objects.equals(type, v.getClass())) {
+            v = GsonUtil.fromJson(getData(), type);
+            view = v;
+        }
+
+        return type.cast(v);
+    }
+
     public ChannelEventMeta getMeta() {
         return meta;
     }
@@ -201,4 +221,22 @@ public class ChannelEvent {
         getMeta().setProcessedOn(Instant.now());
     }
 
+    /**
+     * Copy this event so the copy can be changed independently. The event data and its parsed view are shared, as they
+     * never change once set.
+     *
+     * @return The copy
+     */
+    public ChannelEvent copy() {
+        ChannelEvent ev = new ChannelEvent(cSid);
+        ev.lid = lid;
+        ev.sid = sid;
+        ev.id = id;
+        ev.data = data;
+        ev.view = view;
+        ev.meta = getMeta().copy();
+        ev.extra = getExtra().deepCopy();
+        return ev;
+    }
+
 }
@@ -27,6 +27,7 @@ import io.kamax.gridify.server.core.event.EventKey;
 import io.kamax.gridify.server.core.store.ChannelStateDao;
 import io.kamax.gridify.server.network.grid.core.UserID;
 import io.kamax.gridify.server.util.GsonUtil;
+import io.kamax.gridify.server.util.HashTrieMap;
 
 import java.util.*;
 import java.util.function.Function;
@@ -62,7 +63,10 @@ public class ChannelState {
     }
 
     private Long sid;
-    private Map<String, ChannelEvent> data = new HashMap<>();
+    // Immutable, so states can share it and only allocate what changes
+    private HashTrieMap<StateKey, ChannelEvent> data = HashTrieMap.empty();
+    private Long parentSid; // Last stored state this one derives from
+    private HashTrieMap<StateKey, ChannelEvent> delta = HashTrieMap.empty(); // Changes since the parent state
 
     private ChannelState() {
     }
@@ -82,21 +86,30 @@ public class ChannelState {
 
     public ChannelState(Long sid, ChannelState state) {
         this.sid = sid;
-        this.data = new HashMap<>(state.data);
+        this.data = state.data;
     }
 
-    private void addEvent(ChannelEvent ev) {
+    private StateKey addEvent(ChannelEvent ev) {
         String scope = GsonUtil.getStringOrThrow(ev.getData(), EventKey.Scope);
-        String key = GsonUtil.getStringOrThrow(ev.getData(), EventKey.Type) + scope;
-        data.put(key, ev);
+        StateKey key = StateKey.of(GsonUtil.getStringOrThrow(ev.getData(), EventKey.Type), scope).intern();
+        data = data.plus(key, ev);
+        return key;
     }
 
     public Long getSid() {
         return sid;
     }
 
+    public Long getParentSid() {
+        return parentSid;
+    }
+
+    public List<ChannelEvent> getDelta() {
+        return delta.values();
+    }
+
     public Optional<ChannelEvent> find(String type, String scope) {
-        return Optional.ofNullable(data.get(type + scope));
+        return Optional.ofNullable(data.get(StateKey.of(type, scope)));
     }
 
     public <T> Optional<T> find(String type, Class<T> c) {
@@ -116,7 +129,11 @@ public class ChannelState {
     }
 
     public List<ChannelEvent> getEvents() {
-        return new ArrayList<>(data.values());
+        return data.values();
+    }
+
+    public int size() {
+        return data.size();
     }
 
     public BareCreateEvent getCreation() {
@@ -164,8 +181,14 @@ public class ChannelState {
         }
 
         ChannelState state = new ChannelState();
-        state.data = new HashMap<>(data);
-        state.addEvent(ev);
+        state.data = data;
+        if (Objects.nonNull(sid) && sid > 0) {
+            state.parentSid = sid;
+        } else {
+            state.parentSid = parentSid;
+            state.delta = delta;
+        }
+        state.delta = state.delta.plus(state.addEvent(ev), ev);
 
         return state;
     }
@@ -0,0 +1,78 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.core.channel.state;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Objects;
+
+// Identifies a state entry by its event type and state key/scope
+public final class StateKey {
+
+    private static final Interner<StateKey> interner = Interners.newWeakInterner();
+
+    public static StateKey of(String type, String scope) {
+        return new StateKey(type, scope);
+    }
+
+    private final String type;
+    private final String scope;
+    private final int hash;
+
+    private StateKey(String type, String scope) {
+        this.type = type;
+        this.scope = scope;
+        this.hash = Objects.hash(type, scope);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    // So identical keys held across many states share a single instance
+    public StateKey intern() {
+        return interner.intern(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        StateKey that = (StateKey) o;
+        return hash == that.hash && Objects.equals(type, that.type) && Objects.equals(scope, that.scope);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return type + "/" + scope;
+    }
+
+}
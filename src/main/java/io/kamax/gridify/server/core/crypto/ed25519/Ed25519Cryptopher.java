@@ -43,15 +43,51 @@ import java.nio.ByteBuffer;
 import java.security.*;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Ed25519Cryptopher implements Cryptopher {
 
+    // Key material decoded once from the store, so signing does not hit the store each time
+    private static class DecodedKey {
+
+        private final EdDSAPrivateKey privateKey;
+        private final EdDSAPublicKey publicKey;
+        private final String publicKeyBase64;
+
+        DecodedKey(EdDSAPrivateKey privateKey, EdDSAParameterSpec keySpecs) {
+            this.privateKey = privateKey;
+            this.publicKey = new EdDSAPublicKey(new EdDSAPublicKeySpec(privateKey.getA(), keySpecs));
+            this.publicKeyBase64 = Base64.encodeBase64URLSafeString(publicKey.getAbyte());
+        }
+
+    }
+
     private final EdDSAParameterSpec keySpecs;
     private final KeyStore store;
+    private final Map<String, DecodedKey> decoded = new ConcurrentHashMap<>();
+    private final ThreadLocal<EdDSAEngine> signEngines;
 
     public Ed25519Cryptopher(KeyStore store) {
         this.keySpecs = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
         this.store = store;
+        this.signEngines = ThreadLocal.withInitial(() -> {
+            try {
+                return new EdDSAEngine(MessageDigest.getInstance(keySpecs.getHashAlgorithm()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // Dropped on any change, so the next use decodes the stored key again
+        store.addListener(id -> decoded.remove(id.getId()));
+
+        // Keys stored before the public key index existed
+        for (KeyIdentifier id : store.list()) {
+            if (!store.getPublicKey(id).isPresent()) {
+                store.setPublicKey(id, decode(store.get(id)).publicKeyBase64);
+            }
+        }
     }
 
     private String generateId() {
@@ -64,10 +100,6 @@ public class Ed25519Cryptopher implements Cryptopher {
         return Base64.encodeBase64URLSafeString(key.getSeed());
     }
 
-    private EdDSAParameterSpec getKeySpecs() {
-        return keySpecs;
-    }
-
     @Override
     public KeyIdentifier generateKey(String purpose) {
         KeyIdentifier id;
@@ -80,6 +112,7 @@ public class Ed25519Cryptopher implements Cryptopher {
 
         Key key = new GenericKey(id, true, purpose, keyEncoded);
         store.add(key);
+        store.setPublicKey(id, getPublicKeyBase64(id));
 
         return id;
     }
@@ -94,18 +127,21 @@ public class Ed25519Cryptopher implements Cryptopher {
         return store.get(id);
     }
 
-    private EdDSAPrivateKeySpec getPrivateKeySpecs(KeyIdentifier id) {
-        return new EdDSAPrivateKeySpec(Base64.decodeBase64(getKey(id).getPrivateKeyBase64()), keySpecs);
+    private DecodedKey decode(Key key) {
+        EdDSAPrivateKeySpec privKeySpec = new EdDSAPrivateKeySpec(Base64.decodeBase64(key.getPrivateKeyBase64()), keySpecs);
+        return new DecodedKey(new EdDSAPrivateKey(privKeySpec), keySpecs);
+    }
+
+    private DecodedKey getDecoded(KeyIdentifier id) {
+        return decoded.computeIfAbsent(id.getId(), k -> decode(getKey(id)));
     }
 
     EdDSAPrivateKey getPrivateKey(KeyIdentifier id) {
-        return new EdDSAPrivateKey(getPrivateKeySpecs(id));
+        return getDecoded(id).privateKey;
     }
 
     private EdDSAPublicKey getPublicKey(KeyIdentifier id) {
-        EdDSAPrivateKeySpec privKeySpec = getPrivateKeySpecs(id);
-        EdDSAPublicKeySpec pubKeySpec = new EdDSAPublicKeySpec(privKeySpec.getA(), keySpecs);
-        return new EdDSAPublicKey(pubKeySpec);
+        return getDecoded(id).publicKey;
     }
 
     @Override
@@ -113,28 +149,28 @@ public class Ed25519Cryptopher implements Cryptopher {
         Key key = store.get(id);
         key = new GenericKey(id, false, "", key.getPrivateKeyBase64()); //FIXME
         store.update(key);
+        store.setPublicKey(id, getPublicKeyBase64(id));
     }
 
     @Override
     public String getPublicKeyBase64(KeyIdentifier id) {
-        return Base64.encodeBase64URLSafeString(getPublicKey(id).getAbyte());
+        return getDecoded(id).publicKeyBase64;
     }
 
     @Override
     public boolean isValid(String publicKeyBase64) {
-        // TODO caching?
-        return getKeys().stream().anyMatch(id -> StringUtils.equals(getPublicKeyBase64(id), publicKeyBase64));
+        return store.findByPublicKey(publicKeyBase64).isPresent();
     }
 
     @Override
     public Signature sign(JsonObject obj, KeyIdentifier keyId) {
-        return sign(CanonicalJson.encode(obj), keyId);
+        return sign(CanonicalJson.encodeBytes(obj), keyId);
     }
 
     @Override
     public Signature sign(byte[] data, KeyIdentifier signingKeyId) {
         try {
-            EdDSAEngine signEngine = new EdDSAEngine(MessageDigest.getInstance(getKeySpecs().getHashAlgorithm()));
+            EdDSAEngine signEngine = signEngines.get();
             signEngine.initSign(getPrivateKey(signingKeyId));
             byte[] signRaw = signEngine.signOneShot(data);
             String sign = StringUtils.remove(Base64.encodeBase64String(signRaw), "=");
@@ -150,7 +186,7 @@ public class Ed25519Cryptopher implements Cryptopher {
                     return sign;
                 }
             };
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+        } catch (InvalidKeyException | SignatureException e) {
             throw new RuntimeException(e);
         }
     }
@@ -161,13 +197,8 @@ public class Ed25519Cryptopher implements Cryptopher {
             throw new IllegalArgumentException("Invalid public key: " + pubKeyBase64);
         }
 
-        for (KeyIdentifier id : store.list()) {
-            if (StringUtils.equals(getPublicKeyBase64(id), pubKeyBase64)) {
-                return id;
-            }
-        }
-
-        throw new ObjectNotFoundException("No keypair with matching public key " + pubKeyBase64);
+        return store.findByPublicKey(pubKeyBase64)
+                .orElseThrow(() -> new ObjectNotFoundException("No keypair with matching public key " + pubKeyBase64));
     }
 
 }
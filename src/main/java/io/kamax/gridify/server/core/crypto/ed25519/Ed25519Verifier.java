@@ -0,0 +1,87 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2019 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.core.crypto.ed25519;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import org.apache.commons.codec.binary.Base64;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Verify Ed25519 signatures made with keys we do not own. Safe to use from several threads at once.
+ */
+public class Ed25519Verifier {
+
+    private final EdDSAParameterSpec keySpecs;
+
+    // Decoding a public key means decompressing a curve point, which is worth avoiding for every signature
+    private final Cache<String, EdDSAPublicKey> publicKeys = CacheBuilder.newBuilder().maximumSize(10_000).build();
+    private final ThreadLocal<EdDSAEngine> engines;
+
+    public Ed25519Verifier() {
+        this.keySpecs = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+        this.engines = ThreadLocal.withInitial(() -> {
+            try {
+                return new EdDSAEngine(MessageDigest.getInstance(keySpecs.getHashAlgorithm()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private EdDSAPublicKey getPublicKey(String publicKeyBase64) {
+        try {
+            return publicKeys.get(publicKeyBase64, () -> new EdDSAPublicKey(new EdDSAPublicKeySpec(Base64.decodeBase64(publicKeyBase64), keySpecs)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalArgumentException("Invalid public key: " + publicKeyBase64, e.getCause());
+        }
+    }
+
+    /**
+     * Check a signature against a public key
+     *
+     * @param publicKeyBase64 The public key, encoded as Base64 with or without padding
+     * @param data            The signed data
+     * @param signatureBase64 The signature, encoded as Base64 with or without padding
+     * @return true if the signature is valid for the data and the public key, false otherwise
+     */
+    public boolean verify(String publicKeyBase64, byte[] data, String signatureBase64) {
+        try {
+            EdDSAEngine engine = engines.get();
+            engine.initVerify(getPublicKey(publicKeyBase64));
+            return engine.verifyOneShot(data, Base64.decodeBase64(signatureBase64));
+        } catch (IllegalArgumentException | InvalidKeyException | SignatureException e) {
+            return false;
+        }
+    }
+
+}
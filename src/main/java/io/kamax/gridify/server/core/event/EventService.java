@@ -55,8 +55,7 @@ public class EventService {
     }
 
     public JsonObject hash(JsonObject ev) {
-        String fullCanonical = CanonicalJson.encode(ev);
-        String hash = GridHash.get().hashFromUtf8(fullCanonical);
+        String hash = GridHash.get().hashCanonical(ev);
         ev.add(EventKey.Hashes, GsonUtil.makeObj("sha256", hash));
         return ev;
     }
@@ -67,9 +66,7 @@ public class EventService {
         Class<? extends BareEvent<?>> evClass = bares.getOrDefault(type, BareGenericEvent.class);
         BareEvent<?> minEv = GsonUtil.get().fromJson(ev, evClass);
         JsonObject minEvJson = minEv.getJson();
-        String minCanonical = CanonicalJson.encode(minEvJson);
-
-        Signature sign = crypto.sign(minCanonical, signingKey);
+        Signature sign = crypto.sign(CanonicalJson.encodeBytes(minEvJson), signingKey);
         JsonObject signLocal = GsonUtil.makeObj(sign.getKey().getId(), sign.getSignature());
         signatures.add(origin.full(), signLocal);
         ev.add(EventKey.Signatures, signatures);
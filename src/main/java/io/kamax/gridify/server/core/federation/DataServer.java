@@ -45,15 +45,15 @@ public class DataServer {
 
     private final ServerID id;
     private final String hostname;
-    private DataServerHttpClient client;
+    private final DataServerClient client;
     private volatile Instant lastOut;
     private volatile Instant lastIn;
     private AtomicLong waitTime;
 
-    public DataServer(ServerID id) {
+    public DataServer(ServerID id, DataServerClient client) {
         this.id = id;
         this.hostname = id.tryDecodeDns().orElseThrow(() -> new IllegalArgumentException("Unable to resolve " + id.full() + " to a hostname"));
-        this.client = new DataServerHttpClient();
+        this.client = client;
         this.lastOut = Instant.EPOCH;
         this.lastIn = Instant.EPOCH;
         this.waitTime = new AtomicLong();
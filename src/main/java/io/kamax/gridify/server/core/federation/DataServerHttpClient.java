@@ -20,9 +20,11 @@
 
 package io.kamax.gridify.server.core.federation;
 
+import com.google.common.cache.Cache;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import io.kamax.gridify.server.App;
+import io.kamax.gridify.server.config.FederationConfig;
 import io.kamax.gridify.server.core.channel.ChannelLookup;
 import io.kamax.gridify.server.core.channel.event.BareMemberEvent;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
@@ -42,12 +44,18 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustAllStrategy;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
@@ -64,6 +72,7 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -74,27 +83,47 @@ public class DataServerHttpClient implements DataServerClient {
 
     private final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
 
-    private CloseableHttpClient client;
-
-    public DataServerHttpClient() {
+    /**
+     * Build an HTTP client to be shared by all remote servers, with a bounded connection pool.
+     *
+     * @param cfg The client configuration
+     * @return The HTTP client
+     */
+    public static CloseableHttpClient build(FederationConfig.Client cfg) {
         try {
             // FIXME properly handle SSL context by validating certificate hostname
             SSLContext sslContext = SSLContextBuilder.create().loadTrustMaterial(TrustAllStrategy.INSTANCE).build();
             HostnameVerifier hostnameVerifier = NoopHostnameVerifier.INSTANCE;
             SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-            this.client = HttpClientBuilder.create()
+
+            // The builder ignores its own socket factory and limits once a connection manager is given
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create()
+                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                            .register("https", sslSocketFactory)
+                            .build());
+            pool.setMaxTotal(cfg.getMaxConnections());
+            pool.setDefaultMaxPerRoute(cfg.getMaxConnectionsPerServer());
+
+            ConnectionKeepAliveStrategy keepAlive = (res, ctx) -> {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(res, ctx);
+                return duration > 0 ? Math.min(duration, cfg.getKeepAlive()) : cfg.getKeepAlive();
+            };
+
+            return HttpClientBuilder.create()
                     .disableAuthCaching()
                     .disableAutomaticRetries()
                     .disableCookieManagement()
                     .disableRedirectHandling()
-                    .setSSLSocketFactory(sslSocketFactory)
+                    .setConnectionManager(pool)
+                    .setKeepAliveStrategy(keepAlive)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(cfg.getIdleTimeout(), TimeUnit.MILLISECONDS)
                     .setDefaultRequestConfig(RequestConfig.custom()
-                            .setConnectTimeout(30 * 1000) // FIXME make configurable
-                            .setConnectionRequestTimeout(5 * 60 * 1000) // FIXME make configurable
-                            .setSocketTimeout(5 * 60 * 1000) // FIXME make configurable
+                            .setConnectTimeout(cfg.getConnectTimeout())
+                            .setConnectionRequestTimeout(cfg.getConnectionRequestTimeout())
+                            .setSocketTimeout(cfg.getSocketTimeout())
                             .build())
-                    .setMaxConnPerRoute(Integer.MAX_VALUE) // FIXME make configurable
-                    .setMaxConnTotal(Integer.MAX_VALUE) // FIXME make configurable
                     .setUserAgent(App.getUserAgent()) // FIXME use build properties
                     .build();
         } catch (KeyStoreException | NoSuchAlgorithmException | KeyManagementException e) {
@@ -102,7 +131,38 @@ public class DataServerHttpClient implements DataServerClient {
         }
     }
 
+    private final CloseableHttpClient client;
+    private final Cache<String, List<URL>> endpoints;
+
+    /**
+     * @param client    The HTTP client to use, usually shared with other remote servers
+     * @param endpoints Where to keep the endpoints found by discovery, per domain
+     */
+    public DataServerHttpClient(CloseableHttpClient client, Cache<String, List<URL>> endpoints) {
+        this.client = client;
+        this.endpoints = endpoints;
+    }
+
     private List<URL> lookupSrv(String domain) {
+        List<URL> urls = endpoints.getIfPresent(domain);
+        if (Objects.isNull(urls)) {
+            urls = discover(domain);
+            // Failed discoveries are not kept so the next attempt, already delayed by the health check, tries again
+            if (!urls.isEmpty()) {
+                endpoints.put(domain, urls);
+            }
+        }
+
+        return urls;
+    }
+
+    private RemoteServerException unreachable(String target) {
+        // The endpoints we know of might be outdated, discover them again next time
+        endpoints.invalidate(target);
+        return new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+    }
+
+    public List<URL> discover(String domain) {
         List<Address> addrs = new ArrayList<>();
 
         int i = domain.lastIndexOf(":");
@@ -180,7 +240,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
-        throw new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+        throw unreachable(target);
     }
 
     @Override
@@ -230,7 +290,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
-        throw new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+        throw unreachable(target);
     }
 
     @Override
@@ -278,7 +338,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
-        throw new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+        throw unreachable(target);
     }
 
     @Override
@@ -326,7 +386,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
-        throw new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+        throw unreachable(target);
     }
 
     @Override
@@ -389,7 +449,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
-        throw new RemoteServerException(target, "G_FEDERATION_ERROR", "Could not find a working server for " + target);
+        throw unreachable(target);
     }
 
     @Override
@@ -440,6 +500,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
+        endpoints.invalidate(target);
         return Optional.empty();
     }
 
@@ -497,6 +558,7 @@ public class DataServerHttpClient implements DataServerClient {
             }
         }
 
+        endpoints.invalidate(target);
         return Optional.empty();
     }
 
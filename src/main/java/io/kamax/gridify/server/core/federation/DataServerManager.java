@@ -20,11 +20,14 @@
 
 package io.kamax.gridify.server.core.federation;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import io.kamax.gridify.server.config.FederationConfig;
 import io.kamax.gridify.server.network.grid.core.ServerID;
 
+import java.net.URL;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
@@ -33,17 +36,29 @@ import java.util.stream.Collectors;
 
 public class DataServerManager {
 
-    private LoadingCache<ServerID, DataServer> cache;
+    private final LoadingCache<ServerID, DataServer> cache;
+    private final Cache<String, List<URL>> endpoints;
+    private final DataServerClient client;
 
     public DataServerManager() {
+        this(new FederationConfig());
+    }
+
+    public DataServerManager(FederationConfig cfg) {
+        // Remote servers share a single connection pool and their discovered endpoints
+        this.endpoints = CacheBuilder.newBuilder()
+                .maximumSize(cfg.getServers().getMaxSize())
+                .expireAfterWrite(cfg.getServers().getEndpointTtl(), TimeUnit.SECONDS)
+                .build();
+        this.client = new DataServerHttpClient(DataServerHttpClient.build(cfg.getClient()), endpoints);
         this.cache = CacheBuilder.newBuilder()
-                .maximumSize(1000) // FIXME make it configurable
-                .expireAfterAccess(3600, TimeUnit.SECONDS) // FIXME make it configurable
+                .maximumSize(cfg.getServers().getMaxSize())
+                .expireAfterAccess(cfg.getServers().getExpireAfter(), TimeUnit.SECONDS)
                 .build(new CacheLoader<ServerID, DataServer>() {
 
                     @Override
                     public DataServer load(ServerID key) {
-                        return new DataServer(key);
+                        return new DataServer(key, client);
                     }
 
                 });
@@ -1,6 +1,6 @@
 /*
  * Gridify Server
- * Copyright (C) 2019 Kamax Sarl
+ * Copyright (C) 2021 Kamax Sarl
  *
  * https://www.kamax.io/
  *
@@ -18,19 +18,50 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package io.kamax.gridify.server.core.signal;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.kamax.gridify.server.config.SignalConfig;
+import io.kamax.gridify.server.util.KxLog;
+import io.kamax.gridify.server.util.LatencyHistogram;
+import net.engio.mbassy.bus.MessagePublication;
 import net.engio.mbassy.bus.SyncMessageBus;
 import net.engio.mbassy.bus.config.BusConfiguration;
 import net.engio.mbassy.bus.config.Feature;
 import net.engio.mbassy.bus.error.IPublicationErrorHandler;
+import net.engio.mbassy.bus.error.MessageBusException;
+import net.engio.mbassy.dispatch.HandlerInvocation;
+import net.engio.mbassy.dispatch.IHandlerInvocation;
+import net.engio.mbassy.subscription.SubscriptionContext;
+import net.engio.mbassy.subscription.SubscriptionFactory;
+import org.slf4j.Logger;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Publish signals to the handlers subscribed to a topic.
+ * <p>
+ * By default, handlers are run on the publishing thread before publishing returns. In asynchronous mode, signals are
+ * queued per topic and handlers are run on a bounded pool of threads, in the order signals were published within a
+ * topic. Publishers wait when the queue of a topic is full, except dispatcher threads themselves. Topics which rely on
+ * handlers being done when publishing returns are always dispatched synchronously.
+ */
 public class SignalBus {
 
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    // How many signals of a topic are dispatched in a row before letting other topics use the thread
+    private static final int drainBatchSize = 1000;
+
     private static SignalBus instance;
 
     public static synchronized SignalBus getDefault() {
@@ -41,20 +72,205 @@ public class SignalBus {
         return instance;
     }
 
-    private final Map<String, SyncMessageBus<Signal>> buses = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Boolean> dispatching = ThreadLocal.withInitial(() -> false);
+
+    private static class Pending {
+
+        private final Signal signal;
+        private final boolean permit;
+
+        Pending(Signal signal, boolean permit) {
+            this.signal = signal;
+            this.permit = permit;
+        }
+
+    }
+
+    private static class TimedHandlerInvocation extends HandlerInvocation<Object, Object> {
+
+        private final IHandlerInvocation<Object, Object> delegate;
+        private final LatencyHistogram latency;
+
+        TimedHandlerInvocation(SubscriptionContext context, IHandlerInvocation<Object, Object> delegate, LatencyHistogram latency) {
+            super(context);
+            this.delegate = delegate;
+            this.latency = latency;
+        }
+
+        @Override
+        public void invoke(Object listener, Object message, MessagePublication publication) {
+            long start = System.nanoTime();
+            try {
+                delegate.invoke(listener, message, publication);
+            } finally {
+                latency.recordSince(start);
+            }
+        }
+
+    }
+
+    public class Topic {
+
+        private final SyncMessageBus<Signal> bus;
+        private final boolean synchronous;
+        private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Semaphore capacity;
+
+        private Topic(SyncMessageBus<Signal> bus, boolean synchronous) {
+            this.bus = bus;
+            this.synchronous = synchronous;
+            this.capacity = new Semaphore(queueDepth);
+        }
+
+        public void subscribe(Object listener) {
+            bus.subscribe(listener);
+        }
+
+        public boolean unsubscribe(Object listener) {
+            return bus.unsubscribe(listener);
+        }
+
+        public void publish(Signal signal) {
+            if (synchronous || Objects.isNull(dispatcher)) {
+                bus.publish(signal);
+                return;
+            }
+
+            // Waiting on a dispatcher thread could deadlock with the very topic it would be waiting on
+            boolean permit = !dispatching.get();
+            if (permit) {
+                capacity.acquireUninterruptibly();
+            }
+
+            depth.incrementAndGet();
+            queue.add(new Pending(signal, permit));
+            schedule();
+        }
+
+        /**
+         * @return The amount of signals waiting to be dispatched
+         */
+        public int getQueueDepth() {
+            return depth.get();
+        }
+
+        private void schedule() {
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                dispatcher.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+
+        private void drain() {
+            dispatching.set(true);
+            try {
+                for (int i = 0; i < drainBatchSize; i++) {
+                    Pending p = queue.poll();
+                    if (Objects.isNull(p)) {
+                        break;
+                    }
+
+                    depth.decrementAndGet();
+                    if (p.permit) {
+                        capacity.release();
+                    }
+
+                    try {
+                        bus.publish(p.signal);
+                    } catch (RuntimeException e) {
+                        log.error("Unable to dispatch signal {}", p.signal.getClass().getSimpleName(), e);
+                    }
+                }
+            } finally {
+                dispatching.set(false);
+                draining.set(false);
+            }
+
+            // Signals published after the last poll but before the flag was cleared would otherwise wait for the next one
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+
+    }
+
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> handlers = new ConcurrentHashMap<>();
+    private final ExecutorService dispatcher;
+    private final int queueDepth;
 
-    private SyncMessageBus<Signal> forTopic(String topic) {
-        return buses.computeIfAbsent(topic, k -> new SyncMessageBus<>(new BusConfiguration()
-                .addFeature(Feature.SyncPubSub.Default())
-                .addPublicationErrorHandler(new IPublicationErrorHandler.ConsoleLogger())));
+    /**
+     * Create a bus dispatching signals synchronously
+     */
+    public SignalBus() {
+        this.dispatcher = null;
+        this.queueDepth = 0;
     }
 
-    public SyncMessageBus<Signal> forTopic(SignalTopic topic) {
-        return forTopic(topic.name().toLowerCase());
+    public SignalBus(SignalConfig cfg) {
+        if (!cfg.isAsync()) {
+            this.dispatcher = null;
+            this.queueDepth = 0;
+            return;
+        }
+
+        if (cfg.getQueueDepth() < 1) {
+            throw new IllegalArgumentException("Signal queue depth must be at least 1");
+        }
+
+        int threads = cfg.getThreads() > 0 ? cfg.getThreads() : Runtime.getRuntime().availableProcessors();
+        this.dispatcher = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("gridify-signal-%d").setDaemon(true).build());
+        this.queueDepth = cfg.getQueueDepth();
+    }
+
+    private Topic forTopic(String topic, boolean synchronous) {
+        return topics.computeIfAbsent(topic, k -> {
+            SubscriptionFactory subFactory = new SubscriptionFactory() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                protected IHandlerInvocation<?, ?> buildInvocationForHandler(SubscriptionContext context) throws MessageBusException {
+                    IHandlerInvocation<Object, Object> invocation = super.buildInvocationForHandler(context);
+                    Method m = context.getHandler().getMethod();
+                    String name = m.getDeclaringClass().getName() + "#" + m.getName() + "(" + m.getParameterTypes()[0].getSimpleName() + ")";
+                    LatencyHistogram latency = handlers.computeIfAbsent(name, n -> new LatencyHistogram());
+                    return new TimedHandlerInvocation(context, invocation, latency);
+                }
+
+            };
+
+            return new Topic(new SyncMessageBus<>(new BusConfiguration()
+                    .addFeature(Feature.SyncPubSub.Default().setSubscriptionFactory(subFactory))
+                    .addPublicationErrorHandler(new IPublicationErrorHandler.ConsoleLogger())), synchronous);
+        });
+    }
+
+    public Topic forTopic(SignalTopic topic) {
+        return forTopic(topic.name().toLowerCase(), topic.isSynchronous());
     }
 
-    public SyncMessageBus<Signal> getMain() {
+    public Topic getMain() {
         return forTopic(SignalTopic.Main);
     }
 
+    public boolean isAsync() {
+        return Objects.nonNull(dispatcher);
+    }
+
+    /**
+     * @return How long handlers took to process signals, by handler method
+     */
+    public Map<String, LatencyHistogram> getHandlerLatency() {
+        return Collections.unmodifiableMap(handlers);
+    }
+
 }
@@ -26,6 +26,25 @@ public enum SignalTopic {
     Channel,
     Room,
     SyncRefresh,
-    Store
+    Store,
+    // Revocations must be effective by the time publishing returns
+    Session(true);
+
+    private final boolean synchronous;
+
+    SignalTopic() {
+        this(false);
+    }
+
+    SignalTopic(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    /**
+     * @return If signals of this topic are always dispatched on the publishing thread, even on an asynchronous bus
+     */
+    public boolean isSynchronous() {
+        return synchronous;
+    }
 
 }
@@ -0,0 +1,451 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.core.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.core.auth.Credentials;
+import io.kamax.gridify.server.core.auth.SecureCredentials;
+import io.kamax.gridify.server.core.channel.ChannelDao;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.event.EventStreamID;
+import io.kamax.gridify.server.core.identity.ThreePid;
+import io.kamax.gridify.server.exception.ObjectNotFoundException;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Keep the most used events in memory in front of another store.
+ * <p>
+ * Events are kept by local ID, and their local ID by channel and event ID. Events given out are copies so callers can
+ * change them freely: the event data is shared as it never changes, while meta and extra data are written through to
+ * the underlying store and replaced in memory once saved. Events not found are not remembered, as they can be added
+ * later on.
+ */
+public class CachingDataStore implements DataStore {
+
+    private static class NotFoundException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        NotFoundException() {
+            super(null, null, false, false);
+        }
+
+    }
+
+    private static String makeRef(String cId, String eId) {
+        return cId + "/" + eId;
+    }
+
+    private final DataStore store;
+    private final Cache<Long, ChannelEvent> events;
+    private final Cache<String, Long> lids;
+
+    /**
+     * @param store   The store to cache events of
+     * @param maxSize The maximum amount of events to keep in memory
+     */
+    public CachingDataStore(DataStore store, long maxSize) {
+        this.store = store;
+        this.events = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+        this.lids = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    private static <K, V> Optional<V> find(Cache<K, V> cache, K key, Supplier<Optional<V>> loader) {
+        try {
+            return Optional.of(cache.get(key, () -> loader.get().orElseThrow(NotFoundException::new)));
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof NotFoundException) {
+                return Optional.empty();
+            }
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        } catch (ExecutionException e) {
+            // Our loaders do not throw checked exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void remember(ChannelEvent ev) {
+        if (ev.hasLid()) {
+            events.put(ev.getLid(), ev.copy());
+        }
+    }
+
+    public DataStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The hit, miss, load and eviction counts of events by local ID since creation
+     */
+    public CacheStats getEventStats() {
+        return events.stats();
+    }
+
+    /**
+     * @return The hit, miss, load and eviction counts of local IDs by channel and event ID since creation
+     */
+    public CacheStats getIdStats() {
+        return lids.stats();
+    }
+
+    @Override
+    public void setConfig(String id, JsonElement value) {
+        store.setConfig(id, value);
+    }
+
+    @Override
+    public JsonElement getConfig(String id) {
+        return store.getConfig(id);
+    }
+
+    @Override
+    public List<DomainDao> listDomains(String network) {
+        return store.listDomains(network);
+    }
+
+    @Override
+    public DomainDao saveDomain(DomainDao dao) {
+        return store.saveDomain(dao);
+    }
+
+    @Override
+    public void deleteDomain(DomainDao dao) {
+        store.deleteDomain(dao);
+    }
+
+    @Override
+    public List<ChannelDao> listChannels() {
+        return store.listChannels();
+    }
+
+    @Override
+    public List<ChannelDao> listChannels(String network) {
+        return store.listChannels(network);
+    }
+
+    @Override
+    public Optional<ChannelDao> findChannel(long cLid) {
+        return store.findChannel(cLid);
+    }
+
+    @Override
+    public Optional<ChannelDao> findChannel(String network, String type, String cId) {
+        return store.findChannel(network, type, cId);
+    }
+
+    @Override
+    public long addToStream(EventStreamID streamId, long eLid) {
+        long position = store.addToStream(streamId, eLid);
+        events.invalidate(eLid);
+        return position;
+    }
+
+    @Override
+    public long getStreamPosition(EventStreamID streamId) {
+        return store.getStreamPosition(streamId);
+    }
+
+    @Override
+    public ChannelDao saveChannel(ChannelDao ch) {
+        return store.saveChannel(ch);
+    }
+
+    @Override
+    public ChannelEvent saveEvent(ChannelEvent ev) {
+        ChannelEvent saved = store.saveEvent(ev);
+        remember(saved);
+        return saved;
+    }
+
+    @Override
+    public void commit(List<EventCommit> commits) {
+        try {
+            store.commit(commits);
+        } catch (RuntimeException | Error e) {
+            // We cannot tell what was saved, if anything
+            commits.stream()
+                    .map(EventCommit::getEvent)
+                    .filter(ChannelEvent::hasLid)
+                    .forEach(ev -> events.invalidate(ev.getLid()));
+            throw e;
+        }
+
+        commits.forEach(c -> remember(c.getEvent()));
+    }
+
+    @Override
+    public ChannelEvent getEvent(String cId, String eId) throws ObjectNotFoundException {
+        return findEvent(cId, eId).orElseThrow(() -> new ObjectNotFoundException("Event", cId + "/" + eId));
+    }
+
+    @Override
+    public ChannelEvent getEvent(long eLid) {
+        return findEvent(eLid).orElseThrow(() -> new ObjectNotFoundException("Event", Long.toString(eLid)));
+    }
+
+    @Override
+    public String getEventId(long eLid) {
+        return getEvent(eLid).getId();
+    }
+
+    @Override
+    public long getEventTid(long cLid, String eId) {
+        return store.getEventTid(cLid, eId);
+    }
+
+    @Override
+    public Optional<Long> findEventLid(String cId, String eId) {
+        return find(lids, makeRef(cId, eId), () -> store.findEventLid(cId, eId));
+    }
+
+    @Override
+    public List<ChannelDao> searchForRoomsInUserEvents(String network, String type, String stateKey) {
+        return store.searchForRoomsInUserEvents(network, type, stateKey);
+    }
+
+    @Override
+    public void setUserMembership(UserMembershipDao dao) {
+        store.setUserMembership(dao);
+    }
+
+    @Override
+    public List<UserMembershipDao> listUserMemberships(String network, String userId) {
+        return store.listUserMemberships(network, userId);
+    }
+
+    @Override
+    public List<ChannelEvent> getNext(EventStreamID stream, long lastSid, long amount) {
+        return store.getNext(stream, lastSid, amount);
+    }
+
+    @Override
+    public List<ChannelEvent> getTimelineNext(long cLid, long lastTid, long amount) {
+        return store.getTimelineNext(cLid, lastTid, amount);
+    }
+
+    @Override
+    public List<ChannelEvent> getTimelinePrevious(long cLid, long lastTid, long amount) {
+        return store.getTimelinePrevious(cLid, lastTid, amount);
+    }
+
+    @Override
+    public Optional<ChannelEvent> findEvent(String cId, String eId) {
+        return findEventLid(cId, eId).flatMap(this::findEvent);
+    }
+
+    @Override
+    public List<ChannelEvent> findEvents(String network, String eventId) {
+        return store.findEvents(network, eventId);
+    }
+
+    @Override
+    public Optional<ChannelEvent> findEvent(long eLid) {
+        return find(events, eLid, () -> store.findEvent(eLid)).map(ChannelEvent::copy);
+    }
+
+    @Override
+    public void updateBackwardExtremities(long cLid, List<Long> toRemove, List<Long> toAdd) {
+        store.updateBackwardExtremities(cLid, toRemove, toAdd);
+    }
+
+    @Override
+    public List<Long> getBackwardExtremities(long cLid) {
+        return store.getBackwardExtremities(cLid);
+    }
+
+    @Override
+    public void updateForwardExtremities(long cLid, List<Long> toRemove, List<Long> toAdd) {
+        store.updateForwardExtremities(cLid, toRemove, toAdd);
+    }
+
+    @Override
+    public List<Long> getForwardExtremities(long cLid) {
+        return store.getForwardExtremities(cLid);
+    }
+
+    @Override
+    public long insertIfNew(long cLid, ChannelStateDao state) {
+        return store.insertIfNew(cLid, state);
+    }
+
+    @Override
+    public ChannelStateDao getState(long sLid) {
+        return store.getState(sLid);
+    }
+
+    @Override
+    public void map(long evSid, long sLid) {
+        store.map(evSid, sLid);
+    }
+
+    @Override
+    public ChannelStateDao getStateForEvent(long evLid) {
+        return store.getStateForEvent(evLid);
+    }
+
+    @Override
+    public boolean hasUsername(String username) {
+        return store.hasUsername(username);
+    }
+
+    @Override
+    public long getUserCount() {
+        return store.getUserCount();
+    }
+
+    @Override
+    public long addUser(String id) {
+        return store.addUser(id);
+    }
+
+    @Override
+    public void addCredentials(long userLid, Credentials credentials) {
+        store.addCredentials(userLid, credentials);
+    }
+
+    @Override
+    public SecureCredentials getCredentials(long userLid, String type) {
+        return store.getCredentials(userLid, type);
+    }
+
+    @Override
+    public Optional<UserDao> findUser(long lid) {
+        return store.findUser(lid);
+    }
+
+    @Override
+    public Optional<UserDao> findUser(String id) {
+        return store.findUser(id);
+    }
+
+    @Override
+    public Optional<UserDao> findUserByStoreLink(ThreePid storeId) {
+        return store.findUserByStoreLink(storeId);
+    }
+
+    @Override
+    public Optional<UserDao> findUserByTreePid(ThreePid tpid) {
+        return store.findUserByTreePid(tpid);
+    }
+
+    @Override
+    public boolean hasUserAccessToken(String token) {
+        return store.hasUserAccessToken(token);
+    }
+
+    @Override
+    public void insertUserAccessToken(long uLid, String token) {
+        store.insertUserAccessToken(uLid, token);
+    }
+
+    @Override
+    public void deleteUserAccessToken(String token) {
+        store.deleteUserAccessToken(token);
+    }
+
+    @Override
+    public Optional<String> lookupChannelAlias(String network, String alias) {
+        return store.lookupChannelAlias(network, alias);
+    }
+
+    @Override
+    public Set<String> findChannelAlias(String network, String networkId, String origin) {
+        return store.findChannelAlias(network, networkId, origin);
+    }
+
+    @Override
+    public void setAliases(String network, String networkId, String origin, Set<String> aliases) {
+        store.setAliases(network, networkId, origin, aliases);
+    }
+
+    @Override
+    public void unmap(String network, String cAlias) {
+        store.unmap(network, cAlias);
+    }
+
+    @Override
+    public void linkUserToStore(long userLid, ThreePid storeId) {
+        store.linkUserToStore(userLid, storeId);
+    }
+
+    @Override
+    public Set<ThreePid> listThreePid(long userLid) {
+        return store.listThreePid(userLid);
+    }
+
+    @Override
+    public Set<ThreePid> listThreePid(long userLid, String medium) {
+        return store.listThreePid(userLid, medium);
+    }
+
+    @Override
+    public void addThreePid(long userLid, ThreePid tpid) {
+        store.addThreePid(userLid, tpid);
+    }
+
+    @Override
+    public void removeThreePid(long userLid, ThreePid tpid) {
+        store.removeThreePid(userLid, tpid);
+    }
+
+    @Override
+    public void setStreamIdForDestination(String destinationType, String destination, String scope, long streamId) {
+        store.setStreamIdForDestination(destinationType, destination, scope, streamId);
+    }
+
+    @Override
+    public Map<String, Long> getStreamIdsForDestinations(String destinationType, String scope) {
+        return store.getStreamIdsForDestinations(destinationType, scope);
+    }
+
+    @Override
+    public Optional<JsonObject> findTransaction(String scope, String txnId) {
+        return store.findTransaction(scope, txnId);
+    }
+
+    @Override
+    public void saveTransaction(String scope, String txnId, JsonObject result) {
+        store.saveTransaction(scope, txnId, result);
+    }
+
+    @Override
+    public void deleteTransactionsBefore(long timestamp) {
+        store.deleteTransactionsBefore(timestamp);
+    }
+
+}
@@ -20,13 +20,31 @@
 
 package io.kamax.gridify.server.core.store;
 
+import com.google.gson.JsonObject;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.StateKey;
+import io.kamax.gridify.server.util.GsonUtil;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 public class ChannelStateDao {
 
+    // Matrix events use state_key, Grid events use scope
+    public static StateKey getKey(ChannelEvent ev) {
+        JsonObject data = ev.getData();
+        if (Objects.isNull(data)) {
+            return StateKey.of(null, Long.toString(ev.getLid()));
+        }
+
+        String scope = GsonUtil.findString(data, "state_key").orElseGet(() -> GsonUtil.getStringOrNull(data, "scope"));
+        return StateKey.of(GsonUtil.getStringOrNull(data, "type"), scope).intern();
+    }
+
     private Long sid;
+    private Long parentSid;
+    private List<ChannelEvent> delta = Collections.emptyList();
     private boolean trusted = false;
     private boolean complete = false;
     private boolean finall = false; // because final is a reserved keyword
@@ -37,6 +55,12 @@ public class ChannelStateDao {
         this.events = events;
     }
 
+    public ChannelStateDao(Long sid, Long parentSid, List<ChannelEvent> delta, List<ChannelEvent> events) {
+        this(sid, events);
+        this.parentSid = parentSid;
+        this.delta = delta;
+    }
+
     public Long getSid() {
         return sid;
     }
@@ -45,6 +69,27 @@ public class ChannelStateDao {
         this.sid = sid;
     }
 
+    public boolean hasParent() {
+        return Objects.nonNull(parentSid) && parentSid > 0;
+    }
+
+    public Long getParentSid() {
+        return parentSid;
+    }
+
+    public void setParentSid(Long parentSid) {
+        this.parentSid = parentSid;
+    }
+
+    // Events which changed since the parent state, if any
+    public List<ChannelEvent> getDelta() {
+        return delta;
+    }
+
+    public void setDelta(List<ChannelEvent> delta) {
+        this.delta = delta;
+    }
+
     public boolean isTrusted() {
         return trusted;
     }
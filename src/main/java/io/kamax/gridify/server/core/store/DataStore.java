@@ -35,9 +35,8 @@ import io.kamax.gridify.server.network.grid.core.ServerID;
 import io.kamax.gridify.server.network.matrix.core.room.RoomState;
 import io.kamax.gridify.server.util.GsonUtil;
 
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public interface DataStore {
 
@@ -100,6 +99,55 @@ public interface DataStore {
 
     ChannelEvent saveEvent(ChannelEvent ev);
 
+    /**
+     * Commit accepted events as a single unit: the event, its state and state mapping, the forward extremities, the
+     * stream position and the user memberships. Commits are applied in order, so an event can refer to one before it.
+     * <p>
+     * This default implementation relies on the individual operations and offers no atomicity, stores are expected to
+     * do better.
+     *
+     * @param commits The events to commit, in order
+     */
+    default void commit(List<EventCommit> commits) {
+        for (EventCommit c : commits) {
+            ChannelEvent ev = saveEvent(c.getEvent());
+            long cLid = ev.getChannelSid();
+
+            if (c.hasState()) {
+                long sLid = insertIfNew(cLid, c.getState());
+                map(ev.getLid(), sLid);
+                c.setStateSid(sLid);
+            }
+
+            if (c.isExtremity()) {
+                List<Long> toRemove;
+                if (c.isSoleExtremity()) {
+                    toRemove = getForwardExtremities(cLid);
+                } else {
+                    String cId = getChannel(cLid).getId();
+                    toRemove = c.getPreviousEvents().stream()
+                            .map(id -> findEventLid(cId, id))
+                            .filter(Optional::isPresent)
+                            .map(Optional::get)
+                            .collect(Collectors.toList());
+                }
+                updateForwardExtremities(cLid, toRemove, Collections.singletonList(ev.getLid()));
+            }
+
+            if (Objects.nonNull(c.getStream())) {
+                long position = addToStream(c.getStream(), ev.getLid());
+                ev.setSid(position);
+                c.setStreamSid(position);
+                c.getMemberships().forEach((userId, membership) ->
+                        setUserMembership(new UserMembershipDao(userId, cLid, membership, ev.getLid(), position)));
+            }
+        }
+    }
+
+    default void commit(EventCommit commit) {
+        commit(Collections.singletonList(commit));
+    }
+
     ChannelEvent getEvent(String cId, String eId) throws ObjectNotFoundException;
 
     ChannelEvent getEvent(long eLid);
@@ -112,6 +160,23 @@ public interface DataStore {
 
     List<ChannelDao> searchForRoomsInUserEvents(String network, String type, String stateKey);
 
+    /**
+     * Record the membership of a user in a channel. Nothing is changed if a membership with a higher stream position is
+     * already recorded for the same user and channel.
+     *
+     * @param dao The membership to record
+     */
+    void setUserMembership(UserMembershipDao dao);
+
+    /**
+     * List the channels a user has a membership in, whatever it is
+     *
+     * @param network The network of the channels
+     * @param userId  The ID of the user
+     * @return The latest membership of the user in each channel, with the channel ID set
+     */
+    List<UserMembershipDao> listUserMemberships(String network, String userId);
+
     // Get the N next events. next = Higher SID. last SID is not included.
     List<ChannelEvent> getNext(EventStreamID stream, long lastSid, long amount);
 
@@ -136,11 +201,11 @@ public interface DataStore {
     long insertIfNew(long cLid, ChannelStateDao state);
 
     default long insertIfNew(long channelLocalId, ChannelState state) {
-        return insertIfNew(channelLocalId, new ChannelStateDao(state.getSid(), state.getEvents()));
+        return insertIfNew(channelLocalId, new ChannelStateDao(state.getSid(), state.getParentSid(), state.getDelta(), state.getEvents()));
     }
 
     default long insertIfNew(long cLid, RoomState state) {
-        return insertIfNew(cLid, new ChannelStateDao(state.getSid(), state.getEvents()));
+        return insertIfNew(cLid, new ChannelStateDao(state.getSid(), state.getParentSid(), state.getDelta(), state.getEvents()));
     }
 
     ChannelStateDao getState(long sLid);
@@ -202,4 +267,38 @@ public interface DataStore {
 
     void setStreamIdForDestination(String destinationType, String destination, String scope, long streamId);
 
+    /**
+     * Get the stream positions previously set for destinations
+     *
+     * @param destinationType The type of destinations
+     * @param scope           The scope the positions were set with
+     * @return The stream position of each destination, by destination
+     */
+    Map<String, Long> getStreamIdsForDestinations(String destinationType, String scope);
+
+    /**
+     * Find the result of a transaction that was already processed
+     *
+     * @param scope Who the transaction ID is unique for, like a remote server or a client session
+     * @param txnId The transaction ID
+     * @return The result of the transaction, if it was processed
+     */
+    Optional<JsonObject> findTransaction(String scope, String txnId);
+
+    /**
+     * Keep the result of a processed transaction. A result already kept for the transaction is left as is.
+     *
+     * @param scope  Who the transaction ID is unique for
+     * @param txnId  The transaction ID
+     * @param result The result of the transaction
+     */
+    void saveTransaction(String scope, String txnId, JsonObject result);
+
+    /**
+     * Forget the results of transactions
+     *
+     * @param timestamp Results kept before this time, in milliseconds since the epoch, are removed
+     */
+    void deleteTransactionsBefore(long timestamp);
+
 }
@@ -0,0 +1,145 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.core.store;
+
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.ChannelState;
+import io.kamax.gridify.server.core.event.EventStreamID;
+import io.kamax.gridify.server.network.matrix.core.room.RoomState;
+
+import java.util.*;
+
+/**
+ * Everything to store when an event is accepted into its channel, so it can be committed as a single unit.
+ * <p>
+ * Only the event itself is mandatory. The stored state ID and stream position are set once committed.
+ */
+public class EventCommit {
+
+    private final ChannelEvent event;
+    private ChannelStateDao state;
+    private boolean extremity;
+    private boolean soleExtremity;
+    private List<String> previousEvents = Collections.emptyList();
+    private EventStreamID stream;
+    private final Map<String, String> memberships = new LinkedHashMap<>();
+
+    private Long stateSid;
+    private Long streamSid;
+
+    public EventCommit(ChannelEvent event) {
+        this.event = Objects.requireNonNull(event);
+    }
+
+    public ChannelEvent getEvent() {
+        return event;
+    }
+
+    public boolean hasState() {
+        return Objects.nonNull(state);
+    }
+
+    public ChannelStateDao getState() {
+        return state;
+    }
+
+    // The state after the event, stored if new and mapped to the event
+    public void setState(ChannelStateDao state) {
+        this.state = state;
+    }
+
+    public void setState(ChannelState state) {
+        setState(new ChannelStateDao(state.getSid(), state.getParentSid(), state.getDelta(), state.getEvents()));
+    }
+
+    public void setState(RoomState state) {
+        setState(new ChannelStateDao(state.getSid(), state.getParentSid(), state.getDelta(), state.getEvents()));
+    }
+
+    public boolean isExtremity() {
+        return extremity;
+    }
+
+    public boolean isSoleExtremity() {
+        return soleExtremity;
+    }
+
+    public List<String> getPreviousEvents() {
+        return previousEvents;
+    }
+
+    // The event becomes a forward extremity, replacing the given previous events
+    public void setExtremity(List<String> previousEvents) {
+        this.extremity = true;
+        this.soleExtremity = false;
+        this.previousEvents = new ArrayList<>(previousEvents);
+    }
+
+    // The event becomes the only forward extremity, like a seed
+    public void setSoleExtremity() {
+        this.extremity = true;
+        this.soleExtremity = true;
+        this.previousEvents = Collections.emptyList();
+    }
+
+    public EventStreamID getStream() {
+        return stream;
+    }
+
+    public void setStream(EventStreamID stream) {
+        this.stream = stream;
+    }
+
+    public Map<String, String> getMemberships() {
+        return Collections.unmodifiableMap(memberships);
+    }
+
+    // Recorded with the stream position of the event, which requires a stream
+    public void addMembership(String userId, String membership) {
+        memberships.put(userId, membership);
+    }
+
+    public long getStateSid() {
+        if (Objects.isNull(stateSid)) {
+            throw new IllegalStateException("State was not committed");
+        }
+
+        return stateSid;
+    }
+
+    public void setStateSid(long stateSid) {
+        this.stateSid = stateSid;
+    }
+
+    public long getStreamSid() {
+        if (Objects.isNull(streamSid)) {
+            throw new IllegalStateException("Event was not added to a stream");
+        }
+
+        return streamSid;
+    }
+
+    public void setStreamSid(long streamSid) {
+        this.streamSid = streamSid;
+    }
+
+}
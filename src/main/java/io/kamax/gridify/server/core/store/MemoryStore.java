@@ -21,6 +21,7 @@
 package io.kamax.gridify.server.core.store;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.kamax.gridify.server.config.IdentityConfig;
 import io.kamax.gridify.server.core.GridType;
 import io.kamax.gridify.server.core.auth.Credentials;
@@ -104,7 +105,10 @@ public class MemoryStore implements DataStore, IdentityStore {
     private final Map<Long, Long> evSidToLid = new ConcurrentHashMap<>();
     private final Map<Long, Long> evLidToSid = new ConcurrentHashMap<>();
 
-    private final Map<String, Long> destsStreamId = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> destsStreamId = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, UserMembershipDao>> userMemberships = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, JsonObject>> txns = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> txnTimestamps = new ConcurrentHashMap<>();
 
     private MemoryStore() {
         // only via static
@@ -233,6 +237,11 @@ public class MemoryStore implements DataStore, IdentityStore {
         return ev;
     }
 
+    @Override
+    public synchronized void commit(List<EventCommit> commits) {
+        DataStore.super.commit(commits);
+    }
+
     @Override
     public synchronized ChannelEvent getEvent(String cId, String eId) throws ObjectNotFoundException {
         log.debug("Getting Event {}/{}", cId, eId);
@@ -261,7 +270,35 @@ public class MemoryStore implements DataStore, IdentityStore {
 
     @Override
     public List<ChannelDao> searchForRoomsInUserEvents(String network, String type, String stateKey) {
-        return null;
+        return chEvents.values().stream()
+                .filter(ev -> ev.getMeta().isProcessed() && ev.getMeta().isAllowed())
+                .filter(ev -> Objects.nonNull(ev.getData()))
+                .filter(ev -> StringUtils.equals(type, GsonUtil.getStringOrNull(ev.getData(), "type")))
+                .filter(ev -> StringUtils.equals(stateKey, GsonUtil.getStringOrNull(ev.getData(), "state_key")))
+                .map(ev -> channels.get(ev.getChannelSid()))
+                .filter(dao -> Objects.nonNull(dao) && StringUtils.equals(network, dao.getNetwork()))
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void setUserMembership(UserMembershipDao dao) {
+        userMemberships.computeIfAbsent(dao.getUserId(), k -> new ConcurrentHashMap<>())
+                .merge(dao.getChannelLid(), dao, (o, n) -> n.getStreamSid() >= o.getStreamSid() ? n : o);
+    }
+
+    @Override
+    public List<UserMembershipDao> listUserMemberships(String network, String userId) {
+        List<UserMembershipDao> memberships = new ArrayList<>();
+        userMemberships.getOrDefault(userId, Collections.emptyMap()).values().forEach(m -> {
+            ChannelDao ch = channels.get(m.getChannelLid());
+            if (Objects.nonNull(ch) && StringUtils.equals(network, ch.getNetwork())) {
+                UserMembershipDao dao = new UserMembershipDao(m.getUserId(), m.getChannelLid(), m.getMembership(), m.getEventLid(), m.getStreamSid());
+                dao.setChannelId(ch.getId());
+                memberships.add(dao);
+            }
+        });
+        return memberships;
     }
 
     @Override
@@ -277,7 +314,9 @@ public class MemoryStore implements DataStore, IdentityStore {
             }
 
             log.info("Found next event SID {}, adding", lastSid);
-            events.add(getEvent(evSidToLid.get(lastSid)));
+            ChannelEvent ev = getEvent(evSidToLid.get(lastSid));
+            ev.setSid(lastSid);
+            events.add(ev);
             log.info("Incrementing SID");
         }
 
@@ -610,7 +649,37 @@ public class MemoryStore implements DataStore, IdentityStore {
 
     @Override
     public void setStreamIdForDestination(String destinationType, String destination, String scope, long streamId) {
-        destsStreamId.put(destinationType + ":" + destination, streamId);
+        destsStreamId.computeIfAbsent(destinationType + ":" + scope, k -> new ConcurrentHashMap<>())
+                .merge(destination, streamId, Math::max);
+    }
+
+    @Override
+    public Map<String, Long> getStreamIdsForDestinations(String destinationType, String scope) {
+        return new HashMap<>(destsStreamId.getOrDefault(destinationType + ":" + scope, Collections.emptyMap()));
+    }
+
+    @Override
+    public Optional<JsonObject> findTransaction(String scope, String txnId) {
+        return Optional.ofNullable(txns.getOrDefault(scope, Collections.emptyMap()).get(txnId)).map(JsonObject::deepCopy);
+    }
+
+    @Override
+    public synchronized void saveTransaction(String scope, String txnId, JsonObject result) {
+        if (Objects.isNull(txns.computeIfAbsent(scope, k -> new ConcurrentHashMap<>()).putIfAbsent(txnId, result.deepCopy()))) {
+            txnTimestamps.computeIfAbsent(scope, k -> new ConcurrentHashMap<>()).put(txnId, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public synchronized void deleteTransactionsBefore(long timestamp) {
+        txnTimestamps.forEach((scope, ids) -> ids.entrySet().removeIf(txn -> {
+            if (txn.getValue() >= timestamp) {
+                return false;
+            }
+
+            txns.get(scope).remove(txn.getKey());
+            return true;
+        }));
     }
 
     @Override
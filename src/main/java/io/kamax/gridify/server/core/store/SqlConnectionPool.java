@@ -1,6 +1,6 @@
 /*
  * Gridify Server
- * Copyright (C) 2019 Kamax Sarl
+ * Copyright (C) 2021 Kamax Sarl
  *
  * https://www.kamax.io/
  *
@@ -18,35 +18,188 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package io.kamax.gridify.server.core.store;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import io.kamax.gridify.server.config.StorageConfig;
 import io.kamax.gridify.server.exception.ConfigurationException;
+import io.kamax.gridify.server.util.KxLog;
+import io.kamax.gridify.server.util.LatencyHistogram;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
 
+import java.lang.invoke.MethodHandles;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SqlConnectionPool {
 
-    private ComboPooledDataSource ds;
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    // Waiting longer than this for a connection is logged, as the pool is most likely too small
+    private static final long checkoutWarnThreshold = TimeUnit.SECONDS.toNanos(1);
+
+    public static class Stats {
+
+        private final int size;
+        private final int maxSize;
+        private final int busy;
+        private final int idle;
+        private final int waiting;
+        private final long checkoutFailures;
+
+        private Stats(int size, int maxSize, int busy, int idle, int waiting, long checkoutFailures) {
+            this.size = size;
+            this.maxSize = maxSize;
+            this.busy = busy;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.checkoutFailures = checkoutFailures;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public int getBusy() {
+            return busy;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return The amount of threads waiting for a connection
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        /**
+         * @return The amount of times no connection could be obtained, most likely within the checkout timeout
+         */
+        public long getCheckoutFailures() {
+            return checkoutFailures;
+        }
+
+        /**
+         * @return The ratio of busy connections over the maximum pool size
+         */
+        public double getUtilization() {
+            return maxSize == 0 ? 0 : (double) busy / maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return "busy=" + busy + "/" + maxSize + ", idle=" + idle + ", waiting=" + waiting + ", checkoutFailures=" + checkoutFailures;
+        }
+
+    }
+
+    private final ComboPooledDataSource ds;
+    private final LatencyHistogram checkoutWait = new LatencyHistogram();
+    private final LongAdder checkoutFailures = new LongAdder();
+    private final Map<String, LatencyHistogram> queries = new ConcurrentHashMap<>();
 
     public SqlConnectionPool(StorageConfig cfg) {
-        if (StringUtils.isBlank(cfg.getDatabase().getType())) {
+        String type = cfg.getDatabase().getType();
+        if (StringUtils.isBlank(type)) {
             throw new ConfigurationException("Database type cannot be blank");
         }
 
+        StorageConfig.Pool poolCfg = cfg.getDatabase().getPool();
+        if (poolCfg.getMaxSize() < 1 || poolCfg.getMinSize() < 0 || poolCfg.getMinSize() > poolCfg.getMaxSize()) {
+            throw new ConfigurationException("Database pool size must be between 0 and a maximum of at least 1");
+        }
+
+        String connection = cfg.getDatabase().getConnection();
+        if (StringUtils.equals("postgresql", type)) {
+            // The driver prepares a query on the server once it was run that many times on a connection, 0 never does
+            int threshold = poolCfg.isServerPreparedStatements() ? 1 : 0;
+            connection += (StringUtils.contains(connection, "?") ? "&" : "?") + "prepareThreshold=" + threshold;
+        }
+
         ds = new ComboPooledDataSource();
-        ds.setJdbcUrl("jdbc:" + cfg.getDatabase().getType() + ":" + cfg.getDatabase().getConnection());
-        ds.setAcquireRetryAttempts(cfg.getDatabase().getPool().getRetryAttempts());
-        ds.setMinPoolSize(1);
-        ds.setMaxPoolSize(10);
-        ds.setAcquireIncrement(2);
+        ds.setJdbcUrl("jdbc:" + type + ":" + connection);
+        ds.setAcquireRetryAttempts(poolCfg.getRetryAttempts());
+        ds.setMinPoolSize(poolCfg.getMinSize());
+        ds.setInitialPoolSize(poolCfg.getMinSize());
+        ds.setMaxPoolSize(poolCfg.getMaxSize());
+        ds.setAcquireIncrement(poolCfg.getAcquireIncrement());
+        ds.setCheckoutTimeout((int) Math.min(Integer.MAX_VALUE, poolCfg.getCheckoutTimeout()));
+        ds.setMaxConnectionAge((int) Math.min(Integer.MAX_VALUE, poolCfg.getMaxConnectionAge()));
+        ds.setMaxIdleTimeExcessConnections((int) Math.min(Integer.MAX_VALUE, poolCfg.getMaxIdleTime()));
+        ds.setMaxStatementsPerConnection(poolCfg.getMaxStatementsPerConnection());
     }
 
     public Connection get() throws SQLException {
-        return ds.getConnection();
+        long start = System.nanoTime();
+        try {
+            Connection conn = ds.getConnection();
+            long waited = System.nanoTime() - start;
+            checkoutWait.record(waited);
+            if (waited > checkoutWarnThreshold) {
+                log.warn("Waited {} ms for a DB connection - {}", TimeUnit.NANOSECONDS.toMillis(waited), getStats());
+            }
+            return conn;
+        } catch (SQLException e) {
+            checkoutWait.recordSince(start);
+            checkoutFailures.increment();
+            log.warn("Could not get a DB connection after {} ms - {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), getStats());
+            // Callers can tell the pool is exhausted or the DB unreachable, and try again later
+            throw new SQLTransientConnectionException("Could not get a DB connection", "08001", e);
+        }
+    }
+
+    /**
+     * Record how long a query took
+     *
+     * @param sql   The SQL of the query
+     * @param nanos How long it took, in nanoseconds
+     */
+    public void record(String sql, long nanos) {
+        queries.computeIfAbsent(sql, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    public Stats getStats() {
+        try {
+            return new Stats(
+                    ds.getNumConnectionsDefaultUser(),
+                    ds.getMaxPoolSize(),
+                    ds.getNumBusyConnectionsDefaultUser(),
+                    ds.getNumIdleConnectionsDefaultUser(),
+                    ds.getNumThreadsAwaitingCheckoutDefaultUser(),
+                    checkoutFailures.sum()
+            );
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return How long threads waited to get a connection
+     */
+    public LatencyHistogram getCheckoutWait() {
+        return checkoutWait;
+    }
+
+    /**
+     * @return How long queries took, by SQL
+     */
+    public Map<String, LatencyHistogram> getQueryLatency() {
+        return Collections.unmodifiableMap(queries);
     }
 
 }
@@ -0,0 +1,147 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.core.store;
+
+import io.kamax.gridify.server.core.event.EventStreamID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Hand out positions in event streams and keep track, in memory, of up to where each stream can be read.
+ * <p>
+ * Positions are reserved from the store in blocks, then handed out from memory. As events given a position can be
+ * committed out of order, the position of a stream only moves past a position once it is finished, meaning committed
+ * or abandoned, and so are all the ones before it. Readers going up to the stream position never skip an event still
+ * being committed.
+ */
+public class StreamPositions {
+
+    private static class Stream {
+
+        private final Deque<Long> reserved = new ArrayDeque<>();
+        private final TreeSet<Long> pending = new TreeSet<>();
+        private Long last; // Last position allocated or already in the stream, if any
+        private volatile long position;
+
+        private Stream(Long last) {
+            this.last = last;
+            this.position = Objects.isNull(last) ? 0L : last;
+        }
+
+    }
+
+    private final Map<EventStreamID, Stream> streams = new ConcurrentHashMap<>();
+    private final Function<EventStreamID, Long> loader;
+    private final BiFunction<EventStreamID, Integer, List<Long>> reserver;
+    private final int blockSize;
+
+    /**
+     * @param loader    Give the highest position already in a stream, or null if empty, used once per stream
+     * @param reserver  Reserve new positions in a stream, in increasing order and above any given before
+     * @param blockSize How many positions to reserve at once
+     */
+    public StreamPositions(Function<EventStreamID, Long> loader, BiFunction<EventStreamID, Integer, List<Long>> reserver, int blockSize) {
+        this.loader = loader;
+        this.reserver = reserver;
+        this.blockSize = blockSize;
+    }
+
+    private Stream get(EventStreamID id) {
+        return streams.computeIfAbsent(id, k -> new Stream(loader.apply(k)));
+    }
+
+    /**
+     * Allocate new positions in a stream. They must be given to {@link #finish(EventStreamID, Collection)} once
+     * committed or abandoned, or the stream position will not move past them.
+     *
+     * @param id     The stream
+     * @param amount How many positions to allocate
+     * @return The positions, in increasing order
+     */
+    public List<Long> allocate(EventStreamID id, int amount) {
+        Stream s = get(id);
+        synchronized (s) {
+            if (s.reserved.size() < amount) {
+                List<Long> block = reserver.apply(id, Math.max(blockSize, amount - s.reserved.size()));
+                for (long position : block) {
+                    Long previous = s.reserved.isEmpty() ? s.last : s.reserved.getLast();
+                    if (Objects.nonNull(previous) && position <= previous) {
+                        throw new IllegalStateException("Stream " + id + ": position " + position + " was reserved out of order");
+                    }
+
+                    s.reserved.addLast(position);
+                }
+            }
+
+            List<Long> positions = new ArrayList<>(amount);
+            for (int i = 0; i < amount; i++) {
+                long position = s.reserved.removeFirst();
+                s.pending.add(position);
+                s.last = position;
+                positions.add(position);
+            }
+            return positions;
+        }
+    }
+
+    public long allocate(EventStreamID id) {
+        return allocate(id, 1).get(0);
+    }
+
+    /**
+     * Mark positions as committed or abandoned, moving the stream position forward if possible
+     *
+     * @param id        The stream
+     * @param positions The positions, as previously allocated
+     */
+    public void finish(EventStreamID id, Collection<Long> positions) {
+        Stream s = get(id);
+        synchronized (s) {
+            s.pending.removeAll(positions);
+            if (!s.pending.isEmpty()) {
+                long first = s.pending.first();
+                // Nothing can be read before the lowest position, so the previous one stands
+                if (first != Long.MIN_VALUE) {
+                    s.position = first - 1;
+                }
+            } else if (Objects.nonNull(s.last)) {
+                s.position = s.last;
+            }
+        }
+    }
+
+    public void finish(EventStreamID id, long position) {
+        finish(id, Collections.singletonList(position));
+    }
+
+    /**
+     * @param id The stream
+     * @return The highest position up to which the stream can be read
+     */
+    public long getPosition(EventStreamID id) {
+        return get(id).position;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.core.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.config.StorageConfig;
+import io.kamax.gridify.server.util.KxLog;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Process each transaction once, giving back the result of the first run to retries.
+ * <p>
+ * Results are kept in the store for a while, and the most recent ones in memory. Concurrent retries of a transaction
+ * still being processed wait for its result. A transaction that fails is not remembered and can be retried.
+ */
+public class TransactionCache {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private final DataStore store;
+    private final Cache<String, JsonObject> results;
+    private final long retention;
+    private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+    public TransactionCache(DataStore store, StorageConfig.Transactions cfg) {
+        this.store = store;
+        this.results = CacheBuilder.newBuilder().maximumSize(cfg.getCacheSize()).recordStats().build();
+        this.retention = TimeUnit.SECONDS.toMillis(cfg.getRetention());
+    }
+
+    /**
+     * Process a transaction, unless it was already
+     *
+     * @param scope  Who the transaction ID is unique for, like a remote server or a client session
+     * @param txnId  The transaction ID
+     * @param action How to process the transaction
+     * @return The result of the first successful processing of the transaction
+     */
+    public JsonObject process(String scope, String txnId, Supplier<JsonObject> action) {
+        try {
+            return results.get(scope + "\n" + txnId, () -> load(scope, txnId, action)).deepCopy();
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        } catch (ExecutionException e) {
+            // Our loader does not throw checked exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private JsonObject load(String scope, String txnId, Supplier<JsonObject> action) {
+        Optional<JsonObject> stored = store.findTransaction(scope, txnId);
+        if (stored.isPresent()) {
+            log.debug("Transaction {}/{} was already processed", scope, txnId);
+            return stored.get();
+        }
+
+        JsonObject result = action.get();
+        store.saveTransaction(scope, txnId, result);
+        purge();
+        return result.deepCopy();
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        long last = lastPurge.get();
+        // Old results are removed a few times per retention period, by whoever gets there first
+        if (now - last < retention / 10 || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+
+        store.deleteTransactionsBefore(now - retention);
+    }
+
+    /**
+     * @return The hit, miss and eviction counts of results kept in memory
+     */
+    public CacheStats getStats() {
+        return results.stats();
+    }
+
+}
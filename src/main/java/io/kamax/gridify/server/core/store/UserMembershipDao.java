@@ -0,0 +1,71 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.core.store;
+
+/**
+ * The latest membership of a user in a channel, kept up to date as membership events are accepted.
+ */
+public class UserMembershipDao {
+
+    private final String userId;
+    private final long channelLid;
+    private String channelId; // Only set when read from the store
+    private final String membership;
+    private final long eventLid;
+    private final long streamSid;
+
+    public UserMembershipDao(String userId, long channelLid, String membership, long eventLid, long streamSid) {
+        this.userId = userId;
+        this.channelLid = channelLid;
+        this.membership = membership;
+        this.eventLid = eventLid;
+        this.streamSid = streamSid;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public long getChannelLid() {
+        return channelLid;
+    }
+
+    public String getChannelId() {
+        return channelId;
+    }
+
+    public void setChannelId(String channelId) {
+        this.channelId = channelId;
+    }
+
+    public String getMembership() {
+        return membership;
+    }
+
+    public long getEventLid() {
+        return eventLid;
+    }
+
+    public long getStreamSid() {
+        return streamSid;
+    }
+
+}
@@ -37,6 +37,7 @@ public class FileKeyJson {
     private boolean isValid;
     private String purpose;
     private String key;
+    private String publicKey;
 
     public String getVersion() {
         return version;
@@ -70,4 +71,12 @@ public class FileKeyJson {
         this.key = key;
     }
 
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    public void setPublicKey(String publicKey) {
+        this.publicKey = publicKey;
+    }
+
 }
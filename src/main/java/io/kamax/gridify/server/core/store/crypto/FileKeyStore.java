@@ -39,12 +39,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class FileKeyStore implements KeyStore {
 
     private final String base;
 
+    // Public key index, persisted within each key file and rebuilt from them on startup
+    private final Map<String, KeyIdentifier> byPublicKey = new ConcurrentHashMap<>();
+    private final Map<KeyIdentifier, String> publicKeys = new ConcurrentHashMap<>();
+    private final List<Consumer<KeyIdentifier>> listeners = new CopyOnWriteArrayList<>();
+
     public FileKeyStore(String path) {
         if (StringUtils.isBlank(path)) {
             throw new IllegalArgumentException("File key store location cannot be blank");
@@ -64,6 +74,13 @@ public class FileKeyStore implements KeyStore {
         if (!f.isDirectory()) {
             throw new RuntimeException("Key store path is not a directory: " + f);
         }
+
+        for (KeyIdentifier id : list()) {
+            String publicKey = read(getFile(id), id).getPublicKey();
+            if (StringUtils.isNotBlank(publicKey)) {
+                index(id, publicKey);
+            }
+        }
     }
 
     private Path ensureDirExists(KeyIdentifier id) {
@@ -84,6 +101,44 @@ public class FileKeyStore implements KeyStore {
         return b.toPath();
     }
 
+    private File getFile(KeyIdentifier id) {
+        return ensureDirExists(id).resolve(id.getSerial()).toFile();
+    }
+
+    private FileKeyJson read(File keyFile, KeyIdentifier id) {
+        try (FileInputStream keyIs = new FileInputStream(keyFile)) {
+            return GsonUtil.get().fromJson(IOUtils.toString(keyIs, StandardCharsets.UTF_8), FileKeyJson.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read key " + id.getId(), e);
+        }
+    }
+
+    private void write(File keyFile, FileKeyJson json, KeyIdentifier id) {
+        try (FileOutputStream keyOs = new FileOutputStream(keyFile, false)) {
+            IOUtils.write(GsonUtil.get().toJson(json), keyOs, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write key " + id.getId(), e);
+        }
+    }
+
+    private void index(KeyIdentifier id, String publicKey) {
+        id = new GenericKeyIdentifier(id);
+        unindex(id);
+        byPublicKey.put(publicKey, id);
+        publicKeys.put(id, publicKey);
+    }
+
+    private void notify(KeyIdentifier id) {
+        listeners.forEach(l -> l.accept(id));
+    }
+
+    private void unindex(KeyIdentifier id) {
+        String publicKey = publicKeys.remove(new GenericKeyIdentifier(id));
+        if (Objects.nonNull(publicKey)) {
+            byPublicKey.remove(publicKey);
+        }
+    }
+
     @Override
     public boolean has(KeyIdentifier id) {
         return Paths.get(base, id.getAlgorithm(), id.getSerial()).toFile().isFile();
@@ -115,22 +170,18 @@ public class FileKeyStore implements KeyStore {
 
     @Override
     public Key get(KeyIdentifier id) throws ObjectNotFoundException {
-        File keyFile = ensureDirExists(id).resolve(id.getSerial()).toFile();
+        File keyFile = getFile(id);
         if (!keyFile.exists() || !keyFile.isFile()) {
             throw new ObjectNotFoundException("Key", id.getId());
         }
 
-        try (FileInputStream keyIs = new FileInputStream(keyFile)) {
-            FileKeyJson json = GsonUtil.get().fromJson(IOUtils.toString(keyIs, StandardCharsets.UTF_8), FileKeyJson.class);
-            return new GenericKey(id, json.isValid(), json.getPurpose(), json.getKey());
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to read key " + id.getId(), e);
-        }
+        FileKeyJson json = read(keyFile, id);
+        return new GenericKey(id, json.isValid(), json.getPurpose(), json.getKey());
     }
 
     @Override
     public void add(Key key) throws IllegalStateException {
-        File keyFile = ensureDirExists(key.getId()).resolve(key.getId().getSerial()).toFile();
+        File keyFile = getFile(key.getId());
         if (keyFile.exists()) {
             throw new IllegalStateException("Key " + key.getId().getId() + " already exists");
         }
@@ -145,22 +196,25 @@ public class FileKeyStore implements KeyStore {
 
     @Override
     public void update(Key key) throws ObjectNotFoundException {
-        File keyFile = ensureDirExists(key.getId()).resolve(key.getId().getSerial()).toFile();
+        File keyFile = getFile(key.getId());
         if (!keyFile.exists() || !keyFile.isFile()) {
             throw new ObjectNotFoundException("Key", key.getId().getId());
         }
 
         FileKeyJson json = FileKeyJson.get(key);
-        try (FileOutputStream keyOs = new FileOutputStream(keyFile, false)) {
-            IOUtils.write(GsonUtil.get().toJson(json), keyOs, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to create key " + key.getId().getId(), e);
+        FileKeyJson previous = read(keyFile, key.getId());
+        if (StringUtils.equals(previous.getKey(), json.getKey())) {
+            json.setPublicKey(previous.getPublicKey());
+        } else {
+            unindex(key.getId());
         }
+        write(keyFile, json, key.getId());
+        notify(key.getId());
     }
 
     @Override
     public void delete(KeyIdentifier id) throws ObjectNotFoundException {
-        File keyFile = ensureDirExists(id).resolve(id.getSerial()).toFile();
+        File keyFile = getFile(id);
         if (!keyFile.exists() || !keyFile.isFile()) {
             throw new ObjectNotFoundException("Key", id.getId());
         }
@@ -168,6 +222,37 @@ public class FileKeyStore implements KeyStore {
         if (!keyFile.delete()) {
             throw new RuntimeException("Unable to delete key " + id.getId());
         }
+
+        unindex(id);
+        notify(id);
+    }
+
+    @Override
+    public void setPublicKey(KeyIdentifier id, String publicKeyBase64) throws ObjectNotFoundException {
+        File keyFile = getFile(id);
+        if (!keyFile.exists() || !keyFile.isFile()) {
+            throw new ObjectNotFoundException("Key", id.getId());
+        }
+
+        FileKeyJson json = read(keyFile, id);
+        json.setPublicKey(publicKeyBase64);
+        write(keyFile, json, id);
+        index(id, publicKeyBase64);
+    }
+
+    @Override
+    public Optional<String> getPublicKey(KeyIdentifier id) {
+        return Optional.ofNullable(publicKeys.get(new GenericKeyIdentifier(id)));
+    }
+
+    @Override
+    public Optional<KeyIdentifier> findByPublicKey(String publicKeyBase64) {
+        return Optional.ofNullable(byPublicKey.get(publicKeyBase64));
+    }
+
+    @Override
+    public void addListener(Consumer<KeyIdentifier> listener) {
+        listeners.add(listener);
     }
 
 }
@@ -25,6 +25,8 @@ import io.kamax.gridify.server.core.crypto.KeyIdentifier;
 import io.kamax.gridify.server.exception.ObjectNotFoundException;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * DataStore to persist signing keys and the identifier for the current long-term signing key
@@ -79,4 +81,38 @@ public interface KeyStore {
      */
     void delete(KeyIdentifier id) throws ObjectNotFoundException;
 
+    /**
+     * Record the public key of a stored key, so it can be found with {@link #findByPublicKey(String)}.
+     * <p>
+     * The index entry is dropped if the key is deleted or updated with different key material.
+     *
+     * @param id              The identifier of the key
+     * @param publicKeyBase64 The public key, as computed by the relevant Cryptopher
+     * @throws ObjectNotFoundException If no key is found for that identifier
+     */
+    void setPublicKey(KeyIdentifier id, String publicKeyBase64) throws ObjectNotFoundException;
+
+    /**
+     * Get the indexed public key of a stored key
+     *
+     * @param id The identifier of the key
+     * @return The public key, or empty if none was recorded for that key
+     */
+    Optional<String> getPublicKey(KeyIdentifier id);
+
+    /**
+     * Find the key with the given public key, without going through all stored keys
+     *
+     * @param publicKeyBase64 The public key to look for
+     * @return The identifier of the key, or empty if no stored key is indexed with that public key
+     */
+    Optional<KeyIdentifier> findByPublicKey(String publicKeyBase64);
+
+    /**
+     * Be told when a key is updated or deleted, so anything derived from it can be dropped
+     *
+     * @param listener Called with the identifier of the key, once the change is stored
+     */
+    void addListener(Consumer<KeyIdentifier> listener);
+
 }
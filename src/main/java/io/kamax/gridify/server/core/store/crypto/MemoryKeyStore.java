@@ -30,11 +30,16 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class MemoryKeyStore implements KeyStore {
 
     private final Map<String, Map<String, FileKeyJson>> keys = new ConcurrentHashMap<>();
+    private final Map<String, KeyIdentifier> byPublicKey = new ConcurrentHashMap<>();
+    private final List<Consumer<KeyIdentifier>> listeners = new CopyOnWriteArrayList<>();
 
     private Map<String, FileKeyJson> getMap(String algo) {
         return keys.computeIfAbsent(algo, k -> new ConcurrentHashMap<>());
@@ -62,9 +67,26 @@ public class MemoryKeyStore implements KeyStore {
         return new GenericKey(new GenericKeyIdentifier(id), data.isValid(), data.getPurpose(), data.getKey());
     }
 
+    private void notify(KeyIdentifier id) {
+        listeners.forEach(l -> l.accept(id));
+    }
+
+    private void unindex(FileKeyJson data) {
+        if (Objects.nonNull(data) && Objects.nonNull(data.getPublicKey())) {
+            byPublicKey.remove(data.getPublicKey());
+        }
+    }
+
     private void set(Key key) {
         FileKeyJson data = FileKeyJson.get(key);
-        getMap(key.getId().getAlgorithm()).put(key.getId().getSerial(), data);
+        FileKeyJson previous = getMap(key.getId().getAlgorithm()).put(key.getId().getSerial(), data);
+        if (Objects.nonNull(previous)) {
+            if (Objects.equals(previous.getKey(), data.getKey())) {
+                data.setPublicKey(previous.getPublicKey());
+            } else {
+                unindex(previous);
+            }
+        }
     }
 
     @Override
@@ -83,6 +105,7 @@ public class MemoryKeyStore implements KeyStore {
         }
 
         set(key);
+        notify(key.getId());
     }
 
     @Override
@@ -91,7 +114,35 @@ public class MemoryKeyStore implements KeyStore {
             throw new ObjectNotFoundException("Key", keyId.getId());
         }
 
-        keys.computeIfAbsent(keyId.getAlgorithm(), k -> new ConcurrentHashMap<>()).remove(keyId.getSerial());
+        unindex(getMap(keyId.getAlgorithm()).remove(keyId.getSerial()));
+        notify(keyId);
+    }
+
+    @Override
+    public void setPublicKey(KeyIdentifier id, String publicKeyBase64) throws ObjectNotFoundException {
+        FileKeyJson data = getMap(id.getAlgorithm()).get(id.getSerial());
+        if (Objects.isNull(data)) {
+            throw new ObjectNotFoundException("Key", id.getId());
+        }
+
+        unindex(data);
+        data.setPublicKey(publicKeyBase64);
+        byPublicKey.put(publicKeyBase64, new GenericKeyIdentifier(id));
+    }
+
+    @Override
+    public Optional<String> getPublicKey(KeyIdentifier id) {
+        return Optional.ofNullable(getMap(id.getAlgorithm()).get(id.getSerial())).map(FileKeyJson::getPublicKey);
+    }
+
+    @Override
+    public Optional<KeyIdentifier> findByPublicKey(String publicKeyBase64) {
+        return Optional.ofNullable(byPublicKey.get(publicKeyBase64));
+    }
+
+    @Override
+    public void addListener(Consumer<KeyIdentifier> listener) {
+        listeners.add(listener);
     }
 
 }
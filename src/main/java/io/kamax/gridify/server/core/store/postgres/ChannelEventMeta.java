@@ -146,4 +146,22 @@ public class ChannelEventMeta {
         this.orderMinor = orderMinor;
     }
 
+    public ChannelEventMeta copy() {
+        ChannelEventMeta meta = new ChannelEventMeta();
+        meta.seed = seed;
+        meta.receivedFrom = receivedFrom;
+        meta.receivedAt = receivedAt;
+        meta.fetchedFrom = fetchedFrom;
+        meta.fetchedAt = fetchedAt;
+        meta.processed = processed;
+        meta.processedOn = processedOn;
+        meta.present = present;
+        meta.valid = valid;
+        meta.validReason = validReason;
+        meta.allowed = allowed;
+        meta.orderMajor = orderMajor;
+        meta.orderMinor = orderMinor;
+        return meta;
+    }
+
 }
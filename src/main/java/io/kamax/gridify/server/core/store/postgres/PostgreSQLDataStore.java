@@ -20,12 +20,16 @@
 
 package io.kamax.gridify.server.core.store.postgres;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.kamax.gridify.server.config.StorageConfig;
 import io.kamax.gridify.server.core.auth.Credentials;
 import io.kamax.gridify.server.core.auth.SecureCredentials;
 import io.kamax.gridify.server.core.channel.ChannelDao;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.StateKey;
 import io.kamax.gridify.server.core.event.EventStreamID;
 import io.kamax.gridify.server.core.identity.*;
 import io.kamax.gridify.server.core.identity.store.local.LocalAuthIdentityStore;
@@ -41,12 +45,23 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class PostgreSQLDataStore implements DataStore, IdentityStore {
 
@@ -75,7 +90,45 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
         void run(T stmt) throws SQLException;
     }
 
+    private static class StateSnapshot {
+
+        private final int depth;
+        private final Map<StateKey, ChannelEvent> events;
+
+        StateSnapshot(int depth, Map<StateKey, ChannelEvent> events) {
+            this.depth = depth;
+            this.events = Collections.unmodifiableMap(events);
+        }
+
+        int getDepth() {
+            return depth;
+        }
+
+        Map<StateKey, ChannelEvent> getEvents() {
+            return events;
+        }
+
+    }
+
+    private static final String userMembershipUpsertSql = "INSERT INTO user_memberships " +
+            "(user_id,channel_lid,membership,event_lid,stream_sid) VALUES (?,?,?,?,?) " +
+            "ON CONFLICT ON CONSTRAINT u_mem_uq DO UPDATE SET membership = EXCLUDED.membership, " +
+            "event_lid = EXCLUDED.event_lid, stream_sid = EXCLUDED.stream_sid " +
+            "WHERE user_memberships.stream_sid <= EXCLUDED.stream_sid";
+
+    // After how many deltas in a row a full state snapshot is written again
+    private static final int stateDeltaMaxDepth = 64;
+    // Total amount of state entries kept across cached states
+    private static final long stateCacheMaxWeight = 1_000_000;
+    // How many stream positions are reserved from a sequence at once
+    private static final int streamBlockSize = 100;
+    // Where the schema updates are, relative to the classpath
+    private static final String schemaPath = "/store/postgres/schema";
+
     private final SqlConnectionPool pool;
+    private final Cache<Long, StateSnapshot> states;
+    private final Set<String> streamSequences = ConcurrentHashMap.newKeySet();
+    private final StreamPositions streamPositions;
 
     public PostgreSQLDataStore(StorageConfig cfg) {
         this(new SqlConnectionPool(cfg));
@@ -83,6 +136,11 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
 
     private PostgreSQLDataStore(SqlConnectionPool pool) {
         this.pool = pool;
+        this.states = CacheBuilder.newBuilder()
+                .maximumWeight(stateCacheMaxWeight)
+                .weigher((Long sLid, StateSnapshot state) -> state.getEvents().size() + 1)
+                .build();
+        this.streamPositions = new StreamPositions(this::fetchStreamPosition, this::reserveStreamPositions, streamBlockSize);
         withConnConsumer(conn -> conn.isValid(1000));
         log.info("Connected");
 
@@ -94,60 +152,111 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
             long version = getSchemaVersion();
             log.info("Schema version: {}", version);
 
-            try (InputStream elIs = PostgreSQLDataStore.class.getResourceAsStream("/store/postgres/schema")) {
-                if (Objects.isNull(elIs)) {
-                    throw new IllegalStateException("No schema found for PostgreSQL. Please report this issue.");
+            for (Map.Entry<Long, String> schema : discoverSchemas().entrySet()) {
+                long elV = schema.getKey();
+                String sql = schema.getValue();
+                log.debug("Schema {}: version {}", sql, elV);
+                if (elV <= version) {
+                    log.debug("Skipping {}", sql);
+                    continue;
                 }
 
-                List<String> schemas = new ArrayList<>();
-                schemas.add("000000.sql");
-                schemas.add("000001.sql");
-                schemas.add("000002.sql");
-                //LineIterator it = IOUtils.lineIterator(elIs, StandardCharsets.UTF_8);
-                Iterator<String> it = schemas.listIterator();
-                log.debug("Schemas auto-discovery:");
-                while (it.hasNext()) {
-                    String sql = it.next();
-                    if (!StringUtils.endsWith(sql, ".sql")) {
-                        continue;
-                    }
-                    log.info("Processing schema update: {}", sql);
-                    String[] els = StringUtils.substringBeforeLast(sql, ".").split("-", 2);
-                    if (els.length < 1) {
-                        log.warn("Skipping invalid schema update name format: {}", sql);
-                    }
-
-                    long elV = Long.parseLong(els[0]);
-                    log.debug("Schema {}: version {}", sql, elV);
-                    if (elV <= version) {
-                        log.debug("Skipping {}", sql);
-                        continue;
-                    }
-
-                    try (InputStream schemaIs = PostgreSQLDataStore.class.getResourceAsStream("/store/postgres/schema/" + sql)) {
-                        String update = IOUtils.toString(Objects.requireNonNull(schemaIs), StandardCharsets.UTF_8);
-                        stmt.execute(update);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-
-                    if (stmt.executeUpdate("INSERT INTO schema (version) VALUES (" + elV + ")") != 1) {
-                        throw new RuntimeException("Could not update schema version");
-                    }
+                log.info("Processing schema update: {}", sql);
+                try (InputStream schemaIs = PostgreSQLDataStore.class.getResourceAsStream(schemaPath + "/" + sql)) {
+                    String update = IOUtils.toString(Objects.requireNonNull(schemaIs), StandardCharsets.UTF_8);
+                    stmt.execute(update);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
 
-                    log.info("Updated schema to version {}", elV);
+                if (stmt.executeUpdate("INSERT INTO schema (version) VALUES (" + elV + ")") != 1) {
+                    throw new RuntimeException("Could not update schema version");
                 }
-            } catch (IOException e) {
-                log.warn("Schema autodiscovery failed");
+
+                log.info("Updated schema to version {}", elV);
             }
             conn.commit();
             log.info("DB schema version: {}", getSchemaVersion());
         });
     }
 
+    /**
+     * List the schema updates shipped with the server, from a directory or a jar alike.
+     * <p>
+     * Updates are named after their version, optionally followed by a dash and a description, like
+     * <code>000005.sql</code> or <code>000005-indexes.sql</code>.
+     *
+     * @return The schema update file names, by version
+     */
+    public static NavigableMap<Long, String> discoverSchemas() {
+        URL url = PostgreSQLDataStore.class.getResource(schemaPath);
+        if (Objects.isNull(url)) {
+            throw new IllegalStateException("No schema found for PostgreSQL. Please report this issue.");
+        }
+
+        try {
+            URI uri = url.toURI();
+            if (!StringUtils.equals("jar", uri.getScheme())) {
+                return discoverSchemas(Paths.get(uri));
+            }
+
+            try (FileSystem fs = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+                return discoverSchemas(fs.getPath(schemaPath));
+            } catch (FileSystemAlreadyExistsException e) {
+                return discoverSchemas(FileSystems.getFileSystem(uri).getPath(schemaPath));
+            }
+        } catch (URISyntaxException | IOException e) {
+            throw new IllegalStateException("PostgreSQL schema discovery failed", e);
+        }
+    }
+
+    private static NavigableMap<Long, String> discoverSchemas(Path dir) throws IOException {
+        List<String> names;
+        try (Stream<Path> files = Files.list(dir)) {
+            names = files.map(f -> f.getFileName().toString()).collect(Collectors.toList());
+        }
+
+        log.debug("Schemas auto-discovery:");
+        NavigableMap<Long, String> schemas = new TreeMap<>();
+        for (String name : names) {
+            if (!StringUtils.endsWith(name, ".sql")) {
+                continue;
+            }
+
+            String v = StringUtils.substringBeforeLast(name, ".").split("-", 2)[0];
+            if (!StringUtils.isNumeric(v)) {
+                log.warn("Skipping invalid schema update name format: {}", name);
+                continue;
+            }
+
+            long version = Long.parseLong(v);
+            String previous = schemas.put(version, name);
+            if (Objects.nonNull(previous)) {
+                throw new IllegalStateException("Schema updates " + previous + " and " + name + " have the same version " + version);
+            }
+            log.debug("Found {}", name);
+        }
+
+        if (schemas.isEmpty()) {
+            throw new IllegalStateException("No schema found for PostgreSQL. Please report this issue.");
+        }
+
+        return schemas;
+    }
+
+    /**
+     * @return The connection pool, to look at its usage and query latencies
+     */
+    public SqlConnectionPool getPool() {
+        return pool;
+    }
+
     private <R> R withConnFunction(ConnFunction<Connection, R> function) {
         try (Connection conn = pool.get()) {
-            conn.setAutoCommit(true);
+            // Connections are given back to the pool in auto-commit mode, unless a transaction failed to restore it
+            if (!conn.getAutoCommit()) {
+                conn.setAutoCommit(true);
+            }
             return function.run(conn);
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -163,10 +272,13 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
     }
 
     private <R> R withStmtFunction(String sql, Connection conn, StmtFunction<PreparedStatement, R> function) {
+        long start = System.nanoTime();
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             return function.run(stmt);
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.record(sql, System.nanoTime() - start);
         }
     }
 
@@ -179,10 +291,13 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
     }
 
     private void withStmtConsumer(String sql, Connection conn, StmtConsumer<PreparedStatement> c) {
+        long start = System.nanoTime();
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             c.run(stmt);
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.record(sql, System.nanoTime() - start);
         }
     }
 
@@ -407,71 +522,67 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
         return "seq_channel_event_stream_sid_" + suffix;
     }
 
-    private long getNextStreamPosition(EventStreamID stream) {
-        String sql = "SELECT nextval(?)";
+    private Long fetchStreamPosition(EventStreamID stream) {
+        String sql = "SELECT MAX(sid) FROM channel_event_stream WHERE type = ? AND scope = ?";
         return withStmtFunction(sql, stmt -> {
-            stmt.setString(1, "\"" + getStreamSeqName(stream) + "\"");
+            stmt.setString(1, stream.getType());
+            stmt.setString(2, stream.getScope());
             try (ResultSet rSet = stmt.executeQuery()) {
                 if (!rSet.next()) {
-                    throw new RuntimeException("No next value for sequence " + getStreamSeqName(stream));
+                    return null;
                 }
 
-                return rSet.getLong(1);
+                long position = rSet.getLong(1);
+                return rSet.wasNull() ? null : position;
             }
         });
     }
 
-    private long fetchNextStreamPosition(EventStreamID stream) {
-        try {
-            return getNextStreamPosition(stream);
-        } catch (RuntimeException e) {
-            if (Objects.nonNull(e.getCause()) && e.getCause() instanceof SQLException) {
-                if (StringUtils.equals("42P01", ((SQLException) e.getCause()).getSQLState())) {
-                    log.debug("Sequence {} for stream {} not found, creating", getStreamSeqName(stream), stream);
-                    String sql = "CREATE SEQUENCE \"" + getStreamSeqName(stream) + "\" MINVALUE " + Long.MIN_VALUE;
-                    withConnConsumer(conn -> {
-                        try (Statement s = conn.createStatement()) {
-                            s.execute(sql);
-                        }
-                    });
-                    return getNextStreamPosition(stream);
+    private List<Long> reserveStreamPositions(EventStreamID stream, int amount) {
+        ensureStreamSequence(stream);
+        String sql = "SELECT nextval(?) AS sid FROM generate_series(1, ?) ORDER BY sid";
+        return withStmtFunction(sql, stmt -> {
+            stmt.setString(1, "\"" + getStreamSeqName(stream) + "\"");
+            stmt.setInt(2, amount);
+            try (ResultSet rSet = stmt.executeQuery()) {
+                List<Long> positions = new ArrayList<>(amount);
+                while (rSet.next()) {
+                    positions.add(rSet.getLong("sid"));
                 }
-            }
 
-            throw e;
-        }
+                if (positions.size() != amount) {
+                    throw new RuntimeException("Not enough values from sequence " + getStreamSeqName(stream));
+                }
+
+                return positions;
+            }
+        });
     }
 
     @Override
     public long addToStream(EventStreamID streamId, long eLid) {
         String sql = "INSERT INTO channel_event_stream (type, scope, sid, lid) VALUES (?,?,?,?)";
-        long position = fetchNextStreamPosition(streamId);
-        return withStmtFunction(sql, stmt -> {
-            stmt.setString(1, streamId.getType());
-            stmt.setString(2, streamId.getScope());
-            stmt.setLong(3, position);
-            stmt.setLong(4, eLid);
-            int rc = stmt.executeUpdate();
-            if (rc != 1) {
-                throw new IllegalStateException("Stream " + streamId + ": DB inserted " + rc + " rows. 1 expected");
-            }
-            return position;
-        });
+        long position = streamPositions.allocate(streamId);
+        try {
+            return withStmtFunction(sql, stmt -> {
+                stmt.setString(1, streamId.getType());
+                stmt.setString(2, streamId.getScope());
+                stmt.setLong(3, position);
+                stmt.setLong(4, eLid);
+                int rc = stmt.executeUpdate();
+                if (rc != 1) {
+                    throw new IllegalStateException("Stream " + streamId + ": DB inserted " + rc + " rows. 1 expected");
+                }
+                return position;
+            });
+        } finally {
+            streamPositions.finish(streamId, position);
+        }
     }
 
     @Override
     public long getStreamPosition(EventStreamID streamId) {
-        String sql = "SELECT MAX(sid) FROM channel_event_stream WHERE type = ? AND scope = ?";
-        return withStmtFunction(sql, stmt -> {
-            stmt.setString(1, streamId.getType());
-            stmt.setString(2, streamId.getScope());
-            ResultSet rSet = stmt.executeQuery();
-            if (!rSet.next()) {
-                return 0L;
-            }
-
-            return rSet.getLong(1);
-        });
+        return streamPositions.getPosition(streamId);
     }
 
     @Override
@@ -535,6 +646,321 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
         return ev;
     }
 
+    private static void checkBatch(int[] rcs, String what) {
+        for (int rc : rcs) {
+            if (rc != 1 && rc != Statement.SUCCESS_NO_INFO) {
+                throw new IllegalStateException(what + ": DB changed " + rc + " rows. 1 expected");
+            }
+        }
+    }
+
+    // Sequences are created on first use of a stream
+    private void ensureStreamSequence(EventStreamID stream) {
+        String name = getStreamSeqName(stream);
+        if (streamSequences.contains(name)) {
+            return;
+        }
+
+        withConnConsumer(conn -> {
+            try (Statement s = conn.createStatement()) {
+                s.execute("CREATE SEQUENCE IF NOT EXISTS \"" + name + "\" MINVALUE " + Long.MIN_VALUE);
+            }
+        });
+        streamSequences.add(name);
+    }
+
+    private long[] commitEvents(Connection conn, List<EventCommit> commits) {
+        long[] lids = new long[commits.size()];
+        List<Integer> toInsert = new ArrayList<>();
+
+        String updateSql = "UPDATE channel_events SET meta = ?::jsonb, extra = ?::jsonb WHERE lid = ?";
+        withStmtConsumer(updateSql, conn, stmt -> {
+            for (int i = 0; i < commits.size(); i++) {
+                ChannelEvent ev = commits.get(i).getEvent();
+                if (!ev.hasLid()) {
+                    toInsert.add(i);
+                    continue;
+                }
+
+                lids[i] = ev.getLid();
+                stmt.setString(1, GsonUtil.toJson(ev.getMeta()));
+                stmt.setString(2, GsonUtil.toJson(ev.getExtra()));
+                stmt.setLong(3, ev.getLid());
+                stmt.addBatch();
+            }
+
+            if (toInsert.size() < commits.size()) {
+                checkBatch(stmt.executeBatch(), "Channel Events update");
+            }
+        });
+
+        if (toInsert.isEmpty()) {
+            return lids;
+        }
+
+        String insertSql = "INSERT INTO channel_events (id,channel_lid,meta,extra,data) VALUES (?,?,?::jsonb,?::jsonb,?::jsonb)";
+        try (PreparedStatement stmt = conn.prepareStatement(insertSql, new String[]{"lid"})) {
+            for (int i : toInsert) {
+                ChannelEvent ev = commits.get(i).getEvent();
+                stmt.setString(1, ev.getId());
+                stmt.setLong(2, ev.getChannelSid());
+                stmt.setString(3, GsonUtil.toJson(ev.getMeta()));
+                stmt.setString(4, GsonUtil.toJson(ev.getExtra()));
+                stmt.setString(5, GsonUtil.toJson(ev.getData()));
+                stmt.addBatch();
+            }
+            checkBatch(stmt.executeBatch(), "Channel Events insert");
+
+            try (ResultSet rSet = stmt.getGeneratedKeys()) {
+                for (int i : toInsert) {
+                    if (!rSet.next()) {
+                        throw new IllegalStateException("Inserted channel events but did not get all LIDs back");
+                    }
+                    lids[i] = rSet.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        return lids;
+    }
+
+    private long[] commitStates(Connection conn, List<EventCommit> commits, long[] eLids, Map<Long, StateSnapshot> snapshots) {
+        // States can hold events of the same batch, which only get their LID once the transaction is committed
+        Map<String, Long> newLids = new HashMap<>();
+        for (int i = 0; i < commits.size(); i++) {
+            ChannelEvent ev = commits.get(i).getEvent();
+            if (!ev.hasLid()) {
+                newLids.put(ev.getId(), eLids[i]);
+            }
+        }
+
+        long[] sLids = new long[commits.size()];
+        for (int i = 0; i < commits.size(); i++) {
+            EventCommit c = commits.get(i);
+            if (!c.hasState()) {
+                continue;
+            }
+
+            ChannelStateDao state = c.getState();
+            if (Objects.nonNull(state.getSid()) && state.getSid() > 0) {
+                sLids[i] = state.getSid();
+            } else {
+                sLids[i] = insertState(conn, c.getEvent().getChannelSid(), state, newLids, snapshots);
+            }
+        }
+
+        withStmtConsumer("INSERT INTO channel_event_states (event_lid,state_lid) VALUES (?,?)", conn, stmt -> {
+            boolean any = false;
+            for (int i = 0; i < commits.size(); i++) {
+                if (commits.get(i).hasState()) {
+                    stmt.setLong(1, eLids[i]);
+                    stmt.setLong(2, sLids[i]);
+                    stmt.addBatch();
+                    any = true;
+                }
+            }
+
+            if (any) {
+                checkBatch(stmt.executeBatch(), "Channel Event states");
+            }
+        });
+
+        return sLids;
+    }
+
+    private void commitExtremities(Connection conn, List<EventCommit> commits, long[] eLids) {
+        // Previous events might be part of the same batch, so they are looked up within the transaction
+        Map<Long, Set<String>> prevIds = new HashMap<>();
+        for (EventCommit c : commits) {
+            if (c.isExtremity()) {
+                prevIds.computeIfAbsent(c.getEvent().getChannelSid(), k -> new HashSet<>()).addAll(c.getPreviousEvents());
+            }
+        }
+
+        Map<Long, Map<String, Long>> prevLids = new HashMap<>();
+        String lookupSql = "SELECT id, lid FROM channel_events WHERE channel_lid = ? AND id = ANY(?)";
+        withStmtConsumer(lookupSql, conn, stmt -> {
+            for (Map.Entry<Long, Set<String>> entry : prevIds.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+
+                stmt.setLong(1, entry.getKey());
+                stmt.setArray(2, conn.createArrayOf("text", entry.getValue().toArray()));
+                try (ResultSet rSet = stmt.executeQuery()) {
+                    Map<String, Long> lids = prevLids.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+                    while (rSet.next()) {
+                        lids.put(rSet.getString("id"), rSet.getLong("lid"));
+                    }
+                }
+            }
+        });
+
+        // We only write the net result of the batch, as an event can replace another one from the same batch
+        Set<Long> cleared = new HashSet<>();
+        Set<Long> removed = new LinkedHashSet<>();
+        Map<Long, Long> added = new LinkedHashMap<>();
+        for (int i = 0; i < commits.size(); i++) {
+            EventCommit c = commits.get(i);
+            if (!c.isExtremity()) {
+                continue;
+            }
+
+            long cLid = c.getEvent().getChannelSid();
+            if (c.isSoleExtremity()) {
+                cleared.add(cLid);
+                added.values().removeIf(v -> v == cLid);
+            }
+
+            Map<String, Long> lids = prevLids.getOrDefault(cLid, Collections.emptyMap());
+            for (String prevId : c.getPreviousEvents()) {
+                Long lid = lids.get(prevId);
+                if (Objects.nonNull(lid) && Objects.isNull(added.remove(lid))) {
+                    removed.add(lid);
+                }
+            }
+            added.put(eLids[i], cLid);
+        }
+
+        withStmtConsumer("DELETE FROM channel_extremities_forward WHERE channel_lid = ?", conn, stmt -> {
+            for (long cLid : cleared) {
+                stmt.setLong(1, cLid);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        });
+
+        withStmtConsumer("DELETE FROM channel_extremities_forward WHERE event_lid = ?", conn, stmt -> {
+            for (long eLid : removed) {
+                stmt.setLong(1, eLid);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        });
+
+        withStmtConsumer("INSERT INTO channel_extremities_forward (channel_lid,event_lid) VALUES (?,?)", conn, stmt -> {
+            for (Map.Entry<Long, Long> entry : added.entrySet()) {
+                stmt.setLong(1, entry.getValue());
+                stmt.setLong(2, entry.getKey());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        });
+    }
+
+    private static Map<EventStreamID, List<Integer>> groupByStream(List<EventCommit> commits) {
+        Map<EventStreamID, List<Integer>> byStream = new LinkedHashMap<>();
+        for (int i = 0; i < commits.size(); i++) {
+            EventStreamID stream = commits.get(i).getStream();
+            if (Objects.nonNull(stream)) {
+                byStream.computeIfAbsent(stream, k -> new ArrayList<>()).add(i);
+            }
+        }
+        return byStream;
+    }
+
+    private void commitStreams(Connection conn, Map<EventStreamID, List<Integer>> byStream, long[] eLids, long[] positions) {
+        String sql = "INSERT INTO channel_event_stream (type, scope, sid, lid) VALUES (?,?,?,?)";
+        withStmtConsumer(sql, conn, stmt -> {
+            for (Map.Entry<EventStreamID, List<Integer>> entry : byStream.entrySet()) {
+                for (int i : entry.getValue()) {
+                    stmt.setString(1, entry.getKey().getType());
+                    stmt.setString(2, entry.getKey().getScope());
+                    stmt.setLong(3, positions[i]);
+                    stmt.setLong(4, eLids[i]);
+                    stmt.addBatch();
+                }
+            }
+
+            if (!byStream.isEmpty()) {
+                checkBatch(stmt.executeBatch(), "Channel Event streams");
+            }
+        });
+    }
+
+    private void commitMemberships(Connection conn, List<EventCommit> commits, long[] eLids, long[] positions) {
+        withStmtConsumer(userMembershipUpsertSql, conn, stmt -> {
+            boolean any = false;
+            for (int i = 0; i < commits.size(); i++) {
+                EventCommit c = commits.get(i);
+                if (Objects.isNull(c.getStream())) {
+                    continue;
+                }
+
+                for (Map.Entry<String, String> entry : c.getMemberships().entrySet()) {
+                    stmt.setString(1, entry.getKey());
+                    stmt.setLong(2, c.getEvent().getChannelSid());
+                    stmt.setString(3, entry.getValue());
+                    stmt.setLong(4, eLids[i]);
+                    stmt.setLong(5, positions[i]);
+                    stmt.addBatch();
+                    any = true;
+                }
+            }
+
+            if (any) {
+                stmt.executeBatch();
+            }
+        });
+    }
+
+    @Override
+    public void commit(List<EventCommit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+
+        // Positions are taken from memory beforehand, then given out in commit order
+        Map<EventStreamID, List<Integer>> byStream = groupByStream(commits);
+        Map<EventStreamID, List<Long>> allocated = new HashMap<>();
+        long[] positions = new long[commits.size()];
+
+        // Nothing is given back to the caller or cached until the transaction is committed
+        Map<Long, StateSnapshot> snapshots = new HashMap<>();
+        long[][] results;
+        try {
+            byStream.forEach((stream, indexes) -> {
+                List<Long> streamAllocated = streamPositions.allocate(stream, indexes.size());
+                allocated.put(stream, streamAllocated);
+                for (int i = 0; i < indexes.size(); i++) {
+                    positions[indexes.get(i)] = streamAllocated.get(i);
+                }
+            });
+
+            results = withTransactionFunction(conn -> {
+                long[] eLids = commitEvents(conn, commits);
+                long[] sLids = commitStates(conn, commits, eLids, snapshots);
+                commitExtremities(conn, commits, eLids);
+                commitStreams(conn, byStream, eLids, positions);
+                commitMemberships(conn, commits, eLids, positions);
+                return new long[][]{eLids, sLids, positions};
+            });
+        } finally {
+            // Whether committed or not, readers can go past them
+            allocated.forEach(streamPositions::finish);
+        }
+        states.putAll(snapshots);
+
+        for (int i = 0; i < commits.size(); i++) {
+            EventCommit c = commits.get(i);
+            ChannelEvent ev = c.getEvent();
+            if (!ev.hasLid()) {
+                ev.setLid(results[0][i]);
+            }
+
+            if (c.hasState()) {
+                c.setStateSid(results[1][i]);
+            }
+
+            if (Objects.nonNull(c.getStream())) {
+                ev.setSid(results[2][i]);
+                c.setStreamSid(results[2][i]);
+            }
+        }
+    }
+
     @Override
     public ChannelEvent getEvent(String cId, String eId) throws IllegalStateException {
         return findEvent(cId, eId).orElseThrow(() -> new ObjectNotFoundException("Event", eId));
@@ -614,14 +1040,59 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
         });
     }
 
+    @Override
+    public void setUserMembership(UserMembershipDao dao) {
+        withStmtConsumer(userMembershipUpsertSql, stmt -> {
+            stmt.setString(1, dao.getUserId());
+            stmt.setLong(2, dao.getChannelLid());
+            stmt.setString(3, dao.getMembership());
+            stmt.setLong(4, dao.getEventLid());
+            stmt.setLong(5, dao.getStreamSid());
+
+            // No row is updated if a more recent membership is already stored
+            int rc = stmt.executeUpdate();
+            if (rc > 1) {
+                throw new IllegalStateException("Set user membership: DB set " + rc + " rows. At most 1 expected");
+            }
+        });
+    }
+
+    @Override
+    public List<UserMembershipDao> listUserMemberships(String network, String userId) {
+        String sql = "SELECT m.*, c.id AS channel_id FROM user_memberships m " +
+                "JOIN channels c ON c.lid = m.channel_lid WHERE m.user_id = ? AND c.network = ?";
+        return withStmtFunction(sql, stmt -> {
+            stmt.setString(1, userId);
+            stmt.setString(2, network);
+            try (ResultSet rSet = stmt.executeQuery()) {
+                List<UserMembershipDao> memberships = new ArrayList<>();
+                while (rSet.next()) {
+                    UserMembershipDao dao = new UserMembershipDao(
+                            rSet.getString("user_id"),
+                            rSet.getLong("channel_lid"),
+                            rSet.getString("membership"),
+                            rSet.getLong("event_lid"),
+                            rSet.getLong("stream_sid")
+                    );
+                    dao.setChannelId(rSet.getString("channel_id"));
+                    memberships.add(dao);
+                }
+                return memberships;
+            }
+        });
+    }
+
     @Override
     public List<ChannelEvent> getNext(EventStreamID stream, long lastSid, long amount) {
-        String sql = "SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid WHERE s.type = ? AND s.scope = ? AND s.sid > ? ORDER BY s.sid ASC LIMIT ?";
+        // Events past the stream position might have positions before them still being committed
+        String sql = "SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid WHERE s.type = ? AND s.scope = ? AND s.sid > ? AND s.sid <= ? ORDER BY s.sid ASC LIMIT ?";
+        long position = getStreamPosition(stream);
         return withStmtFunction(sql, stmt -> {
             stmt.setString(1, stream.getType());
             stmt.setString(2, stream.getScope());
             stmt.setLong(3, lastSid);
-            stmt.setLong(4, amount);
+            stmt.setLong(4, position);
+            stmt.setLong(5, amount);
             ResultSet rSet = stmt.executeQuery();
 
             List<ChannelEvent> events = new ArrayList<>();
@@ -634,7 +1105,7 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
 
     @Override
     public List<ChannelEvent> getTimelineNext(long cLid, long lastTid, long amount) {
-        String sql = "SELECT * FROM channel_event_stream s JOIN channel_events e ON s.eLid = e.lid WHERE e.channel_lid = ? AND s.sid > ? ORDER BY s.sid ASC LIMIT ?";
+        String sql = "SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid WHERE e.channel_lid = ? AND s.sid > ? ORDER BY s.sid ASC LIMIT ?";
         return withStmtFunction(sql, stmt -> {
             stmt.setLong(1, cLid);
             stmt.setLong(2, lastTid);
@@ -790,49 +1261,150 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
             return state.getSid();
         }
 
-        String sql = "INSERT INTO channel_states (channel_lid) VALUES (?) RETURNING lid";
+        Map<Long, StateSnapshot> snapshots = new HashMap<>();
+        long sLid = withTransactionFunction(conn -> insertState(conn, cLid, state, Collections.emptyMap(), snapshots));
+        states.putAll(snapshots);
+        return sLid;
+    }
+
+    // The snapshot of the new state is only given back, to be cached once the transaction is committed
+    private long insertState(Connection conn, long cLid, ChannelStateDao state, Map<String, Long> newLids, Map<Long, StateSnapshot> snapshots) {
+        // We only store what changed since the parent, unless the chain of deltas is too long
+        StateSnapshot parent = state.hasParent() ? getStateSnapshot(conn, state.getParentSid()) : null;
+        boolean isDelta = Objects.nonNull(parent) && parent.getDepth() < stateDeltaMaxDepth;
+        int depth = isDelta ? parent.getDepth() + 1 : 0;
+
+        // Events inserted by the same transaction are copied with their LID, as the originals only get it on commit
+        List<ChannelEvent> events = new ArrayList<>();
+        for (ChannelEvent ev : isDelta ? state.getDelta() : state.getEvents()) {
+            if (!ev.hasLid()) {
+                Long eLid = newLids.get(ev.getId());
+                if (Objects.isNull(eLid)) {
+                    throw new IllegalStateException("State event " + ev.getId() + " is neither stored nor part of the commit");
+                }
+
+                ev = ev.copy();
+                ev.setLid(eLid);
+            }
+            events.add(ev);
+        }
+
+        String sql = "INSERT INTO channel_states (channel_lid,parent_lid,delta_depth) VALUES (?,?,?) RETURNING lid";
         String evSql = "INSERT INTO channel_state_data (state_lid,event_lid) VALUES (?,?)";
 
-        return withTransactionFunction(conn -> {
-            long sSid = withStmtFunction(sql, conn, stmt -> {
-                stmt.setLong(1, cLid);
-                ResultSet rSet = stmt.executeQuery();
+        long sLid = withStmtFunction(sql, conn, stmt -> {
+            stmt.setLong(1, cLid);
+            if (isDelta) {
+                stmt.setLong(2, state.getParentSid());
+            } else {
+                stmt.setNull(2, Types.BIGINT);
+            }
+            stmt.setInt(3, depth);
+            ResultSet rSet = stmt.executeQuery();
+            if (!rSet.next()) {
+                throw new IllegalStateException("Inserted state for channel " + cLid + " but got no LID back");
+            }
+
+            return rSet.getLong("lid");
+        });
+
+        withStmtConsumer(evSql, conn, stmt -> {
+            for (long eSid : events.stream().map(ChannelEvent::getLid).collect(Collectors.toList())) {
+                stmt.setLong(1, sLid);
+                stmt.setLong(2, eSid);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        });
+
+        Map<StateKey, ChannelEvent> snapshot = new HashMap<>();
+        if (isDelta) {
+            snapshot.putAll(parent.getEvents());
+        }
+        events.forEach(ev -> snapshot.put(ChannelStateDao.getKey(ev), ev));
+        snapshots.put(sLid, new StateSnapshot(depth, snapshot));
+
+        return sLid;
+    }
+
+    private StateSnapshot getStateSnapshot(long sLid) {
+        StateSnapshot snapshot = states.getIfPresent(sLid);
+        if (Objects.isNull(snapshot)) {
+            snapshot = withConnFunction(conn -> loadStateSnapshot(conn, sLid));
+            states.put(sLid, snapshot);
+        }
+
+        return snapshot;
+    }
+
+    private StateSnapshot getStateSnapshot(Connection conn, long sLid) {
+        StateSnapshot snapshot = states.getIfPresent(sLid);
+        if (Objects.isNull(snapshot)) {
+            snapshot = loadStateSnapshot(conn, sLid);
+            states.put(sLid, snapshot);
+        }
+
+        return snapshot;
+    }
+
+    private StateSnapshot loadStateSnapshot(Connection conn, long sLid) {
+        String chainSql = String.join(" ",
+                "WITH RECURSIVE chain(lid, parent_lid, delta_depth) AS (",
+                "  SELECT lid, parent_lid, delta_depth FROM channel_states WHERE lid = ?",
+                "  UNION ALL",
+                "  SELECT s.lid, s.parent_lid, s.delta_depth FROM channel_states s JOIN chain c ON s.lid = c.parent_lid",
+                ") SELECT lid, delta_depth FROM chain ORDER BY delta_depth DESC");
+
+        // We walk the chain from the requested state up to the first state we already know about
+        Deque<Long> toLoad = new ArrayDeque<>();
+        Long[] baseLid = new Long[1];
+        int depth = withStmtFunction(chainSql, conn, stmt -> {
+            stmt.setLong(1, sLid);
+            try (ResultSet rSet = stmt.executeQuery()) {
                 if (!rSet.next()) {
-                    throw new IllegalStateException("Inserted state for channel " + cLid + " but got no LID back");
+                    throw new ObjectNotFoundException("State", Long.toString(sLid));
                 }
 
-                return rSet.getLong("lid");
-            });
+                int d = rSet.getInt("delta_depth");
+                do {
+                    long lid = rSet.getLong("lid");
+                    if (Objects.nonNull(states.getIfPresent(lid))) {
+                        baseLid[0] = lid;
+                        break;
+                    }
+                    toLoad.push(lid);
+                } while (rSet.next());
+                return d;
+            }
+        });
 
-            withStmtConsumer(evSql, conn, stmt -> {
-                for (long eSid : state.getEvents().stream().map(ChannelEvent::getLid).collect(Collectors.toList())) {
-                    stmt.setLong(1, sSid);
-                    stmt.setLong(2, eSid);
-                    stmt.addBatch();
-                }
-                stmt.executeBatch();
-            });
+        Map<StateKey, ChannelEvent> events = new HashMap<>();
+        if (Objects.nonNull(baseLid[0])) {
+            events.putAll(getStateSnapshot(baseLid[0]).getEvents());
+        }
 
-            return sSid;
+        Map<Long, List<ChannelEvent>> data = new HashMap<>();
+        String evSql = "SELECT d.state_lid, e.* FROM channel_state_data d JOIN channel_events e ON e.lid = d.event_lid WHERE d.state_lid = ANY(?)";
+        withStmtConsumer(evSql, conn, stmt -> {
+            stmt.setArray(1, conn.createArrayOf("bigint", toLoad.toArray()));
+            try (ResultSet rSet = stmt.executeQuery()) {
+                while (rSet.next()) {
+                    data.computeIfAbsent(rSet.getLong("state_lid"), k -> new ArrayList<>()).add(make(rSet));
+                }
+            }
         });
+
+        // Oldest first, so the most recent change wins
+        for (Long lid : toLoad) {
+            data.getOrDefault(lid, Collections.emptyList()).forEach(ev -> events.put(ChannelStateDao.getKey(ev), ev));
+        }
+
+        return new StateSnapshot(depth, events);
     }
 
     @Override
     public ChannelStateDao getState(long sid) {
-        return withConnFunction(conn -> {
-            String evSql = "SELECT e.* from channel_state_data s LEFT JOIN channel_events e ON e.lid = s.event_lid WHERE s.state_lid = ?";
-            List<ChannelEvent> events = withStmtFunction(evSql, conn, stmt -> {
-                List<ChannelEvent> list = new ArrayList<>();
-                stmt.setLong(1, sid);
-                ResultSet rSet = stmt.executeQuery();
-                while (rSet.next()) {
-                    list.add(make(rSet));
-                }
-                return list;
-            });
-
-            return new ChannelStateDao(sid, events);
-        });
+        return new ChannelStateDao(sid, new ArrayList<>(getStateSnapshot(sid).getEvents().values()));
     }
 
     @Override
@@ -1178,10 +1750,67 @@ public class PostgreSQLDataStore implements DataStore, IdentityStore {
             stmt.setString(3, scope);
             stmt.setLong(4, streamId);
 
+            // No row is updated if the stored position is already further
             int rc = stmt.executeUpdate();
-            if (rc != 1) {
-                throw new IllegalStateException("Set stream ID for destination: DB set " + rc + " rows. 1 expected");
+            if (rc > 1) {
+                throw new IllegalStateException("Set stream ID for destination: DB set " + rc + " rows. At most 1 expected");
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> getStreamIdsForDestinations(String destinationType, String scope) {
+        String sql = "SELECT destination_id, stream_id FROM destination_stream_positions WHERE destination_type = ? AND scope = ?";
+        return withStmtFunction(sql, stmt -> {
+            stmt.setString(1, destinationType);
+            stmt.setString(2, scope);
+            ResultSet rSet = stmt.executeQuery();
+
+            Map<String, Long> positions = new HashMap<>();
+            while (rSet.next()) {
+                positions.put(rSet.getString("destination_id"), rSet.getLong("stream_id"));
+            }
+            return positions;
+        });
+    }
+
+    @Override
+    public Optional<JsonObject> findTransaction(String scope, String txnId) {
+        String sql = "SELECT result FROM transactions WHERE scope = ? AND id = ?";
+        return withStmtFunction(sql, stmt -> {
+            stmt.setString(1, scope);
+            stmt.setString(2, txnId);
+            ResultSet rSet = stmt.executeQuery();
+            if (!rSet.next()) {
+                return Optional.empty();
             }
+
+            return Optional.of(GsonUtil.parseObj(rSet.getString("result")));
+        });
+    }
+
+    @Override
+    public void saveTransaction(String scope, String txnId, JsonObject result) {
+        String sql = "INSERT INTO transactions (scope,id,result,created) VALUES (?,?,?::jsonb,?) ON CONFLICT ON CONSTRAINT txn_uq DO NOTHING";
+        withStmtConsumer(sql, stmt -> {
+            stmt.setString(1, scope);
+            stmt.setString(2, txnId);
+            stmt.setString(3, GsonUtil.toJson(result));
+            stmt.setLong(4, System.currentTimeMillis());
+
+            // No row is inserted if a result is already kept
+            int rc = stmt.executeUpdate();
+            if (rc > 1) {
+                throw new IllegalStateException("Save transaction: DB inserted " + rc + " rows. At most 1 expected");
+            }
+        });
+    }
+
+    @Override
+    public void deleteTransactionsBefore(long timestamp) {
+        withStmtConsumer("DELETE FROM transactions WHERE created < ?", stmt -> {
+            stmt.setLong(1, timestamp);
+            stmt.executeUpdate();
         });
     }
 
@@ -21,21 +21,27 @@
 package io.kamax.gridify.server.http;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import io.kamax.gridify.server.exception.MissingTokenException;
+import io.kamax.gridify.server.exception.PayloadTooLargeException;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
 import io.undertow.Handlers;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RequestTooBigException;
 import io.undertow.util.HttpString;
 import io.undertow.util.QueryParameterUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
+import org.xnio.IoUtils;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Type;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -44,8 +50,28 @@ public class Exchange {
 
     private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
 
+    // Undertow starts sending a response in chunks as soon as it is flushed, so only closing is let through
+    private static class UnflushedOutputStream extends FilterOutputStream {
+
+        UnflushedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            // only on close
+        }
+
+    }
+
     private final HttpServerExchange exchange;
     private String error;
+    private volatile boolean detached;
 
     public Exchange(HttpServerExchange exchange) {
         this.exchange = exchange;
@@ -159,16 +185,56 @@ public class Exchange {
         exchange.getResponseSender().send(body, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Serialize straight into the response buffers, without building the body as text first.
+     * <p>
+     * A body fitting in a single buffer is sent with its length, a larger one is sent in chunks as it is serialized.
+     *
+     * @param body The object to send as JSON
+     */
+    public void writeBodyAsJson(Object body) {
+        Writer writer = new OutputStreamWriter(new UnflushedOutputStream(exchange.getOutputStream()), StandardCharsets.UTF_8);
+        try {
+            GsonUtil.get().toJson(body, writer);
+            writer.close();
+        } catch (IOException | JsonIOException e) {
+            // The client is gone, there is no one left to send the rest to
+            log.debug("Unable to send response body", e);
+            IoUtils.safeClose(exchange.getConnection());
+        } catch (RuntimeException e) {
+            // Part of the body might be sent already, so we drop the connection rather than complete a truncated response
+            log.error("Unable to serialize response body, closing the connection", e);
+            IoUtils.safeClose(exchange.getConnection());
+        }
+    }
+
     public String getBodyUtf8() {
         try {
             return IOUtils.toString(exchange.getInputStream(), StandardCharsets.UTF_8);
         } catch (IOException e) {
+            if (e instanceof RequestTooBigException) {
+                throw new PayloadTooLargeException(exchange.getMaxEntitySize());
+            }
+
             throw new RuntimeException(e);
         }
     }
 
+    // Parsed as it is received, so the body is never held in memory as text
+    private <T> T readJson(Type type) {
+        try {
+            return GsonUtil.get().fromJson(new InputStreamReader(exchange.getInputStream(), StandardCharsets.UTF_8), type);
+        } catch (JsonParseException e) {
+            if (ExceptionUtils.indexOfThrowable(e, RequestTooBigException.class) != -1) {
+                throw new PayloadTooLargeException(exchange.getMaxEntitySize());
+            }
+
+            throw new IllegalArgumentException("Invalid JSON body", e);
+        }
+    }
+
     public <T> T parseJsonTo(Class<T> type) {
-        return GsonUtil.get().fromJson(getBodyUtf8(), type);
+        return readJson(type);
     }
 
     public JsonObject parseJsonObject(String key) {
@@ -176,7 +242,12 @@ public class Exchange {
     }
 
     public JsonObject parseJsonObject() {
-        return GsonUtil.parseObj(getBodyUtf8());
+        JsonElement body = readJson(JsonElement.class);
+        if (Objects.isNull(body) || !body.isJsonObject()) {
+            throw new IllegalArgumentException("Not an object");
+        }
+
+        return body.getAsJsonObject();
     }
 
     public void respond(int statusCode, JsonElement bodyJson) {
@@ -184,7 +255,7 @@ public class Exchange {
             log.trace("Body: {}", GsonUtil.getPrettyForLog(bodyJson));
         }
 
-        respondJson(statusCode, GsonUtil.get().toJson(bodyJson));
+        respondJson(statusCode, (Object) bodyJson);
     }
 
     public void respond(JsonElement bodyJson) {
@@ -202,7 +273,13 @@ public class Exchange {
     }
 
     public void respondJson(int status, Object o) {
-        respondJson(status, GsonUtil.toJson(o));
+        try {
+            exchange.setStatusCode(status);
+            exchange.getResponseHeaders().put(HttpString.tryFromString("Content-Type"), "application/json");
+            writeBodyAsJson(o);
+        } catch (IllegalStateException e) {
+            // already sent, we ignore
+        }
     }
 
     public void respondJson(String body) {
@@ -214,7 +291,7 @@ public class Exchange {
             log.trace("Body:{}", GsonUtil.getPrettyForLog(body));
         }
 
-        respondJson(GsonUtil.toJson(body));
+        respondJson(200, body);
     }
 
     public void respondJsonObject(String key, Object value) {
@@ -241,6 +318,20 @@ public class Exchange {
         return error;
     }
 
+    /**
+     * Set if the response will be sent later from another thread, so the exchange must not be ended when the handler
+     * returns.
+     *
+     * @param detached true if the response is sent later, false once it is being sent
+     */
+    public void setDetached(boolean detached) {
+        this.detached = detached;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
     public HttpServerExchange getUnderlying() {
         return exchange;
     }
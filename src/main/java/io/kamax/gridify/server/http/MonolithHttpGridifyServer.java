@@ -39,6 +39,7 @@ import io.kamax.gridify.server.util.KxLog;
 import io.kamax.gridify.server.util.TlsUtils;
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
 import io.undertow.server.RoutingHandler;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -236,6 +237,7 @@ public class MonolithHttpGridifyServer {
 
         for (GridifyConfig.Listener cfg : cfg.getListeners()) {
             Undertow.Builder b = Undertow.builder();
+            b.setServerOption(UndertowOptions.MAX_ENTITY_SIZE, cfg.getMaxBodySize());
             log.info("Creating HTTP listener on {}:{}", cfg.getAddress(), cfg.getPort());
             RoutingHandler handler = Handlers.routing();
 
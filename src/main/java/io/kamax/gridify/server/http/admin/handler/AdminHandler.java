@@ -97,6 +97,9 @@ public abstract class AdminHandler implements HttpHandler {
             } catch (NotImplementedException e) {
                 ex.respond(HttpStatus.SC_NOT_IMPLEMENTED, "G_NOT_IMPLEMENTED", e.getMessage());
                 log.debug("Trigger:", e);
+            } catch (PayloadTooLargeException e) {
+                ex.respond(HttpStatus.SC_REQUEST_TOO_LONG, "G_TOO_LARGE", e.getMessage());
+                log.debug("Trigger:", e);
             } catch (EntityUnreachableException e) {
                 ex.respond(523, "ORG_GRIDIFY_ENTITY_UNREACHABLE", e.getMessage());
                 log.debug("Trigger:", e);
@@ -51,7 +51,7 @@ public class SimpleGridServer implements GridCore, GridServer {
         this.origin = ServerID.fromDns(domain);
 
         this.g = g;
-        dsMgr = new DataServerManager();
+        dsMgr = new DataServerManager(g.getConfig().getFederation());
         evSvc = new EventService(origin, g.getPublicKey(), g.getCrypto());
         fedPush = new FederationPusher(g, dsMgr);
         dataSrv = new SimpleGridDataServer(this);
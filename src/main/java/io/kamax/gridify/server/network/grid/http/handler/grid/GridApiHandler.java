@@ -65,6 +65,9 @@ public abstract class GridApiHandler implements HttpHandler {
             } catch (NotImplementedException e) {
                 ex.respond(HttpStatus.SC_NOT_IMPLEMENTED, "G_NOT_IMPLEMENTED", e.getMessage());
                 log.debug("Trigger:", e);
+            } catch (PayloadTooLargeException e) {
+                ex.respond(HttpStatus.SC_REQUEST_TOO_LONG, "G_TOO_LARGE", e.getMessage());
+                log.debug("Trigger:", e);
             } catch (RemoteServerException e) {
                 ex.respond(HttpStatus.SC_BAD_GATEWAY, e.getCode(), e.getReason());
                 log.debug("Trigger:", e);
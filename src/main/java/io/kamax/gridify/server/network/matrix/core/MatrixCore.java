@@ -26,6 +26,8 @@ import io.kamax.gridify.server.core.crypto.Cryptopher;
 import io.kamax.gridify.server.core.event.EventStreamer;
 import io.kamax.gridify.server.core.signal.SignalBus;
 import io.kamax.gridify.server.core.store.DataStore;
+import io.kamax.gridify.server.network.matrix.core.base.SyncNotifier;
+import io.kamax.gridify.server.network.matrix.core.crypto.EventVerifier;
 import io.kamax.gridify.server.network.matrix.core.domain.MatrixDomain;
 import io.kamax.gridify.server.network.matrix.core.federation.FederationPusher;
 import io.kamax.gridify.server.network.matrix.core.federation.HomeServerManager;
@@ -34,6 +36,7 @@ import io.kamax.gridify.server.network.matrix.core.room.RoomManager;
 
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Semaphore;
 import java.util.function.Predicate;
 
 public interface MatrixCore {
@@ -58,6 +61,8 @@ public interface MatrixCore {
 
     HomeServerManager hsMgr();
 
+    EventVerifier eventVerifier();
+
     boolean isLocal(String host);
 
     List<MatrixDomain> getDomains();
@@ -74,6 +79,10 @@ public interface MatrixCore {
 
     FederationPusher getFedPusher();
 
+    Semaphore getFedInbound();
+
+    SyncNotifier getSyncNotifier();
+
     Queue<JsonObject> getCommandResponseQueue(String userId);
 
     Predicates predicates();
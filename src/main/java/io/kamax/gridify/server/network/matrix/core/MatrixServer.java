@@ -25,6 +25,7 @@ import io.kamax.gridify.server.core.event.EventStreamer;
 import io.kamax.gridify.server.core.identity.User;
 import io.kamax.gridify.server.core.signal.SignalBus;
 import io.kamax.gridify.server.network.matrix.core.base.ServerSession;
+import io.kamax.gridify.server.network.matrix.core.base.SyncNotifier;
 import io.kamax.gridify.server.network.matrix.core.crypto.MatrixDomainCryptopher;
 import io.kamax.gridify.server.network.matrix.core.domain.MatrixDomain;
 import io.kamax.gridify.server.network.matrix.core.domain.MatrixDomainConfig;
@@ -71,6 +72,8 @@ public interface MatrixServer {
 
     FederationPusher getFedPusher();
 
+    SyncNotifier getSyncNotifier();
+
     Queue<JsonObject> getCommandResponseQueue(String userId);
 
     MatrixDataClient asClient();
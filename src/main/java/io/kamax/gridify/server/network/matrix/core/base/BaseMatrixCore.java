@@ -24,6 +24,7 @@ import com.google.gson.JsonObject;
 import io.kamax.gridify.server.GridifyServer;
 import io.kamax.gridify.server.core.crypto.Cryptopher;
 import io.kamax.gridify.server.core.crypto.KeyIdentifier;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Verifier;
 import io.kamax.gridify.server.core.event.EventStreamer;
 import io.kamax.gridify.server.core.event.EventStreams;
 import io.kamax.gridify.server.core.signal.SignalBus;
@@ -32,6 +33,8 @@ import io.kamax.gridify.server.core.store.DomainDao;
 import io.kamax.gridify.server.exception.AlreadyExistsException;
 import io.kamax.gridify.server.network.matrix.core.MatrixCore;
 import io.kamax.gridify.server.network.matrix.core.MatrixServer;
+import io.kamax.gridify.server.network.matrix.core.crypto.EventVerifier;
+import io.kamax.gridify.server.network.matrix.core.crypto.RemoteKeyCache;
 import io.kamax.gridify.server.network.matrix.core.domain.MatrixDomain;
 import io.kamax.gridify.server.network.matrix.core.federation.FederationPusher;
 import io.kamax.gridify.server.network.matrix.core.federation.HomeServerManager;
@@ -44,6 +47,7 @@ import org.slf4j.Logger;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -56,7 +60,10 @@ public class BaseMatrixCore implements MatrixCore {
     private final Map<String, MatrixServer> vHosts;
     private final RoomManager rMgr;
     private final HomeServerManager hsMgr;
+    private final EventVerifier evVerifier;
     private final FederationPusher fedPusher;
+    private final Semaphore fedInbound;
+    private final SyncNotifier syncNotifier;
     private final RoomDirectory rDir;
     private final Map<String, Queue<JsonObject>> commandResponseQueues;
 
@@ -67,11 +74,28 @@ public class BaseMatrixCore implements MatrixCore {
         vHosts = new HashMap<>();
         rMgr = new RoomManager(g);
         hsMgr = new HomeServerManager(g);
+        Ed25519Verifier verifier = new Ed25519Verifier();
+        RemoteKeyCache keyCache = new RemoteKeyCache((origin, domain) -> {
+            if (isLocal(domain)) {
+                return vHost(domain).asServer().getKeyDocument(null);
+            }
+
+            return hsMgr.getLink(origin, domain).getServerKeys();
+        }, verifier);
+        evVerifier = new EventVerifier(keyCache, verifier, Runtime.getRuntime().availableProcessors());
         fedPusher = new FederationPusher(this);
+        int inboundRooms = g.getConfig().getFederation().getInbound().getRooms();
+        if (inboundRooms < 1) {
+            inboundRooms = Runtime.getRuntime().availableProcessors() * 4;
+        }
+        // Rooms are offered on the shared mailbox threads, which are not bounded as they might wait on remote servers
+        fedInbound = new Semaphore(inboundRooms);
+        syncNotifier = new SyncNotifier(g.getBus());
         rDir = new RoomDirectory(g, g.getStore(), g.getBus(), hsMgr);
         commandResponseQueues = new ConcurrentHashMap<>();
 
         init();
+        fedPusher.resume();
     }
 
     private MatrixDomain load(DomainDao dao) {
@@ -128,6 +152,11 @@ public class BaseMatrixCore implements MatrixCore {
         return hsMgr;
     }
 
+    @Override
+    public EventVerifier eventVerifier() {
+        return evVerifier;
+    }
+
     @Override
     public boolean isLocal(String host) {
         return domains.containsKey(host) || vHosts.containsKey(host);
@@ -203,6 +232,16 @@ public class BaseMatrixCore implements MatrixCore {
         return fedPusher;
     }
 
+    @Override
+    public Semaphore getFedInbound() {
+        return fedInbound;
+    }
+
+    @Override
+    public SyncNotifier getSyncNotifier() {
+        return syncNotifier;
+    }
+
     @Override
     public Queue<JsonObject> getCommandResponseQueue(String userId) {
         return commandResponseQueues.computeIfAbsent(userId, uId -> new LinkedList<>());
@@ -21,14 +21,18 @@
 package io.kamax.gridify.server.network.matrix.core.base;
 
 import com.google.gson.JsonObject;
+import io.kamax.gridify.server.config.UIAuthConfig;
 import io.kamax.gridify.server.core.GridType;
+import io.kamax.gridify.server.core.auth.TokenCache;
 import io.kamax.gridify.server.core.auth.UIAuthSession;
 import io.kamax.gridify.server.core.crypto.Key;
 import io.kamax.gridify.server.core.crypto.Signature;
 import io.kamax.gridify.server.core.event.EventStreamer;
 import io.kamax.gridify.server.core.identity.GenericThreePid;
 import io.kamax.gridify.server.core.identity.User;
+import io.kamax.gridify.server.core.signal.SessionTokenRevoked;
 import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.core.store.DomainDao;
 import io.kamax.gridify.server.network.matrix.core.*;
 import io.kamax.gridify.server.network.matrix.core.crypto.MatrixDomainCryptopher;
@@ -39,6 +43,7 @@ import io.kamax.gridify.server.network.matrix.core.federation.HomeServerRequest;
 import io.kamax.gridify.server.network.matrix.core.room.RoomDirectory;
 import io.kamax.gridify.server.network.matrix.core.room.RoomManager;
 import io.kamax.gridify.server.util.GsonUtil;
+import net.engio.mbassy.listener.Handler;
 
 import java.time.Instant;
 import java.util.*;
@@ -49,10 +54,15 @@ public class BaseMatrixServer implements MatrixServer, MatrixDataClient, MatrixD
     private final MatrixCore g;
 
     private final MatrixDomain domain;
+    private final TokenCache<UserSession> sessions;
 
     public BaseMatrixServer(MatrixCore g, MatrixDomain domain) {
         this.g = g;
         this.domain = domain;
+
+        UIAuthConfig.Tokens tokensCfg = g.gridify().getConfig().getAuth().getTokens();
+        this.sessions = new TokenCache<>(tokensCfg.getCacheSize(), tokensCfg.getCacheTtl());
+        g.bus().forTopic(SignalTopic.Session).subscribe(this);
     }
 
     @Override
@@ -156,6 +166,11 @@ public class BaseMatrixServer implements MatrixServer, MatrixDataClient, MatrixD
         return g.getFedPusher();
     }
 
+    @Override
+    public SyncNotifier getSyncNotifier() {
+        return g.getSyncNotifier();
+    }
+
     @Override
     public Queue<JsonObject> getCommandResponseQueue(String userId) {
         return g.getCommandResponseQueue(userId);
@@ -198,9 +213,16 @@ public class BaseMatrixServer implements MatrixServer, MatrixDataClient, MatrixD
 
     @Override
     public UserSession withToken(String token) {
-        User u = g.gridify().validateSessionToken(token);
-        String userId = u.findNetworkId("matrix").orElseGet(() -> "@" + u.getUsername() + ":" + domain.getDomain());
-        return new UserSession(this, domain.getDomain(), u, userId, token);
+        return sessions.get(token, t -> {
+            User u = g.gridify().validateSessionToken(t);
+            String userId = u.findNetworkId("matrix").orElseGet(() -> "@" + u.getUsername() + ":" + domain.getDomain());
+            return new UserSession(this, domain.getDomain(), u, userId, t);
+        });
+    }
+
+    @Handler
+    private void signal(SessionTokenRevoked signal) {
+        sessions.revoke(signal.getToken());
     }
 
     @Override
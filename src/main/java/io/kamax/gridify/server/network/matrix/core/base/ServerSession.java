@@ -39,11 +39,20 @@ import io.kamax.gridify.server.network.matrix.http.json.ServerTransaction;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class ServerSession {
 
@@ -148,29 +157,152 @@ public class ServerSession {
         return CryptoJson.signUnsafe(request.getDoc(), srv.crypto());
     }
 
-    public List<ChannelEventAuthorization> push(ServerTransaction txn) {
+    /**
+     * Process a transaction sent by the remote server, unless it was already processed
+     *
+     * @param txn The transaction
+     * @return The response to give back, the same for every retry of the transaction
+     */
+    public JsonObject send(ServerTransaction txn) {
+        if (StringUtils.isBlank(txn.getId())) {
+            return push(txn);
+        }
+
+        // Transaction IDs are only unique between a remote server and us
+        String scope = "m.federation:" + remote + ">" + vHost;
+        return srv.core().gridify().getTransactions().process(scope, txn.getId(), () -> push(txn));
+    }
+
+    /**
+     * Process a transaction sent by the remote server. Rooms are processed in parallel, PDUs of a room in order.
+     *
+     * @param txn The transaction
+     * @return The processing result of each PDU, by event ID, to give back to the remote server
+     */
+    public JsonObject push(ServerTransaction txn) {
         log.info("Txn {}/{} - {} PDU(s) and {} EDU(s)", remote, txn.getId(), txn.getPdus().size(), txn.getEdus().size());
-        List<ChannelEventAuthorization> auths = new ArrayList<>();
-        Map<String, List<JsonObject>> pdusPerRoom = new HashMap<>();
+        JsonObject results = new JsonObject();
+        Map<String, Optional<Room>> rooms = new HashMap<>();
         for (JsonObject pdu : txn.getPdus()) {
+            rooms.computeIfAbsent(BareGenericEvent.extractRoomId(pdu), srv.roomMgr()::find);
+        }
+
+        RoomAlgo defaultAlgo = RoomAlgos.get(RoomAlgos.defaultVersion());
+        Function<JsonObject, RoomAlgo> algos = pdu -> rooms.get(BareGenericEvent.extractRoomId(pdu))
+                .map(Room::getAlgo)
+                .orElse(defaultAlgo);
+
+        // Signatures are all checked before anything is offered, so verification happens in parallel
+        List<String> checks = srv.core().eventVerifier().verify(vHost, txn.getPdus(), algos);
+        Map<String, List<JsonObject>> pdusPerRoom = new HashMap<>();
+        for (int i = 0; i < txn.getPdus().size(); i++) {
+            JsonObject pdu = txn.getPdus().get(i);
+            String check = checks.get(i);
+            if (StringUtils.isNotEmpty(check)) {
+                String eventId = algos.apply(pdu).getEventId(pdu);
+                log.warn("Txn {}/{} - Rejecting PDU {}: {}", remote, txn.getId(), eventId, check);
+                results.add(eventId, makeResult(check));
+                continue;
+            }
+
             String roomId = BareGenericEvent.extractRoomId(pdu);
             pdusPerRoom.computeIfAbsent(roomId, v -> new ArrayList<>()).add(pdu);
         }
 
+        // Each room is offered its PDUs on its own, so a room needing backfill does not hold the others back
+        Semaphore permits = srv.core().getFedInbound();
+        long waitTimeout = srv.core().gridify().getConfig().getFederation().getInbound().getWaitTimeout();
+        RuntimeException failure = null;
+        Map<String, CompletableFuture<List<ChannelEventAuthorization>>> offers = new HashMap<>();
         for (Map.Entry<String, List<JsonObject>> roomPdus : pdusPerRoom.entrySet()) {
-            Optional<Room> roomOpt = srv.roomMgr().find(roomPdus.getKey());
+            Optional<Room> roomOpt = rooms.get(roomPdus.getKey());
             if (!roomOpt.isPresent()) {
                 srv.roomMgr().queueForDiscovery(roomPdus.getValue());
+                roomPdus.getValue().forEach(pdu -> results.add(defaultAlgo.getEventId(pdu), makeResult("")));
                 continue;
             }
 
+            try {
+                if (!permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+                    failure = new RuntimeException("Too many rooms are being processed, try again later");
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RuntimeException(e);
+                break;
+            }
+
             Room r = roomOpt.get();
-            List<ChannelEventAuthorization> auth = r.offer(remote, vHost, roomPdus.getValue());
-            auths.addAll(auth);
-            log.debug("Txn {}/{} - Offered {} PDU(s) to {}", remote, txn.getTimestamp(), roomPdus.getValue().size(), r.getId());
+            try {
+                CompletableFuture<List<ChannelEventAuthorization>> offer = r.offerAsync(remote, vHost, roomPdus.getValue());
+                offer.whenComplete((auths, t) -> permits.release());
+                offers.put(r.getId(), offer);
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
         }
 
-        return auths;
+        for (Map.Entry<String, CompletableFuture<List<ChannelEventAuthorization>>> offer : offers.entrySet()) {
+            String roomId = offer.getKey();
+            List<JsonObject> pdus = pdusPerRoom.get(roomId);
+            try {
+                for (ChannelEventAuthorization auth : offer.getValue().join()) {
+                    results.add(auth.getEventId(), makeResult(auth.isAuthorized() ? "" : auth.getReason()));
+                }
+                log.debug("Txn {}/{} - Offered {} PDU(s) to {}", remote, txn.getId(), pdus.size(), roomId);
+            } catch (CompletionException e) {
+                log.warn("Txn {}/{} - Unable to process PDU(s) of {}", remote, txn.getId(), roomId, e.getCause());
+                if (isTransient(e.getCause())) {
+                    if (Objects.isNull(failure)) {
+                        failure = new RuntimeException("Unable to process PDU(s) of " + roomId, e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                    continue;
+                }
+
+                // Retrying would fail the same way, and hold back every later transaction of the remote server
+                for (JsonObject pdu : pdus) {
+                    results.add(algos.apply(pdu).getEventId(pdu), makeResult("Unable to process: " + e.getCause().getMessage()));
+                }
+            }
+        }
+
+        // The transaction is not remembered, so the remote server sends it again once we are able to process it
+        if (Objects.nonNull(failure)) {
+            throw failure;
+        }
+
+        return GsonUtil.makeObj("pdus", results);
+    }
+
+    // Failures that are about our own resources, like the DB or its connections, and not about the PDUs
+    private static boolean isTransient(Throwable t) {
+        for (Throwable cause : ExceptionUtils.getThrowableList(t)) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+
+            if (cause instanceof SQLException) {
+                // Connection, rollback, resources and operator intervention classes
+                String state = StringUtils.defaultString(((SQLException) cause).getSQLState());
+                if (StringUtils.startsWithAny(state, "08", "40", "53", "57")) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private JsonObject makeResult(String error) {
+        JsonObject result = new JsonObject();
+        if (StringUtils.isNotEmpty(error)) {
+            result.addProperty("error", error);
+        }
+        return result;
     }
 
     public List<ChannelEvent> getEventsTree(String roomId, List<String> latestEventIds, List<String> earliestEventIds, long limit, long minDepth) {
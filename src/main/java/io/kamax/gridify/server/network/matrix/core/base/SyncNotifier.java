@@ -0,0 +1,271 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.network.matrix.core.base;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.signal.AppStopping;
+import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
+import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
+import io.kamax.gridify.server.core.signal.SyncRefreshSignal;
+import io.kamax.gridify.server.network.matrix.core.event.BareGenericEvent;
+import io.kamax.gridify.server.util.KxLog;
+import net.engio.mbassy.listener.Handler;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Wake up waiting sync requests when something relevant to them happens.
+ * <p>
+ * Waiters are indexed by the rooms their user is in, and by the user itself so membership changes targeting the user
+ * in rooms they are not in yet are seen too. A processed event only wakes the waiters of its room and of the users it
+ * is about, instead of every waiting sync.
+ */
+public class SyncNotifier {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    /**
+     * A sync request waiting for something to happen.
+     */
+    public static class Waiter {
+
+        private final String userId;
+        private final Set<String> roomIds;
+        private long position;
+        private boolean signalled;
+        private volatile Runnable listener;
+
+        private Waiter(String userId, Set<String> roomIds) {
+            this.userId = userId;
+            this.roomIds = roomIds;
+        }
+
+        private synchronized void wake(long position) {
+            this.position = Math.max(this.position, position);
+            this.signalled = true;
+            notifyAll();
+
+            Runnable l = listener;
+            if (Objects.nonNull(l)) {
+                l.run();
+            }
+        }
+
+        /**
+         * Wait until the waiter is woken up or the timeout is reached
+         *
+         * @param timeout The maximum amount of milliseconds to wait for
+         * @return true if woken up, false if the timeout was reached
+         * @throws InterruptedException If the thread was interrupted while waiting
+         */
+        public synchronized boolean await(long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            long left = timeout;
+            while (!signalled && left > 0) {
+                wait(left);
+                left = end - System.currentTimeMillis();
+            }
+
+            boolean woken = signalled;
+            signalled = false;
+            return woken;
+        }
+
+        /**
+         * @return The highest stream position of the events this waiter was woken up for, 0 if none yet
+         */
+        public synchronized long getPosition() {
+            return position;
+        }
+
+    }
+
+    private final Map<String, Set<Waiter>> byRoom = new ConcurrentHashMap<>();
+    private final Map<String, Set<Waiter>> byUser = new ConcurrentHashMap<>();
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+    private final ExecutorService checkers;
+    private final ScheduledExecutorService timer;
+
+    public SyncNotifier(SignalBus bus) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.checkers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("gridify-sync-%d").setDaemon(true).build());
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("gridify-sync-timer-%d").setDaemon(true).build());
+
+        bus.getMain().subscribe(this);
+        bus.forTopic(SignalTopic.Room).subscribe(this);
+        bus.forTopic(SignalTopic.SyncRefresh).subscribe(this);
+    }
+
+    private static void add(Map<String, Set<Waiter>> index, String key, Waiter w) {
+        index.compute(key, (k, v) -> {
+            if (Objects.isNull(v)) {
+                v = ConcurrentHashMap.newKeySet();
+            }
+
+            v.add(w);
+            return v;
+        });
+    }
+
+    private static void remove(Map<String, Set<Waiter>> index, String key, Waiter w) {
+        index.computeIfPresent(key, (k, v) -> {
+            v.remove(w);
+            return v.isEmpty() ? null : v;
+        });
+    }
+
+    private static void wake(Map<String, Set<Waiter>> index, String key, long position) {
+        if (StringUtils.isEmpty(key)) {
+            return;
+        }
+
+        Set<Waiter> set = index.get(key);
+        if (Objects.nonNull(set)) {
+            set.forEach(w -> w.wake(position));
+        }
+    }
+
+    /**
+     * Start waiting for events. The waiter must be registered before checking the stream for new events, so none can
+     * be missed between the check and the wait.
+     *
+     * @param userId  The user doing the sync
+     * @param roomIds The rooms the user is in
+     * @return The waiter, to be unregistered when done
+     */
+    public Waiter register(String userId, Collection<String> roomIds) {
+        Waiter w = new Waiter(userId, new HashSet<>(roomIds));
+        waiters.add(w);
+        add(byUser, userId, w);
+        w.roomIds.forEach(rId -> add(byRoom, rId, w));
+        return w;
+    }
+
+    public void unregister(Waiter w) {
+        w.roomIds.forEach(rId -> remove(byRoom, rId, w));
+        remove(byUser, w.userId, w);
+        waiters.remove(w);
+    }
+
+    /**
+     * @return The amount of waiters currently registered
+     */
+    public int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * Wait for a result without holding a thread, checking again each time the waiter is woken up.
+     * <p>
+     * The first check is done on the calling thread, the next ones on a small shared pool. Checks of a given waiter
+     * never run concurrently. The waiter is unregistered once the result is available.
+     *
+     * @param w         The waiter to use, as returned by {@link #register(String, Collection)}
+     * @param timeout   How long to wait for, in milliseconds
+     * @param check     Produce the result if there is one yet
+     * @param onTimeout Produce the result once the timeout is reached
+     * @param <T>       The type of result
+     * @return The result, once available
+     */
+    public <T> CompletableFuture<T> await(Waiter w, long timeout, Supplier<Optional<T>> check, Supplier<T> onTimeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicBoolean scheduled = new AtomicBoolean();
+        AtomicBoolean timedOut = new AtomicBoolean();
+
+        Runnable attempt = () -> {
+            scheduled.set(false);
+            synchronized (result) {
+                if (result.isDone()) {
+                    return;
+                }
+
+                try {
+                    Optional<T> value = check.get();
+                    if (value.isPresent()) {
+                        result.complete(value.get());
+                    } else if (timedOut.get()) {
+                        result.complete(onTimeout.get());
+                    }
+                } catch (RuntimeException | Error e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+
+        Runnable schedule = () -> {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    checkers.execute(attempt);
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+
+        result.whenComplete((v, t) -> unregister(w));
+        w.listener = schedule;
+        attempt.run();
+        if (!result.isDone()) {
+            ScheduledFuture<?> expiry = timer.schedule(() -> {
+                timedOut.set(true);
+                schedule.run();
+            }, Math.max(timeout, 0L), TimeUnit.MILLISECONDS);
+            result.whenComplete((v, t) -> expiry.cancel(false));
+        }
+
+        return result;
+    }
+
+    private void wakeAll() {
+        waiters.forEach(w -> w.wake(0L));
+    }
+
+    @Handler
+    private void signal(ChannelMessageProcessed signal) {
+        ChannelEvent ev = signal.getEvent();
+        BareGenericEvent mxEv = ev.asMatrix();
+        log.debug("Waking up sync waiters of room {} for stream position {}", mxEv.getRoomId(), ev.getSid());
+        wake(byRoom, mxEv.getRoomId(), ev.getSid());
+        wake(byUser, mxEv.getSender(), ev.getSid());
+        wake(byUser, mxEv.getStateKey(), ev.getSid());
+    }
+
+    @Handler
+    private void signal(SyncRefreshSignal signal) {
+        wakeAll();
+    }
+
+    @Handler
+    private void signal(AppStopping signal) {
+        wakeAll();
+    }
+
+}
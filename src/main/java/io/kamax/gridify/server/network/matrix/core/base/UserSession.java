@@ -22,19 +22,18 @@ package io.kamax.gridify.server.network.matrix.core.base;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
+import io.kamax.gridify.server.codec.GridHash;
 import io.kamax.gridify.server.core.SyncData;
 import io.kamax.gridify.server.core.SyncOptions;
-import io.kamax.gridify.server.core.channel.ChannelDao;
 import io.kamax.gridify.server.core.channel.ChannelMembership;
 import io.kamax.gridify.server.core.channel.TimelineChunk;
 import io.kamax.gridify.server.core.channel.TimelineDirection;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
 import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
 import io.kamax.gridify.server.core.identity.User;
-import io.kamax.gridify.server.core.signal.AppStopping;
-import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
 import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.core.signal.SyncRefreshSignal;
+import io.kamax.gridify.server.core.store.UserMembershipDao;
 import io.kamax.gridify.server.exception.ForbiddenException;
 import io.kamax.gridify.server.network.matrix.core.MatrixServer;
 import io.kamax.gridify.server.network.matrix.core.UserID;
@@ -47,13 +46,14 @@ import io.kamax.gridify.server.network.matrix.http.json.RoomEvent;
 import io.kamax.gridify.server.network.matrix.http.json.SyncResponse;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
-import net.engio.mbassy.listener.Handler;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -77,30 +77,6 @@ public class UserSession {
         this.accessToken = accessToken;
     }
 
-    @Handler
-    private void signal(AppStopping signal) {
-        log.debug("Got {} signal, interrupting sync wait", signal.getClass().getSimpleName());
-        synchronized (this) {
-            notifyAll();
-        }
-    }
-
-    @Handler
-    private void signal(ChannelMessageProcessed signal) {
-        log.debug("Got {} signal, interrupting sync wait", signal.getClass().getSimpleName());
-        synchronized (this) {
-            notifyAll();
-        }
-    }
-
-    @Handler
-    private void signal(SyncRefreshSignal signal) {
-        log.debug("Got {} signal, interrupting sync wait", signal.getClass().getSimpleName());
-        synchronized (this) {
-            notifyAll();
-        }
-    }
-
     public String getUser() {
         return userId;
     }
@@ -189,10 +165,10 @@ public class UserSession {
         SyncData data = new SyncData();
         data.setInitial(true);
         data.setPosition(Long.toString(g.getStreamer().getPosition()));
-        List<ChannelDao> rooms = g.roomMgr().listInvolved(userId);
+        List<UserMembershipDao> rooms = g.roomMgr().listInvolved(userId);
         log.debug("Found involvement with {} rooms", rooms.size());
-        rooms.forEach(dao -> {
-            Room r = getRoom(dao.getId());
+        rooms.stream().filter(this::isJoinedOrInvited).forEach(dao -> {
+            Room r = getRoom(dao.getChannelId());
             log.debug("Processing room {}", r.getId());
             RoomView roomView = r.getView();
             RoomState state = r.getView().getState();
@@ -211,85 +187,109 @@ public class UserSession {
         return buildSync(data);
     }
 
-    public SyncResponse sync(SyncOptions options) {
-        if (StringUtils.isEmpty(options.getToken())) {
-            return syncInitial();
+    // Where an incremental sync is at in the stream, carried across checks
+    private static class SyncProgress {
+
+        private final String token;
+        private final SyncData data = new SyncData();
+        private long sid;
+        private boolean checked;
+
+        SyncProgress(String token) {
+            this.token = token;
+            this.sid = Long.parseLong(token);
+            data.setPosition(token);
         }
 
-        try {
-            Instant end = Instant.now().plusMillis(options.getTimeout());
+    }
 
-            g.getBus().getMain().subscribe(this);
-            g.getBus().forTopic(SignalTopic.Room).subscribe(this);
-            g.getBus().forTopic(SignalTopic.SyncRefresh).subscribe(this);
+    // Check once for something to send back, without waiting
+    private Optional<SyncResponse> checkSync(SyncProgress progress, SyncNotifier.Waiter waiter) {
+        if (!g.getCommandResponseQueue(userId).isEmpty()) {
+            log.info("Emptying command response buffer");
+            Map<String, SyncResponse.Room> roomCache = new HashMap<>();
+            SyncResponse syncResponse = new SyncResponse();
+            syncResponse.nextBatch = progress.token;
+            for (JsonObject response : g.getCommandResponseQueue(userId)) {
+                String rId = GsonUtil.getStringOrThrow(response, EventKey.RoomId);
+                SyncResponse.Room room = roomCache.computeIfAbsent(rId, id -> new SyncResponse.Room());
+                RoomEvent rEv = GsonUtil.fromJson(response, RoomEvent.class);
+                room.timeline.events.add(rEv);
+            }
+            log.info("Command response buffer cleared");
+            g.getCommandResponseQueue(userId).clear();
 
-            SyncData data = new SyncData();
-            data.setPosition(options.getToken());
+            syncResponse.rooms.join.putAll(roomCache);
+            return Optional.of(syncResponse);
+        }
 
-            long sid = Long.parseLong(options.getToken());
-            do {
-                if (!g.getCommandResponseQueue(userId).isEmpty()) {
-                    log.info("Emptying command response buffer");
-                    Map<String, SyncResponse.Room> roomCache = new HashMap<>();
-                    SyncResponse syncResponse = new SyncResponse();
-                    syncResponse.nextBatch = options.getToken();
-                    for (JsonObject response : g.getCommandResponseQueue(userId)) {
-                        String rId = GsonUtil.getStringOrThrow(response, EventKey.RoomId);
-                        SyncResponse.Room room = roomCache.computeIfAbsent(rId, id -> new SyncResponse.Room());
-                        RoomEvent rEv = GsonUtil.fromJson(response, RoomEvent.class);
-                        room.timeline.events.add(rEv);
-                    }
-                    log.info("Command response buffer cleared");
-                    g.getCommandResponseQueue(userId).clear();
+        if (g.isStopping()) {
+            return Optional.of(buildSync(progress.data));
+        }
 
-                    syncResponse.rooms.join.putAll(roomCache);
-                    return syncResponse;
-                }
+        // Always check the stream once, then only when woken up for a position we did not see yet
+        if (progress.checked && waiter.getPosition() <= progress.sid) {
+            return Optional.empty();
+        }
 
-                if (g.isStopping()) {
-                    break;
+        progress.checked = true;
+        List<ChannelEvent> events = g.getStreamer().next(progress.sid);
+        for (ChannelEvent event : events) {
+            if (!event.getMeta().isProcessed()) {
+                break;
+            }
+            if (event.getSid() <= 0L) {
+                break;
+            }
+
+            if (((Predicate<ChannelEvent>) ev -> {
+                // FIXME move this into channel/state algo to check if a user can see an event in the stream
+
+                // If we are the author
+                if (StringUtils.equalsAny(userId, ev.asMatrix().getSender(), ev.asMatrix().getStateKey())) {
+                    return true;
                 }
 
-                List<ChannelEvent> events = g.getStreamer().next(sid);
-                for (ChannelEvent event : events) {
-                    if (!event.getMeta().isProcessed()) {
-                        break;
-                    }
-                    if (event.getSid() <= 0L) {
-                        break;
-                    }
+                // if we are subscribed to the channel at that point in time
+                Room r = g.roomMgr().get(ev.asMatrix().getRoomId());
+                RoomState state = r.getState(ev);
+                RoomMembership m = state.getMembership(userId);
+                log.info("Membership for Event LID {}: {}", ev.getLid(), m);
+                return m.isAny(RoomMembership.Join);
+            }).test(event)) {
+                progress.data.getEvents().add(event);
+            }
 
-                    if (((Predicate<ChannelEvent>) ev -> {
-                        // FIXME move this into channel/state algo to check if a user can see an event in the stream
+            progress.sid = event.getSid();
+            progress.data.setPosition(Long.toString(progress.sid));
+        }
 
-                        // If we are the author
-                        if (StringUtils.equalsAny(userId, ev.asMatrix().getSender(), ev.asMatrix().getStateKey())) {
-                            return true;
-                        }
+        if (!progress.data.getEvents().isEmpty()) {
+            return Optional.of(buildSync(progress.data));
+        }
 
-                        // if we are subscribed to the channel at that point in time
-                        Room r = g.roomMgr().get(ev.asMatrix().getRoomId());
-                        RoomState state = r.getState(ev);
-                        RoomMembership m = state.getMembership(userId);
-                        log.info("Membership for Event LID {}: {}", ev.getLid(), m);
-                        return m.isAny(RoomMembership.Join);
-                    }).test(event)) {
-                        data.getEvents().add(event);
-                    }
+        return Optional.empty();
+    }
 
-                    data.setPosition(Long.toString(event.getSid()));
-                }
+    public SyncResponse sync(SyncOptions options) {
+        if (StringUtils.isEmpty(options.getToken())) {
+            return syncInitial();
+        }
 
-                if (!data.getEvents().isEmpty()) {
-                    break;
+        Instant end = Instant.now().plusMillis(options.getTimeout());
+        SyncProgress progress = new SyncProgress(options.getToken());
+        SyncNotifier.Waiter waiter = g.getSyncNotifier().register(userId, getJoinedRoomIds());
+        try {
+            do {
+                Optional<SyncResponse> response = checkSync(progress, waiter);
+                if (response.isPresent()) {
+                    return response.get();
                 }
 
-                long waitTime = Math.max(options.getTimeout(), 0L);
+                long waitTime = Duration.between(Instant.now(), end).toMillis();
                 if (waitTime > 0) {
                     try {
-                        synchronized (this) {
-                            wait(waitTime);
-                        }
+                        waiter.await(waitTime);
                     } catch (InterruptedException e) {
                         // We don't care. We log it in case of, but we'll just loop again
                         log.debug("Got interrupted while waiting on sync");
@@ -297,14 +297,46 @@ public class UserSession {
                 }
             } while (end.isAfter(Instant.now()));
 
-            return buildSync(data);
+            return buildSync(progress.data);
         } finally {
-            g.getBus().getMain().unsubscribe(this);
-            g.getBus().forTopic(SignalTopic.Room).unsubscribe(this);
-            g.getBus().forTopic(SignalTopic.SyncRefresh).unsubscribe(this);
+            g.getSyncNotifier().unregister(waiter);
         }
     }
 
+    /**
+     * Same as {@link #sync(SyncOptions)}, but without holding the calling thread while waiting for events.
+     *
+     * @param options The sync options
+     * @return The sync response, once there is something to send back or the timeout is reached
+     */
+    public CompletableFuture<SyncResponse> syncAsync(SyncOptions options) {
+        if (StringUtils.isEmpty(options.getToken())) {
+            return CompletableFuture.completedFuture(syncInitial());
+        }
+
+        SyncProgress progress = new SyncProgress(options.getToken());
+        SyncNotifier.Waiter waiter = g.getSyncNotifier().register(userId, getJoinedRoomIds());
+        try {
+            return g.getSyncNotifier().await(waiter, options.getTimeout(),
+                    () -> checkSync(progress, waiter),
+                    () -> buildSync(progress.data));
+        } catch (RuntimeException e) {
+            g.getSyncNotifier().unregister(waiter);
+            throw e;
+        }
+    }
+
+    private boolean isJoinedOrInvited(UserMembershipDao dao) {
+        return RoomMembership.Join.match(dao.getMembership()) || RoomMembership.Invite.match(dao.getMembership());
+    }
+
+    private List<String> getJoinedRoomIds() {
+        return g.roomMgr().listInvolved(userId).stream()
+                .filter(this::isJoinedOrInvited)
+                .map(UserMembershipDao::getChannelId)
+                .collect(Collectors.toList());
+    }
+
     public Room createRoom(JsonObject options) {
         return g.roomMgr().get(g.roomMgr().createRoom(g.crypto(), userId, options));
     }
@@ -526,6 +558,19 @@ public class UserSession {
     }
 
     public String send(String roomId, String type, String txnId, JsonObject content) {
+        if (StringUtils.isAnyBlank(txnId, accessToken)) {
+            return doSend(roomId, type, txnId, content);
+        }
+
+        // Transaction IDs are only unique for an access token and an endpoint
+        String scope = "m.client:" + GridHash.get().hashFromUtf8(accessToken);
+        String scopedTxnId = "send/" + roomId + "/" + type + "/" + txnId;
+        JsonObject result = g.core().gridify().getTransactions().process(scope, scopedTxnId, () ->
+                GsonUtil.makeObj("event_id", doSend(roomId, type, txnId, content)));
+        return GsonUtil.getStringOrThrow(result, "event_id");
+    }
+
+    private String doSend(String roomId, String type, String txnId, JsonObject content) {
         if (isCommand(type, content)) {
             return processCommand(roomId, txnId, content);
         }
@@ -36,7 +36,7 @@ public class CryptoJson {
 
     public static Signature computeSignature(JsonObject event, MatrixDomainCryptopher crypto) {
         // We get the canonical version
-        String eventCanonical = CanonicalJson.encode(event);
+        byte[] eventCanonical = CanonicalJson.encodeBytes(event);
         // We generate the signature for the event
         return crypto.sign(eventCanonical);
     }
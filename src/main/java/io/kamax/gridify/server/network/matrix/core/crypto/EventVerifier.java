@@ -0,0 +1,136 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.network.matrix.core.crypto;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.codec.CanonicalJson;
+import io.kamax.gridify.server.core.crypto.KeyAlgorithm;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Verifier;
+import io.kamax.gridify.server.network.matrix.core.UserID;
+import io.kamax.gridify.server.network.matrix.core.event.EventKey;
+import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgo;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Check that events received over federation are signed by the server of their sender.
+ */
+public class EventVerifier {
+
+    private final RemoteKeyCache keys;
+    private final Ed25519Verifier verifier;
+    private final ExecutorService pool;
+
+    public EventVerifier(RemoteKeyCache keys, Ed25519Verifier verifier, int threads) {
+        this.keys = keys;
+        this.verifier = verifier;
+        // Bounded so a burst of transactions cannot pile up work: once full, callers verify their own events
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                new ThreadFactoryBuilder().setNameFormat("gridify-event-verifier-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Verify the signature of the sender's server on an event
+     *
+     * @param origin The local domain which received the event, used to fetch remote keys
+     * @param algo   The algorithm of the room the event belongs to
+     * @param doc    The event
+     * @return An empty string if the event is correctly signed, the reason why it is not otherwise
+     */
+    public String verify(String origin, RoomAlgo algo, JsonObject doc) {
+        String sender = GsonUtil.getStringOrNull(doc, EventKey.Sender);
+        if (StringUtils.isBlank(sender)) {
+            return "No sender";
+        }
+
+        String domain;
+        try {
+            domain = UserID.parse(sender).network();
+        } catch (IllegalArgumentException e) {
+            return "Invalid sender: " + sender;
+        }
+
+        // Signatures are made on the redacted form, so they survive redactions
+        JsonObject redacted = algo.redact(doc);
+        JsonObject signatures = GsonUtil.popOrCreateObj(redacted, EventKey.Signatures);
+        redacted.remove(EventKey.Unsigned);
+
+        Optional<JsonObject> domainSigns = GsonUtil.findObj(signatures, domain);
+        if (!domainSigns.isPresent()) {
+            return "Not signed by " + domain;
+        }
+
+        byte[] canonical = CanonicalJson.encodeBytes(redacted);
+        for (Map.Entry<String, JsonElement> sign : domainSigns.get().entrySet()) {
+            if (!StringUtils.startsWith(sign.getKey(), KeyAlgorithm.Ed25519 + ":") || !sign.getValue().isJsonPrimitive()) {
+                continue;
+            }
+
+            Optional<String> key = keys.find(origin, domain, sign.getKey());
+            if (key.isPresent() && verifier.verify(key.get(), canonical, sign.getValue().getAsString())) {
+                return "";
+            }
+        }
+
+        return "No valid signature from " + domain;
+    }
+
+    /**
+     * Verify several events at once, in parallel
+     *
+     * @param origin The local domain which received the events, used to fetch remote keys
+     * @param docs   The events
+     * @param algos  Give the algorithm of the room each event belongs to
+     * @return The result of {@link #verify(String, RoomAlgo, JsonObject)} for each event, in the same order
+     */
+    public List<String> verify(String origin, List<JsonObject> docs, Function<JsonObject, RoomAlgo> algos) {
+        List<Future<String>> tasks = new ArrayList<>(docs.size());
+        for (JsonObject doc : docs) {
+            RoomAlgo algo = algos.apply(doc);
+            tasks.add(pool.submit(() -> verify(origin, algo, doc)));
+        }
+
+        List<String> results = new ArrayList<>(docs.size());
+        for (Future<String> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                results.add("Unable to verify: " + e.getCause().getMessage());
+            }
+        }
+        return results;
+    }
+
+}
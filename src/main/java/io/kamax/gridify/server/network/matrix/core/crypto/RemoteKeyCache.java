@@ -0,0 +1,187 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.network.matrix.core.crypto;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.codec.CanonicalJson;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Verifier;
+import io.kamax.gridify.server.network.matrix.core.event.EventKey;
+import io.kamax.gridify.server.util.GsonUtil;
+import io.kamax.gridify.server.util.KxLog;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Verify keys of remote servers, as published on their key endpoint.
+ * <p>
+ * Key documents are kept until their validity ends, within bounds, and a failed fetch is remembered for a short while
+ * so an unreachable server does not get asked again for every event it signed. Concurrent lookups for the same server
+ * share a single fetch.
+ */
+public class RemoteKeyCache {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private static final Duration minTtl = Duration.ofMinutes(5);
+    private static final Duration maxTtl = Duration.ofHours(24);
+    private static final Duration failureTtl = Duration.ofMinutes(1);
+    // How soon an unknown key ID can trigger a new fetch, to pick up rotated keys
+    private static final Duration refetchDelay = Duration.ofMinutes(1);
+
+    private static class ServerKeys {
+
+        private final Map<String, String> keys;
+        private final Instant fetchedAt;
+        private final Instant expiresAt;
+
+        ServerKeys(Map<String, String> keys, Instant fetchedAt, Instant expiresAt) {
+            this.keys = keys;
+            this.fetchedAt = fetchedAt;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private final BiFunction<String, String, JsonObject> fetcher;
+    private final Ed25519Verifier verifier;
+    private final Map<String, CompletableFuture<ServerKeys>> servers = new ConcurrentHashMap<>();
+
+    /**
+     * @param fetcher  Fetch the key document of a server, given the local domain doing the request and the remote one
+     * @param verifier To check key documents are signed with their own keys
+     */
+    public RemoteKeyCache(BiFunction<String, String, JsonObject> fetcher, Ed25519Verifier verifier) {
+        this.fetcher = fetcher;
+        this.verifier = verifier;
+    }
+
+    private ServerKeys parse(String domain, JsonObject doc) {
+        String serverName = GsonUtil.getStringOrNull(doc, "server_name");
+        if (!StringUtils.equals(domain, serverName)) {
+            throw new IllegalArgumentException("Key document is for " + serverName + ", expected " + domain);
+        }
+
+        Map<String, String> keys = new HashMap<>();
+        JsonObject verifyKeys = GsonUtil.findObj(doc, "verify_keys").orElseGet(JsonObject::new);
+        for (Map.Entry<String, JsonElement> entry : verifyKeys.entrySet()) {
+            if (entry.getValue().isJsonObject()) {
+                GsonUtil.findString(entry.getValue().getAsJsonObject(), "key").ifPresent(key -> keys.put(entry.getKey(), key));
+            }
+        }
+
+        // The document must be signed by at least one of the keys it advertises
+        JsonObject unsigned = doc.deepCopy();
+        JsonObject signatures = GsonUtil.popOrCreateObj(unsigned, EventKey.Signatures);
+        unsigned.remove(EventKey.Unsigned);
+        byte[] canonical = CanonicalJson.encodeBytes(unsigned);
+        JsonObject serverSigns = GsonUtil.findObj(signatures, domain).orElseGet(JsonObject::new);
+        boolean selfSigned = serverSigns.entrySet().stream()
+                .filter(e -> keys.containsKey(e.getKey()) && e.getValue().isJsonPrimitive())
+                .anyMatch(e -> verifier.verify(keys.get(e.getKey()), canonical, e.getValue().getAsString()));
+        if (!selfSigned) {
+            throw new IllegalArgumentException("Key document of " + domain + " is not signed by any of its keys");
+        }
+
+        Instant now = Instant.now();
+        Instant validUntil = GsonUtil.findLong(doc, "valid_until_ts").map(Instant::ofEpochMilli).orElse(now);
+        Instant expiresAt = validUntil.isBefore(now.plus(minTtl)) ? now.plus(minTtl) : validUntil;
+        if (expiresAt.isAfter(now.plus(maxTtl))) {
+            expiresAt = now.plus(maxTtl);
+        }
+
+        return new ServerKeys(Collections.unmodifiableMap(keys), now, expiresAt);
+    }
+
+    private ServerKeys fetch(String origin, String domain) {
+        try {
+            ServerKeys keys = parse(domain, fetcher.apply(origin, domain));
+            log.debug("Fetched {} key(s) of {}, valid until {}", keys.keys.size(), domain, keys.expiresAt);
+            return keys;
+        } catch (RuntimeException e) {
+            log.warn("Unable to fetch keys of {}: {}", domain, e.getMessage());
+            Instant now = Instant.now();
+            return new ServerKeys(Collections.emptyMap(), now, now.plus(failureTtl));
+        }
+    }
+
+    private boolean isStale(CompletableFuture<ServerKeys> f, String keyId, Instant now) {
+        if (!f.isDone()) {
+            return false;
+        }
+
+        if (f.isCompletedExceptionally()) {
+            return true;
+        }
+
+        ServerKeys keys = f.join();
+        if (now.isAfter(keys.expiresAt)) {
+            return true;
+        }
+
+        return Objects.nonNull(keyId) && !keys.keys.containsKey(keyId) && now.isAfter(keys.fetchedAt.plus(refetchDelay));
+    }
+
+    private ServerKeys get(String origin, String domain, String keyId) {
+        Instant now = Instant.now();
+        CompletableFuture<ServerKeys> created = new CompletableFuture<>();
+        CompletableFuture<ServerKeys> f = servers.compute(domain, (k, v) -> {
+            if (Objects.isNull(v) || isStale(v, keyId, now)) {
+                return created;
+            }
+
+            return v;
+        });
+
+        // Only the caller which created the entry fetches, others wait on it
+        if (f == created) {
+            try {
+                created.complete(fetch(origin, domain));
+            } catch (Throwable t) {
+                created.completeExceptionally(t);
+                throw t;
+            }
+        }
+
+        return f.join();
+    }
+
+    /**
+     * Find a verify key of a server
+     *
+     * @param origin The local domain to fetch as, if the key is not cached
+     * @param domain The server the key belongs to
+     * @param keyId  The ID of the key, like <code>ed25519:abc</code>
+     * @return The public key encoded as Base64, or empty if the server does not have such key or cannot be reached
+     */
+    public Optional<String> find(String origin, String domain, String keyId) {
+        return Optional.ofNullable(get(origin, domain, keyId).keys.get(keyId));
+    }
+
+}
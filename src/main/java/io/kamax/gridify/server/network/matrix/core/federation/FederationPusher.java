@@ -20,74 +20,336 @@
 
 package io.kamax.gridify.server.network.matrix.core.federation;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.config.FederationConfig;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.event.EventStreams;
 import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
 import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.network.matrix.core.MatrixCore;
+import io.kamax.gridify.server.network.matrix.core.domain.MatrixDomain;
 import io.kamax.gridify.server.network.matrix.core.event.BareMemberEvent;
 import io.kamax.gridify.server.network.matrix.core.event.RoomEventType;
 import io.kamax.gridify.server.network.matrix.core.room.RoomMembership;
 import io.kamax.gridify.server.network.matrix.core.room.RoomState;
+import io.kamax.gridify.server.util.KxLog;
 import net.engio.mbassy.listener.Handler;
+import org.slf4j.Logger;
 
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.RecursiveAction;
+import java.lang.invoke.MethodHandles;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+/**
+ * Send events of local servers to the remote servers in the same rooms.
+ * <p>
+ * Each pair of local domain and remote server has its own queue: pending events are sent in transactions of up to
+ * {@value #maxPdus} PDUs, with at most one transaction in flight at any time. A failed transaction is retried with an
+ * exponential backoff. The stream position of the last event sent is stored, so a restart resumes from there.
+ */
 public class FederationPusher {
 
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private static final String destinationType = "mx-fed";
+    private static final int maxPdus = 50;
+    private static final long minBackoffMs = 1000;
+    private static final long maxBackoffMs = 60 * 60 * 1000;
+    private static final long catchUpPollMs = 100;
+
+    private static class Pending {
+
+        private final ChannelEvent event;
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Pending(ChannelEvent event) {
+            this.event = event;
+        }
+
+    }
+
+    private class Destination {
+
+        private final String origin;
+        private final String remote;
+        private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingSize = new AtomicInteger();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+        private final AtomicLong maxDropped = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final AtomicLong txnCounter = new AtomicLong();
+
+        // Only accessed from the running task
+        private List<Pending> batch = new ArrayList<>();
+        private String batchTxnId;
+        private long position; // Every event of the stream up to it was sent, or is to be sent again
+        private int failures;
+        private boolean catchingUp;
+        private long catchUpPosition;
+        private long catchUpStart;
+        private final Set<Long> caughtUp = new HashSet<>(); // Events read from the store that might also be queued
+
+        Destination(String origin, String remote, long position, boolean catchingUp) {
+            this.origin = origin;
+            this.remote = remote;
+            this.position = position;
+            this.catchingUp = catchingUp;
+            this.catchUpPosition = position;
+            this.catchUpStart = core.store().getStreamPosition(EventStreams.MatrixRooms());
+        }
+
+        void offer(Pending p) {
+            if (pendingSize.incrementAndGet() > queueSize) {
+                pendingSize.decrementAndGet();
+                drop(p);
+                overflowed.set(true);
+            } else {
+                pending.add(p);
+            }
+            schedule(0);
+        }
+
+        // Dropped events are read back from the store, catching up does not end before reaching them
+        private void drop(Pending p) {
+            maxDropped.accumulateAndGet(p.event.getSid(), Math::max);
+            p.sent.completeExceptionally(new IllegalStateException("Queue to " + remote + " is full, event will be sent from the store"));
+        }
+
+        private Pending poll() {
+            Pending p = pending.poll();
+            if (Objects.nonNull(p)) {
+                pendingSize.decrementAndGet();
+            }
+            return p;
+        }
+
+        void schedule(long delayMs) {
+            if (!running.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (delayMs > 0) {
+                scheduler.schedule(() -> senders.execute(this::run), delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                senders.execute(this::run);
+            }
+        }
+
+        private void startCatchUp() {
+            for (Pending p = poll(); Objects.nonNull(p); p = poll()) {
+                drop(p);
+            }
+
+            if (catchingUp) {
+                return;
+            }
+
+            log.warn("Federation to {} as {}: too many events queued, sending from stream position {} instead", remote, origin, position);
+            catchingUp = true;
+            catchUpPosition = position;
+            catchUpStart = core.store().getStreamPosition(EventStreams.MatrixRooms());
+            caughtUp.clear();
+        }
+
+        private void fillFromStore() {
+            while (batch.size() < maxPdus) {
+                long streamPosition = core.store().getStreamPosition(EventStreams.MatrixRooms());
+                List<ChannelEvent> events = core.store().getNext(EventStreams.MatrixRooms(), catchUpPosition, maxPdus);
+                for (ChannelEvent ev : events) {
+                    catchUpPosition = ev.getSid();
+                    if (ev.getMeta().isPresent() && origin.equals(ev.asMatrix().getOrigin()) && getRemotes(ev).contains(remote)) {
+                        batch.add(new Pending(ev));
+                        // Events committed since catching up started were possibly also queued
+                        if (ev.getSid() > catchUpStart) {
+                            caughtUp.add(ev.getSid());
+                        }
+                    }
+                }
+
+                if (events.size() < maxPdus) {
+                    // Everything up to the stream position as it was before reading has been read
+                    catchUpPosition = Math.max(catchUpPosition, streamPosition);
+                    if (catchUpPosition >= maxDropped.get()) {
+                        log.info("Federation to {} as {}: caught up to stream position {}", remote, origin, catchUpPosition);
+                        catchingUp = false;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void fillFromQueue() {
+            while (batch.size() < maxPdus) {
+                Pending p = poll();
+                if (Objects.isNull(p)) {
+                    return;
+                }
+
+                if (caughtUp.remove(p.event.getSid())) {
+                    // Already sent while catching up
+                    p.sent.complete(null);
+                    continue;
+                }
+
+                batch.add(p);
+            }
+        }
+
+        // Events are not queued in stream order, so we can only vouch for positions below the lowest one still queued
+        private long getSentPosition(long lastSid) {
+            long sentPosition = lastSid;
+            for (Pending p : pending) {
+                sentPosition = Math.min(sentPosition, p.event.getSid() - 1);
+            }
+            return sentPosition;
+        }
+
+        private void run() {
+            long delayMs = 0;
+            try {
+                if (overflowed.compareAndSet(true, false)) {
+                    startCatchUp();
+                }
+
+                if (batch.isEmpty()) {
+                    if (catchingUp) {
+                        fillFromStore();
+                        if (batch.isEmpty() && catchingUp) {
+                            // Waiting on events still being committed
+                            delayMs = catchUpPollMs;
+                            return;
+                        }
+                    } else {
+                        fillFromQueue();
+                    }
+
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+
+                    batchTxnId = Instant.now().toEpochMilli() + "." + txnCounter.incrementAndGet();
+                }
+
+                List<JsonObject> pdus = batch.stream().map(p -> p.event.getData()).collect(Collectors.toList());
+                try {
+                    core.hsMgr().getLink(origin, remote).push(batchTxnId, pdus);
+                } catch (RuntimeException e) {
+                    failures++;
+                    delayMs = Math.min(maxBackoffMs, minBackoffMs << Math.min(failures - 1, 20));
+                    log.warn("Federation to {} as {}: transaction {} with {} PDU(s) failed {} time(s), retrying in {} ms: {}",
+                            remote, origin, batchTxnId, pdus.size(), failures, delayMs, e.getMessage());
+                    batch.forEach(p -> p.sent.completeExceptionally(e));
+                    return;
+                }
+
+                failures = 0;
+                long lastSid = batch.stream().mapToLong(p -> p.event.getSid()).max().orElse(position);
+                position = Math.max(position, catchingUp ? lastSid : getSentPosition(lastSid));
+                core.store().setStreamIdForDestination(destinationType, remote, origin, position);
+                log.debug("Federation to {} as {}: transaction {} sent with {} PDU(s), now at stream position {}",
+                        remote, origin, batchTxnId, pdus.size(), position);
+                batch.forEach(p -> p.sent.complete(null));
+                batch = new ArrayList<>();
+            } catch (RuntimeException e) {
+                log.error("Federation to {} as {}: unexpected error", remote, origin, e);
+                delayMs = minBackoffMs;
+            } finally {
+                running.set(false);
+                if (delayMs > 0 || catchingUp || !batch.isEmpty() || !pending.isEmpty() || overflowed.get()) {
+                    schedule(delayMs);
+                }
+            }
+        }
+
+    }
+
     private final MatrixCore core;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final ExecutorService senders;
+    private final ScheduledExecutorService scheduler;
+    private final int queueSize;
     private boolean enabled;
     private boolean async;
 
     public FederationPusher(MatrixCore core) {
         this.core = core;
+        FederationConfig.Outbound cfg = core.gridify().getConfig().getFederation().getOutbound();
+        this.queueSize = cfg.getQueueSize();
+        // There is at most one task per destination, so the queue is bounded by the number of destinations
+        this.senders = Executors.newFixedThreadPool(cfg.getThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("gridify-mx-fed-sender-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("gridify-mx-fed-scheduler-%d").setDaemon(true).build());
         setEnabled(true);
         setAsync(true);
     }
 
+    private Set<String> getRemotes(ChannelEvent ev) {
+        RoomState state = core.roomMgr().get(ev.asMatrix().getRoomId()).getState(ev);
+        return state.getEvents().stream()
+                .filter(sEv -> RoomEventType.Member.match(sEv.asMatrix().getType()))
+                .filter(sEv -> RoomMembership.Join.match(BareMemberEvent.computeMembership(sEv.getData())))
+                .map(sEv -> sEv.asMatrix().getOrigin())
+                .filter(origin -> !core.isLocal(origin))
+                .collect(Collectors.toSet());
+    }
+
+    private Destination getDestination(String origin, String remote) {
+        return destinations.computeIfAbsent(origin + "/" + remote, k -> {
+            // Events before are not for this remote server, it was not in any of our rooms yet
+            long position = core.store().getStreamPosition(EventStreams.MatrixRooms());
+            return new Destination(origin, remote, position, false);
+        });
+    }
+
+    /**
+     * Resume sending to the remote servers we had already sent events to, from where we stopped.
+     * <p>
+     * To be called once the local domains are loaded.
+     */
+    public void resume() {
+        for (MatrixDomain domain : core.getDomains()) {
+            String origin = domain.getDomain();
+            core.store().getStreamIdsForDestinations(destinationType, origin).forEach((remote, position) -> {
+                Destination dest = destinations.computeIfAbsent(origin + "/" + remote, k -> new Destination(origin, remote, position, true));
+                dest.schedule(0);
+            });
+        }
+    }
+
     @Handler
     private void handle(ChannelMessageProcessed signal) {
         if (!isEnabled()) {
             return;
         }
 
-        if (!core.isLocal(signal.getEvent().asMatrix().getOrigin())) {
+        ChannelEvent ev = signal.getEvent();
+        String origin = ev.asMatrix().getOrigin();
+        if (!core.isLocal(origin)) {
             // TODO send over cluster if needed
             return;
         }
 
-        ForkJoinTask<Void> task = ForkJoinPool.commonPool().submit(new RecursiveAction() {
-            @Override
-            protected void compute() {
-                RoomState state = core.roomMgr().get(signal.getEvent().asMatrix().getRoomId()).getState(signal.getEvent());
-                Set<String> remotes = state.getEvents().stream()
-                        .filter(ev -> RoomEventType.Member.match(ev.asMatrix().getType()))
-                        .filter(ev -> RoomMembership.Join.match(BareMemberEvent.computeMembership(ev.getData())))
-                        .map(ev -> ev.asMatrix().getOrigin())
-                        .filter(origin -> !core.isLocal(origin))
-                        .collect(Collectors.toSet());
-
-                invokeAll(remotes.stream().map(remote -> new RecursiveAction() {
-                    @Override
-                    protected void compute() {
-                        String vHost = signal.getEvent().asMatrix().getOrigin();
-                        String scope = signal.getEvent().getChannelId();
-                        HomeServerLink link = core.hsMgr().getLink(vHost, remote);
-                        link.push(signal.getEvent().getData());
-                        core.store().setStreamIdForDestination("mx-fed", remote, scope, signal.getEvent().getSid());
-                    }
-                }).collect(Collectors.toList()));
-            }
-        });
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (String remote : getRemotes(ev)) {
+            Pending p = new Pending(ev);
+            getDestination(origin, remote).offer(p);
+            sent.add(p.sent);
+        }
 
         if (!isAsync()) {
             try {
-                task.get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+                CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.warn("Event {} could not be sent to all servers yet: {}", ev.getId(), e.getCause().getMessage());
             }
         }
     }
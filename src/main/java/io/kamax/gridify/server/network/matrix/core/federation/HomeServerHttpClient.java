@@ -22,7 +22,7 @@ package io.kamax.gridify.server.network.matrix.core.federation;
 
 import com.google.gson.JsonObject;
 import io.kamax.gridify.server.App;
-import io.kamax.gridify.server.core.federation.Address;
+import io.kamax.gridify.server.config.FederationConfig;
 import io.kamax.gridify.server.network.matrix.core.RemoteServerException;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
@@ -31,9 +31,10 @@ import org.apache.http.HttpRequest;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.EntityBuilder;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustAllStrategy;
@@ -48,18 +49,10 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class HomeServerHttpClient implements HomeServerClient {
 
@@ -69,8 +62,9 @@ public class HomeServerHttpClient implements HomeServerClient {
     public static boolean useHttps = true;
 
     private final CloseableHttpClient client;
+    private final ServerDiscovery discovery;
 
-    public HomeServerHttpClient() {
+    public HomeServerHttpClient(FederationConfig.Servers cfg) {
         try {
             // FIXME properly handle SSL context by validating certificate hostname
             SSLContext sslContext = SSLContextBuilder.create().loadTrustMaterial(TrustAllStrategy.INSTANCE).build();
@@ -94,6 +88,8 @@ public class HomeServerHttpClient implements HomeServerClient {
         } catch (KeyStoreException | NoSuchAlgorithmException | KeyManagementException e) {
             throw new RuntimeException(e);
         }
+
+        this.discovery = new ServerDiscovery(client, useHttps, cfg);
     }
 
     private HttpEntity getJsonEntity(Object o) {
@@ -107,8 +103,8 @@ public class HomeServerHttpClient implements HomeServerClient {
         return GsonUtil.parse(EntityUtils.toString(res.getEntity(), StandardCharsets.UTF_8), c);
     }
 
-    private void applyAuthHeaders(HttpRequest httpRequest, HomeServerRequest mxRequest) {
-        httpRequest.setHeader("Host", mxRequest.getDoc().getDestination());
+    private void applyAuthHeaders(HttpRequest httpRequest, ServerDiscovery.Target target, HomeServerRequest mxRequest) {
+        httpRequest.setHeader("Host", target.getHost());
         httpRequest.setHeader("Authorization",
                 "X-Matrix origin=" + mxRequest.getDoc().getOrigin() + "," +
                         "key=\"" + mxRequest.getSign().getKeyId() + "\"," +
@@ -116,60 +112,9 @@ public class HomeServerHttpClient implements HomeServerClient {
         );
     }
 
-    private URI lookupSrv(String domain) {
-        List<Address> addrs = new ArrayList<>();
-
-        // Check if we have a port in it
-        int i = domain.lastIndexOf(":");
-        // Check if this is an IPv6 address
-        int j = domain.lastIndexOf("]");
-
-        // We want to be sure there is a port separator AFTER the end of an IPv6 ending with ]
-        if (i > -1 && i > j) {
-            // This is a domain with a port already declared in it
-            addrs.add(new Address(domain.substring(0, i), Integer.parseInt(domain.substring(i + 1))));
-        } else {
-            // This is a domain without port
-            addrs.add(new Address(domain, useHttps ? 443 : 80));
-        }
-
-        String protocol = useHttps ? "https://" : "http://";
-        String uriPrefix = addrs.stream().flatMap(addr -> {
-            try {
-                URI uri = new URI(protocol + addr.getHost() + ":" + addr.getPort() + "/.well-known/matrix/server");
-                HttpGet req = new HttpGet(uri);
-                try (CloseableHttpResponse res = client.execute(req)) {
-                    int sc = res.getStatusLine().getStatusCode();
-                    if (sc == 404) {
-                        return Stream.of(new URIBuilder(uri).setPath("").build().toURL());
-                    } else if (sc == 200) {
-                        try {
-                            JsonObject obj = GsonUtil.parseObj(EntityUtils.toString(res.getEntity(), StandardCharsets.UTF_8));
-                            String urlRaw = GsonUtil.findString(obj, "m.server")
-                                    .orElseGet(() -> addr.getHost() + ":" + addr.getPort());
-                            return Stream.of(new URL(protocol + urlRaw));
-                        } catch (IllegalArgumentException e) {
-                            log.warn("Malformed well-known object, ignoring");
-                            return Stream.empty();
-                        }
-                    } else {
-                        log.warn("Status code {} from well-known discovery", sc);
-                        return Stream.empty();
-                    }
-                } catch (IOException e) {
-                    log.warn("Unable to connect/read to/from {}, ignoring from auto-discovery", uri, e);
-                    return Stream.of(new URIBuilder(uri).setPath("").build().toURL());
-                }
-            } catch (URISyntaxException | MalformedURLException e) {
-                return Stream.empty();
-            }
-        }).collect(Collectors.toList()).get(0).toString();
-        return URI.create(uriPrefix);
-    }
-
-    private HomeServerResponse sendGet(URI target, HomeServerRequest request) {
-        HttpGet req = new HttpGet(target);
-        applyAuthHeaders(req, request);
+    private HomeServerResponse sendGet(ServerDiscovery.Target target, HomeServerRequest request) {
+        HttpGet req = new HttpGet(target.getUri().resolve(request.getDoc().getUri()));
+        applyAuthHeaders(req, target, request);
 
         log.info("Calling [{}] {}", request.getDoc().getDestination(), req);
         try (CloseableHttpResponse res = client.execute(req)) {
@@ -188,9 +133,16 @@ public class HomeServerHttpClient implements HomeServerClient {
         }
     }
 
-    private HomeServerResponse sendPut(URI target, HomeServerRequest request) {
-        HttpPut req = new HttpPut(target);
-        applyAuthHeaders(req, request);
+    private HomeServerResponse sendPut(ServerDiscovery.Target target, HomeServerRequest request) {
+        return sendWithBody(new HttpPut(target.getUri().resolve(request.getDoc().getUri())), target, request);
+    }
+
+    private HomeServerResponse sendPost(ServerDiscovery.Target target, HomeServerRequest request) {
+        return sendWithBody(new HttpPost(target.getUri().resolve(request.getDoc().getUri())), target, request);
+    }
+
+    private HomeServerResponse sendWithBody(HttpEntityEnclosingRequestBase req, ServerDiscovery.Target target, HomeServerRequest request) {
+        applyAuthHeaders(req, target, request);
         req.setEntity(getJsonEntity(request.getDoc().getContent()));
 
         log.info("Calling [{}] {}", request.getDoc().getDestination(), req);
@@ -212,8 +164,7 @@ public class HomeServerHttpClient implements HomeServerClient {
     @Override
     public HomeServerResponse doRequest(HomeServerRequest request) {
         String remoteDomain = request.getDoc().getDestination();
-        URI target = lookupSrv(remoteDomain)
-                .resolve(request.getDoc().getUri());
+        ServerDiscovery.Target target = discovery.resolve(remoteDomain);
         if ("GET".equals(request.getDoc().getMethod())) {
             return sendGet(target, request);
         }
@@ -222,6 +173,10 @@ public class HomeServerHttpClient implements HomeServerClient {
             return sendPut(target, request);
         }
 
+        if ("POST".equals(request.getDoc().getMethod())) {
+            return sendPost(target, request);
+        }
+
         throw new IllegalArgumentException("Method " + request.getDoc().getMethod() + " is not supported");
     }
 
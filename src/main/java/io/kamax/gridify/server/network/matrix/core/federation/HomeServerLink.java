@@ -20,6 +20,7 @@
 
 package io.kamax.gridify.server.network.matrix.core.federation;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import io.kamax.gridify.server.core.crypto.Signature;
@@ -108,6 +109,17 @@ public class HomeServerLink {
         return build(destination, method, uri, null);
     }
 
+    public JsonObject getServerKeys() {
+        URI uri = build(URIPath.root().add("key", "v2", "server"));
+        HomeServerRequest request = build(domain, "GET", new URIBuilder(uri));
+        HomeServerResponse res = client.doRequest(request);
+        if (res.getCode() != 200) {
+            throw new RemoteServerException(domain, res.getBody());
+        }
+
+        return res.getBody();
+    }
+
     public Optional<RoomLookup> lookup(String roomAlias) {
         URI uri = build(URIPath.federation().v1().add("query", "directory"),
                 new String[]{"room_alias", roomAlias});
@@ -204,13 +216,14 @@ public class HomeServerLink {
         return getPreviousEvents(roomId, latestEvents, earliestEvents, minDeph, 10);
     }
 
-    public void push(JsonObject ev) {
+    public void push(String txnId, List<JsonObject> pdus) {
         long timestamp = Instant.now().toEpochMilli();
-        URI path = URI.create("/_matrix/federation/v1/send/" + timestamp);
+        URI path = build(URIPath.federation().v1().add("send", txnId));
         JsonObject body = new JsonObject();
-        body.addProperty("origin", domain);
+        body.addProperty("origin", origin);
         body.addProperty("origin_server_ts", timestamp);
-        body.add("pdus", GsonUtil.asArray(ev));
+        body.add("pdus", GsonUtil.asArray(pdus));
+        body.add("edus", new JsonArray());
         HomeServerRequest req = build(domain, "PUT", new URIBuilder(path), body);
         HomeServerResponse response = client.doRequest(req);
         if (response.getCode() != 200) {
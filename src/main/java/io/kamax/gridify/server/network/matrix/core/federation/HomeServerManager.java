@@ -34,7 +34,7 @@ public class HomeServerManager {
 
     public HomeServerManager(GridifyServer g) {
         this.g = g;
-        networkClient = new HomeServerHttpClient();
+        networkClient = new HomeServerHttpClient(g.getConfig().getFederation().getServers());
     }
 
     public void setNetworkClient(HomeServerClient networkClient) {
@@ -0,0 +1,396 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.network.matrix.core.federation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.config.FederationConfig;
+import io.kamax.gridify.server.core.federation.Address;
+import io.kamax.gridify.server.util.GsonUtil;
+import io.kamax.gridify.server.util.KxLog;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Find where the federation API of a server name is reachable, following the Matrix server discovery steps: IP
+ * literal or explicit port, then <code>.well-known/matrix/server</code> delegation, then the
+ * <code>_matrix._tcp</code> SRV record, then the name itself on the default port.
+ * <p>
+ * Results are cached for as long as the well-known response and SRV record allow, within bounds, and failed lookups
+ * are remembered too. Entries close to expiring are refreshed in the background while the current one keeps being
+ * served, and concurrent lookups for the same server name share a single discovery.
+ */
+public class ServerDiscovery {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private static final Duration minTtl = Duration.ofMinutes(5);
+    private static final Duration maxTtl = Duration.ofHours(48);
+    private static final Duration wellKnownDefaultTtl = Duration.ofHours(24);
+    // When the server answered but has no valid delegation
+    private static final Duration wellKnownInvalidTtl = Duration.ofHours(1);
+    // When the server could not be reached at all, which is likely to be transient
+    private static final Duration unreachableTtl = Duration.ofMinutes(2);
+
+    /**
+     * The outcome of a single lookup step, with how long it can be trusted for.
+     */
+    public static class Answer<T> {
+
+        public static <T> Answer<T> of(T value, Duration ttl) {
+            return new Answer<>(value, ttl);
+        }
+
+        public static <T> Answer<T> none(Duration ttl) {
+            return new Answer<>(null, ttl);
+        }
+
+        private final T value;
+        private final Duration ttl;
+
+        private Answer(T value, Duration ttl) {
+            this.value = value;
+            this.ttl = ttl;
+        }
+
+        public Optional<T> getValue() {
+            return Optional.ofNullable(value);
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+    }
+
+    /**
+     * Where to send requests for a server name.
+     */
+    public static class Target {
+
+        private final URI uri;
+        private final String host;
+        private final Instant refreshAt;
+        private final Instant expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Target(URI uri, String host, Instant now, Duration ttl) {
+            this.uri = uri;
+            this.host = host;
+            this.expiresAt = now.plus(ttl);
+            // Start refreshing once four fifths of the lifetime have passed
+            this.refreshAt = now.plus(ttl.multipliedBy(4).dividedBy(5));
+        }
+
+        /**
+         * @return The base URI to send requests to
+         */
+        public URI getUri() {
+            return uri;
+        }
+
+        /**
+         * @return The value of the Host header to send
+         */
+        public String getHost() {
+            return host;
+        }
+
+        public Instant getExpiresAt() {
+            return expiresAt;
+        }
+
+    }
+
+    private static Duration clamp(Duration ttl) {
+        if (ttl.compareTo(minTtl) < 0) {
+            return minTtl;
+        }
+
+        if (ttl.compareTo(maxTtl) > 0) {
+            return maxTtl;
+        }
+
+        return ttl;
+    }
+
+    // Split a server name into host and optional port, taking care of bracketed IPv6 literals
+    static Address parse(String name) {
+        int i = name.lastIndexOf(":");
+        int j = name.lastIndexOf("]");
+
+        // We want to be sure there is a port separator AFTER the end of an IPv6 ending with ]
+        if (i > -1 && i > j) {
+            return new Address(name.substring(0, i), Integer.parseInt(name.substring(i + 1)));
+        }
+
+        return new Address(name, -1);
+    }
+
+    private static boolean isIpLiteral(String host) {
+        return InetAddresses.isInetAddress(StringUtils.removeEnd(StringUtils.removeStart(host, "["), "]"));
+    }
+
+    private final CloseableHttpClient client;
+    private final String protocol;
+    private final int defaultPort;
+    private final Cache<String, CompletableFuture<Target>> targets;
+    private final ExecutorService refresher = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("gridify-fed-discovery-%d").setDaemon(true).build());
+
+    public ServerDiscovery(CloseableHttpClient client, boolean useHttps, FederationConfig.Servers cfg) {
+        this.client = client;
+        this.protocol = useHttps ? "https://" : "http://";
+        this.defaultPort = useHttps ? 443 : 80;
+        this.targets = CacheBuilder.newBuilder()
+                .maximumSize(cfg.getMaxSize())
+                .expireAfterAccess(cfg.getExpireAfter(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    private Duration getTtl(CloseableHttpResponse res, Duration fallback) {
+        Header cacheControl = res.getFirstHeader("Cache-Control");
+        if (Objects.nonNull(cacheControl)) {
+            for (String directive : cacheControl.getValue().split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (StringUtils.equalsAny(directive, "no-cache", "no-store")) {
+                    return Duration.ZERO;
+                }
+
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Duration.ofSeconds(Long.parseLong(directive.substring("max-age=".length())));
+                    } catch (NumberFormatException e) {
+                        log.debug("Ignoring invalid max-age directive: {}", directive);
+                    }
+                }
+            }
+        }
+
+        Header expires = res.getFirstHeader("Expires");
+        if (Objects.nonNull(expires)) {
+            Date date = DateUtils.parseDate(expires.getValue());
+            if (Objects.nonNull(date)) {
+                return Duration.between(Instant.now(), date.toInstant());
+            }
+        }
+
+        return fallback;
+    }
+
+    /**
+     * Fetch the well-known delegation of a host
+     *
+     * @param host The host to query, without port
+     * @return The delegated server name, if any
+     */
+    protected Answer<String> fetchWellKnown(String host) {
+        URI uri = URI.create(protocol + host + ":" + defaultPort + "/.well-known/matrix/server");
+        try (CloseableHttpResponse res = client.execute(new HttpGet(uri))) {
+            int sc = res.getStatusLine().getStatusCode();
+            if (sc != 200) {
+                log.debug("Status code {} from well-known discovery of {}", sc, host);
+                EntityUtils.consumeQuietly(res.getEntity());
+                return Answer.none(wellKnownInvalidTtl);
+            }
+
+            Duration ttl = getTtl(res, wellKnownDefaultTtl);
+            try {
+                JsonObject obj = GsonUtil.parseObj(EntityUtils.toString(res.getEntity(), StandardCharsets.UTF_8));
+                Optional<String> server = GsonUtil.findString(obj, "m.server").filter(StringUtils::isNotBlank);
+                if (!server.isPresent()) {
+                    log.warn("No m.server in well-known object of {}, ignoring", host);
+                    return Answer.none(wellKnownInvalidTtl);
+                }
+
+                return Answer.of(server.get(), ttl);
+            } catch (IllegalArgumentException e) {
+                log.warn("Malformed well-known object of {}, ignoring", host);
+                return Answer.none(wellKnownInvalidTtl);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to connect/read to/from {}, ignoring from auto-discovery: {}", uri, e.getMessage());
+            return Answer.none(unreachableTtl);
+        }
+    }
+
+    /**
+     * Find the federation SRV record of a host
+     *
+     * @param host The host to query
+     * @return The address to connect to, if there is such record
+     */
+    protected Answer<Address> findSrv(String host) {
+        try {
+            Lookup lookup = new Lookup("_matrix._tcp." + host, Type.SRV);
+            Record[] records = lookup.run();
+            if (lookup.getResult() != Lookup.SUCCESSFUL || Objects.isNull(records) || records.length == 0) {
+                if (lookup.getResult() == Lookup.TRY_AGAIN) {
+                    return Answer.none(unreachableTtl);
+                }
+
+                return Answer.none(wellKnownInvalidTtl);
+            }
+
+            // Lowest priority wins, then a random pick weighted by the records weight
+            int priority = Arrays.stream(records).mapToInt(r -> ((SRVRecord) r).getPriority()).min().orElse(0);
+            List<SRVRecord> candidates = new ArrayList<>();
+            for (Record r : records) {
+                SRVRecord srv = (SRVRecord) r;
+                if (srv.getPriority() == priority) {
+                    candidates.add(srv);
+                }
+            }
+
+            int total = candidates.stream().mapToInt(r -> r.getWeight() + 1).sum();
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            SRVRecord chosen = candidates.get(0);
+            for (SRVRecord srv : candidates) {
+                pick -= srv.getWeight() + 1;
+                if (pick < 0) {
+                    chosen = srv;
+                    break;
+                }
+            }
+
+            Address addr = new Address(chosen.getTarget().toString(true), chosen.getPort());
+            return Answer.of(addr, Duration.ofSeconds(chosen.getTTL()));
+        } catch (TextParseException e) {
+            log.warn("Invalid host for SRV lookup: {}", host);
+            return Answer.none(wellKnownInvalidTtl);
+        }
+    }
+
+    private Target build(Address addr, String host, Instant now, Duration ttl) {
+        return new Target(URI.create(protocol + addr.getHost() + ":" + addr.getPort()), host, now, clamp(ttl));
+    }
+
+    // Steps that apply to both the server name and a delegated name: IP literal, explicit port, SRV, default port
+    private Target resolveName(String name, Instant now, Duration ttl) {
+        Address addr = parse(name);
+        if (addr.getPort() > 0) {
+            return build(addr, name, now, ttl);
+        }
+
+        if (isIpLiteral(addr.getHost())) {
+            return build(new Address(addr.getHost(), defaultPort), name, now, ttl);
+        }
+
+        Answer<Address> srv = findSrv(addr.getHost());
+        ttl = srv.getTtl().compareTo(ttl) < 0 ? srv.getTtl() : ttl;
+        return build(srv.getValue().orElseGet(() -> new Address(addr.getHost(), defaultPort)), name, now, ttl);
+    }
+
+    private Target discover(String serverName) {
+        Instant now = Instant.now();
+        Address addr = parse(serverName);
+        if (addr.getPort() > 0 || isIpLiteral(addr.getHost())) {
+            // Nothing to look up, so there is no reason to ever refresh
+            return resolveName(serverName, now, maxTtl);
+        }
+
+        Answer<String> delegated = fetchWellKnown(addr.getHost());
+        Target target = delegated.getValue()
+                .map(name -> resolveName(name, now, delegated.getTtl()))
+                .orElseGet(() -> resolveName(serverName, now, delegated.getTtl()));
+        log.debug("Discovered {} at {}, valid until {}", serverName, target.getUri(), target.getExpiresAt());
+        return target;
+    }
+
+    private void refresh(String serverName, Target current) {
+        if (!current.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        refresher.execute(() -> {
+            try {
+                targets.put(serverName, CompletableFuture.completedFuture(discover(serverName)));
+            } catch (RuntimeException e) {
+                // The current entry will be used until it expires, then discovery will be done again
+                log.warn("Unable to refresh discovery of {}: {}", serverName, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Find where to reach a server
+     *
+     * @param serverName The server name, as found in IDs
+     * @return Where to send requests, and as which host
+     */
+    public Target resolve(String serverName) {
+        Instant now = Instant.now();
+        CompletableFuture<Target> created = new CompletableFuture<>();
+        CompletableFuture<Target> f = targets.asMap().compute(serverName, (k, v) -> {
+            if (Objects.isNull(v) || v.isCompletedExceptionally() || (v.isDone() && now.isAfter(v.join().expiresAt))) {
+                return created;
+            }
+
+            return v;
+        });
+
+        // Only the caller which created the entry does the discovery, others wait on it
+        if (f == created) {
+            try {
+                created.complete(discover(serverName));
+            } catch (Throwable t) {
+                created.completeExceptionally(t);
+                throw t;
+            }
+        }
+
+        Target target = f.join();
+        if (now.isAfter(target.refreshAt)) {
+            refresh(serverName, target);
+        }
+
+        return target;
+    }
+
+}
@@ -29,6 +29,7 @@ import io.kamax.gridify.server.core.event.EventStreams;
 import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
 import io.kamax.gridify.server.core.signal.SignalTopic;
 import io.kamax.gridify.server.core.store.ChannelStateDao;
+import io.kamax.gridify.server.core.store.EventCommit;
 import io.kamax.gridify.server.exception.ForbiddenException;
 import io.kamax.gridify.server.exception.ObjectNotFoundException;
 import io.kamax.gridify.server.network.matrix.core.RemoteServerException;
@@ -37,18 +38,21 @@ import io.kamax.gridify.server.network.matrix.core.event.BareEvent;
 import io.kamax.gridify.server.network.matrix.core.event.BareGenericEvent;
 import io.kamax.gridify.server.network.matrix.core.event.BareMemberEvent;
 import io.kamax.gridify.server.network.matrix.core.event.EventKey;
+import io.kamax.gridify.server.network.matrix.core.event.RoomEventType;
 import io.kamax.gridify.server.network.matrix.core.federation.HomeServerLink;
 import io.kamax.gridify.server.network.matrix.core.federation.RemoteForbiddenException;
 import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgo;
 import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgos;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
+import io.kamax.gridify.server.util.Mailbox;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class Room {
@@ -60,7 +64,8 @@ public class Room {
     private final String id;
     private final RoomAlgo algo;
 
-    private RoomView view;
+    private final Mailbox mailbox = new Mailbox(); // All changes to the room are made through it, one at a time
+    private volatile RoomView view;
 
     public Room(GridifyServer g, long sid, String id, RoomAlgo algo) {
         this.g = g;
@@ -269,10 +274,24 @@ public class Room {
         return g.getStore().saveEvent(event);
     }
 
+    // Keep the membership index in line with membership events becoming part of the room state
+    private void addMembership(EventCommit commit, ChannelEvent ev) {
+        if (!RoomEventType.Member.match(ev.asMatrix().getType())) {
+            return;
+        }
+
+        String userId = ev.asMatrix().getStateKey();
+        if (StringUtils.isEmpty(userId)) {
+            return;
+        }
+
+        BareMemberEvent.findMembership(ev.getData()).ifPresent(membership -> commit.addMembership(userId, membership));
+    }
+
     public ChannelEventAuthorization process(ChannelEvent event) {
         log.debug("Processing Event {} || {} || {}", event.asMatrix().getRoomId(), event.getId(), event.asMatrix().getType());
         RoomState state = getTrustedState(event);
-        ChannelEventAuthorization auth = algo.authorize(state, event.getId(), event.getData());
+        ChannelEventAuthorization auth = algo.authorize(state, event);
         auth.setEvent(event);
         event.processed(auth);
         g.getStore().saveEvent(event);
@@ -280,13 +299,17 @@ public class Room {
     }
 
     public ChannelEventAuthorization add(JsonObject eventDoc) {
-        return process(inject(eventDoc));
+        return mailbox.call(() -> process(inject(eventDoc)));
     }
 
     public ChannelEventAuthorization add(List<JsonObject> eventDocs) {
+        return mailbox.call(() -> doAdd(eventDocs));
+    }
+
+    private ChannelEventAuthorization doAdd(List<JsonObject> eventDocs) {
         ChannelEventAuthorization auth = null;
         for (JsonObject eventDoc : eventDocs) {
-            auth = add(eventDoc);
+            auth = process(inject(eventDoc));
             if (!auth.isAuthorized()) {
                 return auth;
             }
@@ -294,7 +317,15 @@ public class Room {
         return auth;
     }
 
+    public CompletableFuture<ChannelEventAuthorization> addSeedAsync(JsonObject seedDoc, List<JsonObject> desiredState) {
+        return mailbox.submit(() -> doAddSeed(seedDoc, desiredState));
+    }
+
     public ChannelEventAuthorization addSeed(JsonObject seedDoc, List<JsonObject> desiredState) {
+        return mailbox.call(() -> doAddSeed(seedDoc, desiredState));
+    }
+
+    private ChannelEventAuthorization doAddSeed(JsonObject seedDoc, List<JsonObject> desiredState) {
         List<ChannelEventAuthorization> auths = desiredState.stream()
                 .map(this::add)
                 .collect(Collectors.toList());
@@ -323,26 +354,22 @@ public class Room {
         seed.getMeta().setAllowed(auth.isAuthorized());
         seed.getMeta().setSeed(true);
         seed.getMeta().setProcessed(true);
-        g.getStore().saveEvent(seed);
-
-        // Save the state and map to seed
-        long stateStoreId = g.getStore().insertIfNew(sid, state);
-        state = new RoomState(stateStoreId, state);
-        g.getStore().map(seed.getLid(), state.getSid());
 
-        // Update forward extremities
-        // Remove any possible old ones and replace with the seed event reference
-        List<Long> toRemove = g.getStore().getForwardExtremities(sid);
-        List<Long> toAdd = Collections.singletonList(seed.getLid());
-        g.getStore().updateForwardExtremities(sid, toRemove, toAdd);
+        // Save the seed with its state as the only forward extremity, and insert it into the stream
+        EventCommit commit = new EventCommit(seed);
+        commit.setState(state);
+        commit.setSoleExtremity();
+        commit.setStream(EventStreams.MatrixRooms());
+        for (ChannelEvent member : state.getMembers()) {
+            addMembership(commit, member);
+        }
+        addMembership(commit, seed);
+        g.getStore().commit(commit);
 
         // Update the cached view
+        state = new RoomState(commit.getStateSid(), state);
         view = new RoomView(seed.getId(), state);
 
-        // Insert the seed event into the stream
-        long streamId = g.getStore().addToStream(EventStreams.MatrixRooms(), seed.getLid());
-        seed.setSid(streamId);
-
         // Publish onto the signal bus
         ChannelMessageProcessed busEvent = new ChannelMessageProcessed(seed, auth);
         g.getBus().forTopic(SignalTopic.Room).publish(busEvent);
@@ -352,6 +379,10 @@ public class Room {
 
     // Add an event to the room
     public ChannelEventAuthorization offer(String remoteDomain, String localDomain, ChannelEvent event) {
+        return mailbox.call(() -> doOffer(remoteDomain, localDomain, event));
+    }
+
+    private ChannelEventAuthorization doOffer(String remoteDomain, String localDomain, ChannelEvent event) {
         if (!event.hasLid()) {
             throw new IllegalStateException("Event must be saved before being offered");
         }
@@ -371,7 +402,7 @@ public class Room {
                     List<JsonObject> authChain = originHs.getAuthChain(getId(), event.getId());
                     algo.orderTopologically(authChain);
                     for (JsonObject authDoc : authChain) {
-                        add(authDoc);
+                        process(inject(authDoc));
                     }
                 } catch (RemoteForbiddenException e) {
                     // The remote HS refused to send the auth chain, possibly being malicious
@@ -447,45 +478,38 @@ public class Room {
 
                 // Offer all that has been found
                 for (ChannelEvent eventToOffer : eventsToOffer) {
-                    offer(remoteDomain, localDomain, eventToOffer);
+                    doOffer(remoteDomain, localDomain, eventToOffer);
                 }
             }
         }
 
         RoomState eventState = getState(event);
-        ChannelEventAuthorization eventStateAuth = algo.authorize(eventState, event.getId(), event.getData());
+        ChannelEventAuthorization eventStateAuth = algo.authorize(eventState, event);
         if (!eventStateAuth.isAuthorized()) {
             return eventStateAuth;
         }
 
         RoomState state = getView().getState();
-        ChannelEventAuthorization currentStateAuth = algo.authorize(state, event.getId(), event.getData());
+        ChannelEventAuthorization currentStateAuth = algo.authorize(state, event);
 
         event.processed(currentStateAuth);
-        g.getStore().saveEvent(event);
         if (!currentStateAuth.isAuthorized()) {
+            g.getStore().saveEvent(event);
             return currentStateAuth;
         }
 
-        List<Long> toRemove = event.asMatrix().getPreviousEvents().stream()
-                .map(id -> g.getStore().findEventLid(getId(), id))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
-        List<Long> toAdd = Collections.singletonList(event.getLid());
-        g.getStore().updateForwardExtremities(sid, toRemove, toAdd);
-
         state = state.apply(event);
-        long stateSid = g.getStore().insertIfNew(sid, state);
-        state = new RoomState(stateSid, state);
-        g.getStore().map(event.getLid(), state.getSid());
+        EventCommit commit = new EventCommit(event);
+        commit.setState(state);
+        commit.setExtremity(event.asMatrix().getPreviousEvents());
+        commit.setStream(EventStreams.MatrixRooms());
+        addMembership(commit, event);
+        g.getStore().commit(commit);
+
+        state = new RoomState(commit.getStateSid(), state);
         view = new RoomView(event.getId(), state);
         log.debug("Room {} - View updated to Event {} with state {}", getId(), event.getId(), state.getSid());
 
-        // Insert the seed event into the stream
-        long streamId = g.getStore().addToStream(EventStreams.MatrixRooms(), event.getLid());
-        event.setSid(streamId);
-
         // Publish onto the signal bus
         ChannelMessageProcessed busEvent = new ChannelMessageProcessed(event, currentStateAuth);
         g.getBus().forTopic(SignalTopic.Room).publish(busEvent);
@@ -493,7 +517,15 @@ public class Room {
         return currentStateAuth;
     }
 
+    public CompletableFuture<ChannelEventAuthorization> offerAsync(String remoteDomain, String localDomain, JsonObject eventDoc) {
+        return mailbox.submit(() -> doOffer(remoteDomain, localDomain, eventDoc));
+    }
+
     public ChannelEventAuthorization offer(String remoteDomain, String localDomain, JsonObject eventDoc) {
+        return mailbox.call(() -> doOffer(remoteDomain, localDomain, eventDoc));
+    }
+
+    private ChannelEventAuthorization doOffer(String remoteDomain, String localDomain, JsonObject eventDoc) {
         String eventId = algo.getEventId(eventDoc);
         ChannelEvent event = findEvent(eventId).orElseGet(() -> ChannelEvent.forNotFound(sid, eventId));
         if (event.getMeta().isProcessed()) {
@@ -508,45 +540,66 @@ public class Room {
         }
 
         event = g.getStore().saveEvent(event);
-        return offer(remoteDomain, localDomain, event);
+        return doOffer(remoteDomain, localDomain, event);
+    }
+
+    public CompletableFuture<List<ChannelEventAuthorization>> offerAsync(String remoteDomain, String localDomain, List<JsonObject> eventDocs) {
+        return mailbox.submit(() -> doOffer(remoteDomain, localDomain, eventDocs));
     }
 
     public List<ChannelEventAuthorization> offer(String remoteDomain, String localDomain, List<JsonObject> eventDocs) {
+        return mailbox.call(() -> doOffer(remoteDomain, localDomain, eventDocs));
+    }
+
+    private List<ChannelEventAuthorization> doOffer(String remoteDomain, String localDomain, List<JsonObject> eventDocs) {
         algo.orderTopologically(eventDocs);
 
         List<ChannelEventAuthorization> auths = new ArrayList<>();
         for (JsonObject doc : eventDocs) {
-            auths.add(offer(remoteDomain, localDomain, doc));
+            auths.add(doOffer(remoteDomain, localDomain, doc));
         }
 
         return auths;
     }
 
+    public CompletableFuture<ChannelEventAuthorization> offerAsync(BareEvent<?> event, MatrixDomainCryptopher crypto) {
+        return mailbox.submit(() -> doOffer(event, crypto));
+    }
+
     public ChannelEventAuthorization offer(BareEvent<?> event, MatrixDomainCryptopher crypto) {
+        return mailbox.call(() -> doOffer(event, crypto));
+    }
+
+    // The event is built from the current view, so it must be done within the same change as offering it
+    private ChannelEventAuthorization doOffer(BareEvent<?> event, MatrixDomainCryptopher crypto) {
         event.setOrigin(crypto.getDomain());
         event.setTimestamp(Instant.now().toEpochMilli());
-        return offer(crypto.getDomain(), crypto.getDomain(), finalize(crypto, populate(event.getJson())));
+        return doOffer(crypto.getDomain(), crypto.getDomain(), finalize(crypto, populate(event.getJson())));
+    }
+
+    public CompletableFuture<Void> putAsync(ChannelEvent ev, RoomState state) {
+        return mailbox.submit(() -> {
+            doPut(ev, state);
+            return null;
+        });
     }
 
     public void put(ChannelEvent ev, RoomState state) {
-        ev = g.getStore().saveEvent(ev);
-        state = new RoomState(g.getStore().insertIfNew(sid, state), state);
-        g.getStore().map(ev.getLid(), state.getSid());
-        List<Long> toRemove = ev.asMatrix().getPreviousEvents().stream()
-                .map(id -> g.getStore().findEventLid(getId(), id))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
-        List<Long> toAdd = Collections.singletonList(ev.getLid());
-        g.getStore().updateForwardExtremities(sid, toRemove, toAdd);
+        mailbox.run(() -> doPut(ev, state));
+    }
 
+    private void doPut(ChannelEvent ev, RoomState state) {
+        EventCommit commit = new EventCommit(ev);
+        commit.setState(state);
+        commit.setExtremity(ev.asMatrix().getPreviousEvents());
+        commit.setStream(EventStreams.MatrixRooms());
+        addMembership(commit, ev);
+        g.getStore().commit(commit);
+
+        state = new RoomState(commit.getStateSid(), state);
         view = new RoomView(ev.getId(), state);
         log.debug("Room {} - View updated to Event {} with empty state", getId(), ev.getId());
 
-        // Insert the event into the stream
-        long streamId = g.getStore().addToStream(EventStreams.MatrixRooms(), ev.getLid());
-        ev.setSid(streamId);
-
         // Publish onto the signal bus
         ChannelMessageProcessed busEvent = new ChannelMessageProcessed(ev, ChannelEventAuthorization.from(ev));
         g.getBus().forTopic(SignalTopic.Room).publish(busEvent);
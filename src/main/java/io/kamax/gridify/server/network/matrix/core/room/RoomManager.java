@@ -20,10 +20,14 @@
 
 package io.kamax.gridify.server.network.matrix.core.room;
 
+import com.google.common.cache.CacheStats;
 import com.google.gson.JsonObject;
 import io.kamax.gridify.server.GridifyServer;
 import io.kamax.gridify.server.core.channel.ChannelDao;
 import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
+import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
+import io.kamax.gridify.server.core.signal.SignalTopic;
+import io.kamax.gridify.server.core.store.UserMembershipDao;
 import io.kamax.gridify.server.exception.EntityUnreachableException;
 import io.kamax.gridify.server.exception.ForbiddenException;
 import io.kamax.gridify.server.exception.ObjectNotFoundException;
@@ -36,14 +40,15 @@ import io.kamax.gridify.server.network.matrix.core.federation.RoomJoinTemplate;
 import io.kamax.gridify.server.network.matrix.core.federation.RoomLeaveTemplate;
 import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgo;
 import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgos;
+import io.kamax.gridify.server.util.EntityCache;
 import io.kamax.gridify.server.util.GsonUtil;
 import io.kamax.gridify.server.util.KxLog;
+import net.engio.mbassy.listener.Handler;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class RoomManager {
@@ -51,10 +56,19 @@ public class RoomManager {
     private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
 
     private final GridifyServer g;
-    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final EntityCache<String, Room> rooms;
 
     public RoomManager(GridifyServer g) {
         this.g = g;
+        this.rooms = new EntityCache<>("room", g.getConfig().getRoom().getCache().getMaxWeight(),
+                r -> r.getView().getState().size());
+        g.getBus().forTopic(SignalTopic.Room).subscribe(this);
+    }
+
+    @Handler
+    private void handle(ChannelMessageProcessed signal) {
+        // The state of the room might have grown
+        rooms.reweigh(signal.getEvent().asMatrix().getRoomId());
     }
 
     private Room fromDao(ChannelDao dao) {
@@ -70,8 +84,7 @@ public class RoomManager {
         ChannelDao dao = new ChannelDao("matrix", "r", roomId, roomVersion);
         dao = g.getStore().saveChannel(dao);
         Room r = new Room(g, dao);
-        rooms.put(r.getId(), r);
-        return r;
+        return rooms.add(r.getId(), r);
     }
 
     public String createRoom(MatrixDomainCryptopher crypto, String creator, JsonObject options) {
@@ -121,17 +134,16 @@ public class RoomManager {
         return g.getStore().listChannels("matrix");
     }
 
-    public List<ChannelDao> listInvolved(String userId) {
-        return g.getStore().searchForRoomsInUserEvents("matrix", RoomEventType.Member.getId(), userId);
+    public List<UserMembershipDao> listInvolved(String userId) {
+        return g.getStore().listUserMemberships("matrix", userId);
     }
 
-    public synchronized Optional<Room> find(String rId) {
-        if (!rooms.containsKey(rId)) {
-            g.getStore().findChannel("matrix", "r", rId)
-                    .ifPresent(dao -> rooms.put(rId, fromDao(dao)));
-        }
+    public Optional<Room> find(String rId) {
+        return rooms.find(rId, id -> g.getStore().findChannel("matrix", "r", id).map(this::fromDao));
+    }
 
-        return Optional.ofNullable(rooms.get(rId));
+    public CacheStats getCacheStats() {
+        return rooms.getStats();
     }
 
     public Room get(String rId) {
@@ -21,9 +21,11 @@
 package io.kamax.gridify.server.network.matrix.core.room;
 
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.StateKey;
 import io.kamax.gridify.server.core.store.ChannelStateDao;
 import io.kamax.gridify.server.network.matrix.core.event.*;
 import io.kamax.gridify.server.util.GsonUtil;
+import io.kamax.gridify.server.util.HashTrieMap;
 
 import java.util.*;
 import java.util.function.Function;
@@ -63,7 +65,10 @@ public class RoomState {
     private boolean trusted = false;
     private boolean complete = false;
     private boolean finall = false; // because final is a reserved keyword
-    private Map<String, ChannelEvent> data = new HashMap<>();
+    // Immutable, so states can share it and only allocate what changes
+    private HashTrieMap<StateKey, ChannelEvent> data = HashTrieMap.empty();
+    private long parentSid = 0L; // Last stored state this one derives from
+    private HashTrieMap<StateKey, ChannelEvent> delta = HashTrieMap.empty(); // Changes since the parent state
 
     private RoomState() {
 
@@ -74,7 +79,7 @@ public class RoomState {
         this.trusted = state.trusted;
         this.complete = state.complete;
         this.finall = state.finall;
-        this.data = new HashMap<>(state.data);
+        this.data = state.data;
     }
 
     public RoomState(boolean trusted, boolean complete, boolean finall, List<ChannelEvent> events) {
@@ -103,23 +108,34 @@ public class RoomState {
         r.trusted = trusted;
         r.complete = complete;
         r.finall = finall;
-        r.data = new HashMap<>(data);
+        r.data = data;
+        r.parentSid = parentSid;
+        r.delta = delta;
         return r;
     }
 
-    private void addEvent(ChannelEvent ev) {
+    private StateKey addEvent(ChannelEvent ev) {
         String type = GsonUtil.getStringOrThrow(ev.getData(), EventKey.Type);
         String scope = GsonUtil.getStringOrThrow(ev.getData(), EventKey.StateKey);
-        String key = type + scope;
-        data.put(key, ev);
+        StateKey key = StateKey.of(type, scope).intern();
+        data = data.plus(key, ev);
+        return key;
     }
 
     public long getSid() {
         return sid;
     }
 
+    public long getParentSid() {
+        return parentSid;
+    }
+
+    public List<ChannelEvent> getDelta() {
+        return delta.values();
+    }
+
     public Optional<ChannelEvent> find(String type, String scope) {
-        return Optional.ofNullable(data.get(type + scope));
+        return Optional.ofNullable(data.get(StateKey.of(type, scope)));
     }
 
     public Optional<ChannelEvent> find(RoomEventType type) {
@@ -134,8 +150,12 @@ public class RoomState {
         return find(type, "", c);
     }
 
+    /**
+     * Find a state event parsed as the given type. Parsed events are kept with the event, so the returned object is
+     * shared and must not be changed.
+     */
     public <T> Optional<T> find(String type, String scope, Class<T> c) {
-        return find(type, scope).map(j -> GsonUtil.fromJson(j.getData(), c));
+        return find(type, scope).map(ev -> ev.as(c));
     }
 
     public <T> Optional<T> find(RoomEventType type, Class<T> c) {
@@ -147,7 +167,11 @@ public class RoomState {
     }
 
     public List<ChannelEvent> getEvents() {
-        return new ArrayList<>(data.values());
+        return data.values();
+    }
+
+    public int size() {
+        return data.size();
     }
 
     public ChannelEvent getCreation() {
@@ -201,8 +225,14 @@ public class RoomState {
         }
 
         RoomState state = new RoomState();
-        state.data = new HashMap<>(data);
-        state.addEvent(ev);
+        state.data = data;
+        if (sid > 0) {
+            state.parentSid = sid;
+        } else {
+            state.parentSid = parentSid;
+            state.delta = delta;
+        }
+        state.delta = state.delta.plus(state.addEvent(ev), ev);
 
         return state;
     }
@@ -23,6 +23,7 @@ package io.kamax.gridify.server.network.matrix.core.room.algo;
 import io.kamax.gridify.server.network.matrix.core.event.BarePowerEvent;
 
 import java.util.Objects;
+import java.util.stream.Stream;
 
 public class DefaultPowerEvent extends BarePowerEvent {
 
@@ -54,6 +55,32 @@ public class DefaultPowerEvent extends BarePowerEvent {
         return c;
     }
 
+    /**
+     * Same as {@link #applyDefaults(Content)} but leaves the given content untouched, as it might be shared.
+     *
+     * @param c The content to apply defaults on
+     * @return The content itself if there is nothing to apply, a copy with the defaults applied otherwise
+     */
+    public static Content withDefaults(Content c) {
+        if (Stream.of(c.getEventsDefault(), c.getStateDefault(), c.getUsersDefault(), c.getBan(), c.getInvite(), c.getKick())
+                .allMatch(Objects::nonNull)) {
+            return c;
+        }
+
+        Content d = new Content();
+        d.setBan(c.getBan());
+        d.setEvents(c.getEvents());
+        d.setEventsDefault(c.getEventsDefault());
+        d.setInvite(c.getInvite());
+        d.setKick(c.getKick());
+        d.setNotifications(c.getNotifications());
+        d.setRedact(c.getRedact());
+        d.setStateDefault(c.getStateDefault());
+        d.setUsers(c.getUsers());
+        d.setUsersDefault(c.getUsersDefault());
+        return applyDefaults(d);
+    }
+
     public DefaultPowerEvent() {
         applyDefaults(this.getContent());
     }
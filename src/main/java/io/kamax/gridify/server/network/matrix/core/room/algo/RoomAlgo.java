@@ -21,6 +21,7 @@
 package io.kamax.gridify.server.network.matrix.core.room.algo;
 
 import com.google.gson.JsonObject;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
 import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
 import io.kamax.gridify.server.network.matrix.core.crypto.MatrixDomainCryptopher;
 import io.kamax.gridify.server.network.matrix.core.event.BareEvent;
@@ -69,6 +70,10 @@ public interface RoomAlgo {
 
     ChannelEventAuthorization authorize(RoomState state, String evId, JsonObject ev);
 
+    default ChannelEventAuthorization authorize(RoomState state, ChannelEvent ev) {
+        return authorize(state, ev.getId(), ev.getData());
+    }
+
     List<BareEvent<?>> getCreationEvents(String domain, String creator, JsonObject options);
 
     JsonObject buildJoinEvent(RoomJoinTemplate template);
@@ -21,7 +21,6 @@
 package io.kamax.gridify.server.network.matrix.core.room.algo;
 
 import com.google.gson.JsonObject;
-import io.kamax.gridify.server.codec.CanonicalJson;
 import io.kamax.gridify.server.codec.GridHash;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
 import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
@@ -257,36 +256,36 @@ public class RoomAlgoV6 implements RoomAlgo {
 
     @Override
     public String validate(JsonObject evRaw) {
-        String eventId = getEventId(evRaw);
-        BareGenericEvent ev = toProto(evRaw);
-        ev.setId(eventId);
+        return validate(getEventId(evRaw), toProto(evRaw));
+    }
 
-        if (StringUtils.isEmpty(ev.getId())) {
+    private String validate(String eventId, BareEvent<?> ev) {
+        if (StringUtils.isEmpty(eventId)) {
             return "Invalid event, no ID";
         }
 
         if (StringUtils.isEmpty(ev.getType())) {
-            return "Event " + ev.getId() + ": Invalid: Type is missing/empty";
+            return "Event " + eventId + ": Invalid: Type is missing/empty";
         }
 
         if (Objects.isNull(ev.getTimestamp())) {
-            return "Event " + ev.getId() + ": Invalid: Timestamp is missing";
+            return "Event " + eventId + ": Invalid: Timestamp is missing";
         }
 
         if (StringUtils.isEmpty(ev.getOrigin())) {
-            return "Event " + ev.getId() + ": Invalid: Origin is missing/empty";
+            return "Event " + eventId + ": Invalid: Origin is missing/empty";
         }
 
         if (StringUtils.isEmpty(ev.getSender())) {
-            return "Event " + ev.getId() + ": Invalid: Sender is missing/empty";
+            return "Event " + eventId + ": Invalid: Sender is missing/empty";
         }
 
         if (Objects.isNull(ev.getPreviousEvents())) {
-            return "Event " + ev.getId() + ": Invalid: Parents missing";
+            return "Event " + eventId + ": Invalid: Parents missing";
         }
 
         if (Objects.isNull(ev.getDepth())) {
-            return "Event " + ev.getId() + ": Invalid: Depth is missing";
+            return "Event " + eventId + ": Invalid: Depth is missing";
         }
 
         return "";
@@ -301,10 +300,27 @@ public class RoomAlgoV6 implements RoomAlgo {
 
     @Override
     public ChannelEventAuthorization authorize(RoomState state, String evId, JsonObject evRaw) {
-        BareGenericEvent ev = toProto(evRaw);
+        if (RoomEventType.Member.match(evRaw)) {
+            return authorize(state, evId, evRaw, GsonUtil.fromJson(evRaw, BareMemberEvent.class));
+        }
+
+        return authorize(state, evId, evRaw, toProto(evRaw));
+    }
+
+    @Override
+    public ChannelEventAuthorization authorize(RoomState state, ChannelEvent ev) {
+        // The parsed event is kept with it, as the same event is usually authorized against several states
+        if (RoomEventType.Member.match(ev.getData())) {
+            return authorize(state, ev.getId(), ev.getData(), ev.as(BareMemberEvent.class));
+        }
+
+        return authorize(state, ev.getId(), ev.getData(), ev.asMatrix());
+    }
 
+    // The parsed event must be a BareMemberEvent for membership events
+    private ChannelEventAuthorization authorize(RoomState state, String evId, JsonObject evRaw, BareEvent<?> ev) {
         ChannelEventAuthorization.Builder auth = new ChannelEventAuthorization.Builder(evId);
-        String validation = validate(evRaw);
+        String validation = validate(evId, ev);
         if (StringUtils.isNotEmpty(validation)) {
             return auth.invalid(validation);
         }
@@ -330,13 +346,13 @@ public class RoomAlgoV6 implements RoomAlgo {
 
         BareCreateEvent.Content cEv = cOpt.map(BareCreateEvent::getContent).orElseGet(BareCreateEvent.Content::forUnknownCreator);
 
-        BarePowerEvent.Content pls = DefaultPowerEvent.applyDefaults(state.getPowers().orElseGet(() -> getDefaultPowers(cEv.getCreator())));
+        BarePowerEvent.Content pls = DefaultPowerEvent.withDefaults(state.getPowers().orElseGet(() -> getDefaultPowers(cEv.getCreator())));
         String sender = ev.getSender();
         RoomMembership senderMs = state.findMembership(sender).orElse(RoomMembership.Leave);
         long senderPl = pls.getUsers().getOrDefault(sender, pls.getUsersDefault());
 
         if (RoomEventType.Member.match(evType)) {
-            BareMemberEvent mEv = GsonUtil.fromJson(evRaw, BareMemberEvent.class);
+            BareMemberEvent mEv = (BareMemberEvent) ev;
             String membership = mEv.getContent().getMembership();
             String target = mEv.getStateKey();
             RoomMembership targetMs = state.findMembership(target).orElse(RoomMembership.Leave);
@@ -591,8 +607,7 @@ public class RoomAlgoV6 implements RoomAlgo {
         doc.remove(EventKey.Age); // Never seen it into a doc?
         doc.remove(EventKey.Signatures);
         doc.remove(EventKey.Unsigned);
-        String canonical = CanonicalJson.encode(doc);
-        return GridHash.get().hashFromUtf8(canonical);
+        return GridHash.get().hashCanonical(doc);
     }
 
     @Override
@@ -604,8 +619,7 @@ public class RoomAlgoV6 implements RoomAlgo {
         doc.remove(EventKey.Hashes);
         doc.remove(EventKey.Signatures);
         doc.remove(EventKey.Unsigned);
-        String canonical = CanonicalJson.encode(doc);
-        return GridHash.get().hashRawFromUtf8(canonical);
+        return GridHash.get().hashRawCanonical(doc);
     }
 
     private JsonObject computeContentHashObject(JsonObject doc) {
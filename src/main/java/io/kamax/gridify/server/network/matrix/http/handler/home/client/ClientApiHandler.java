@@ -29,6 +29,7 @@ import io.kamax.gridify.server.network.matrix.core.base.UserSession;
 import io.kamax.gridify.server.util.KxLog;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
 import io.undertow.util.HttpString;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
@@ -37,6 +38,11 @@ import org.slf4j.Logger;
 import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
 import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 public abstract class ClientApiHandler implements HttpHandler {
 
@@ -50,75 +56,134 @@ public abstract class ClientApiHandler implements HttpHandler {
             exchange.dispatch(this);
         } else {
             Exchange ex = new Exchange(exchange);
-            try {
+            process(exchange, ex, e -> {
                 // CORS headers as per spec
-                String origin = StringUtils.defaultIfBlank(ex.getHeader("Origin"), "*");
+                String origin = StringUtils.defaultIfBlank(e.getHeader("Origin"), "*");
                 exchange.getResponseHeaders().put(HttpString.tryFromString("Access-Control-Allow-Origin"), origin);
                 exchange.getResponseHeaders().put(HttpString.tryFromString("Access-Control-Allow-Methods"), "GET, POST, PUT, DELETE, OPTIONS");
                 exchange.getResponseHeaders().put(HttpString.tryFromString("Access-Control-Allow-Headers"), "Origin, X-Requested-With, Content-Type, Accept, Authorization");
 
-                handle(ex);
-            } catch (MatrixException e) {
-                ex.respond(e.getCode(), e.getErrCode(), e.getError());
-                log.debug("Trigger:", e);
-            } catch (IllegalArgumentException e) {
-                ex.respond(HttpStatus.SC_BAD_REQUEST, "M_INVALID_PARAM", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (MissingTokenException e) {
-                ex.respond(HttpStatus.SC_UNAUTHORIZED, "M_MISSING_TOKEN", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (InvalidTokenException e) {
-                ex.respond(HttpStatus.SC_UNAUTHORIZED, "M_UNKNOWN_TOKEN", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (ForbiddenException e) {
-                ex.respond(HttpStatus.SC_FORBIDDEN, "M_FORBIDDEN", e.getReason());
-                log.debug("Trigger:", e);
-            } catch (ObjectNotFoundException e) {
-                ex.respond(HttpStatus.SC_NOT_FOUND, "M_NOT_FOUND", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (NotImplementedException e) {
-                ex.respond(HttpStatus.SC_NOT_IMPLEMENTED, "M_NOT_IMPLEMENTED", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (EntityUnreachableException e) {
-                ex.respond(523, "ORG_GRIDIFY_ENTITY_UNREACHABLE", e.getMessage());
-                log.debug("Trigger:", e);
-            } catch (RemoteServerException e) {
-                String code = e.getCode();
-                if (StringUtils.startsWith(code, "G_")) {
-                    code = "M_" + code.substring(2); // TODO Generic transform, be smarter about it
-                }
-                ex.respond(HttpStatus.SC_BAD_GATEWAY, code, e.getReason());
-                log.debug("Trigger:", e);
-            } catch (RuntimeException | Error e) {
-                log.error("Unknown error when handling {} - CHECK THE SURROUNDING LOG LINES TO KNOW THE ACTUAL CAUSE!", exchange.getRequestURL(), e);
-                ex.respond(HttpStatus.SC_INTERNAL_SERVER_ERROR, ex.buildErrorBody("M_UNKNOWN",
-                        StringUtils.defaultIfBlank(
-                                e.getMessage(),
-                                "An internal server error occurred. Contact your system administrator with Log Reference " +
-                                        Instant.now().toEpochMilli()
-                        )
-                ));
-            } finally {
+                handle(e);
+            });
+        }
+    }
+
+    private void process(HttpServerExchange exchange, Exchange ex, Consumer<Exchange> action) {
+        try {
+            action.accept(ex);
+        } catch (MatrixException e) {
+            ex.respond(e.getCode(), e.getErrCode(), e.getError());
+            log.debug("Trigger:", e);
+        } catch (IllegalArgumentException e) {
+            ex.respond(HttpStatus.SC_BAD_REQUEST, "M_INVALID_PARAM", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (MissingTokenException e) {
+            ex.respond(HttpStatus.SC_UNAUTHORIZED, "M_MISSING_TOKEN", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (InvalidTokenException e) {
+            ex.respond(HttpStatus.SC_UNAUTHORIZED, "M_UNKNOWN_TOKEN", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (ForbiddenException e) {
+            ex.respond(HttpStatus.SC_FORBIDDEN, "M_FORBIDDEN", e.getReason());
+            log.debug("Trigger:", e);
+        } catch (ObjectNotFoundException e) {
+            ex.respond(HttpStatus.SC_NOT_FOUND, "M_NOT_FOUND", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (NotImplementedException e) {
+            ex.respond(HttpStatus.SC_NOT_IMPLEMENTED, "M_NOT_IMPLEMENTED", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (PayloadTooLargeException e) {
+            ex.respond(HttpStatus.SC_REQUEST_TOO_LONG, "M_TOO_LARGE", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (EntityUnreachableException e) {
+            ex.respond(523, "ORG_GRIDIFY_ENTITY_UNREACHABLE", e.getMessage());
+            log.debug("Trigger:", e);
+        } catch (RemoteServerException e) {
+            String code = e.getCode();
+            if (StringUtils.startsWith(code, "G_")) {
+                code = "M_" + code.substring(2); // TODO Generic transform, be smarter about it
+            }
+            ex.respond(HttpStatus.SC_BAD_GATEWAY, code, e.getReason());
+            log.debug("Trigger:", e);
+        } catch (RuntimeException | Error e) {
+            log.error("Unknown error when handling {} - CHECK THE SURROUNDING LOG LINES TO KNOW THE ACTUAL CAUSE!", exchange.getRequestURL(), e);
+            ex.respond(HttpStatus.SC_INTERNAL_SERVER_ERROR, ex.buildErrorBody("M_UNKNOWN",
+                    StringUtils.defaultIfBlank(
+                            e.getMessage(),
+                            "An internal server error occurred. Contact your system administrator with Log Reference " +
+                                    Instant.now().toEpochMilli()
+                    )
+            ));
+        } finally {
+            if (!ex.isDetached()) {
                 exchange.endExchange();
             }
+        }
 
-            // TODO refactor the common code from the various API handlers into a single class
-            if (log.isInfoEnabled()) {
-                String remotePeer = exchange.getConnection().getPeerAddress(InetSocketAddress.class).getAddress().getHostAddress();
-                String method = exchange.getRequestMethod().toString();
-                String path = exchange.getRequestURI();
-                int statusCode = exchange.getStatusCode();
-                long writtenByes = exchange.getResponseBytesSent();
-
-                if (StringUtils.isEmpty(ex.getError())) {
-                    log.info("{} - {} {} - {} - {}", remotePeer, method, path, statusCode, writtenByes);
-                } else {
-                    log.info("{} - {} {} - {} - {} - {}", remotePeer, method, path, statusCode, writtenByes, ex.getError());
-                }
+        if (ex.isDetached()) {
+            return;
+        }
+
+        // TODO refactor the common code from the various API handlers into a single class
+        if (log.isInfoEnabled()) {
+            String remotePeer = exchange.getConnection().getPeerAddress(InetSocketAddress.class).getAddress().getHostAddress();
+            String method = exchange.getRequestMethod().toString();
+            String path = exchange.getRequestURI();
+            int statusCode = exchange.getStatusCode();
+            long writtenByes = exchange.getResponseBytesSent();
+
+            if (StringUtils.isEmpty(ex.getError())) {
+                log.info("{} - {} {} - {} - {}", remotePeer, method, path, statusCode, writtenByes);
+            } else {
+                log.info("{} - {} {} - {} - {} - {}", remotePeer, method, path, statusCode, writtenByes, ex.getError());
             }
         }
     }
 
+    private static <T> void respond(Exchange ex, T value, Throwable t) {
+        if (Objects.isNull(t)) {
+            ex.respondJson(value);
+            return;
+        }
+
+        Throwable cause = t instanceof CompletionException && Objects.nonNull(t.getCause()) ? t.getCause() : t;
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Send the response once it is available, without holding a worker thread in the meantime.
+     * <p>
+     * The exchange is parked when the handler returns, then completed on a worker thread, going through the same error
+     * handling as synchronous handlers. If the response is already available, it is sent right away.
+     *
+     * @param ex       The exchange to respond to
+     * @param response The response to send as JSON
+     */
+    protected <T> void respondLater(Exchange ex, CompletableFuture<T> response) {
+        if (response.isDone()) {
+            try {
+                respond(ex, response.join(), null);
+            } catch (CompletionException | CancellationException e) {
+                respond(ex, null, e);
+            }
+            return;
+        }
+
+        HttpServerExchange exchange = ex.getUnderlying();
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> response.whenComplete((value, t) ->
+                exchange.getConnection().getWorker().execute(() -> {
+                    ex.setDetached(false);
+                    process(exchange, ex, e -> respond(e, value, t));
+                })));
+        ex.setDetached(true);
+    }
+
     protected MatrixDataClient getClient(GridifyServer g, Exchange ex) {
         return g.overMatrix().vHost(ex.requireHost()).asClient();
     }
@@ -24,7 +24,6 @@ import io.kamax.gridify.server.GridifyServer;
 import io.kamax.gridify.server.core.SyncOptions;
 import io.kamax.gridify.server.http.Exchange;
 import io.kamax.gridify.server.network.matrix.core.base.UserSession;
-import io.kamax.gridify.server.network.matrix.http.json.SyncResponse;
 import org.apache.commons.lang3.StringUtils;
 
 public class SyncHandler extends AuthenticatedClientApiHandler {
@@ -49,8 +48,8 @@ public class SyncHandler extends AuthenticatedClientApiHandler {
             }
         }
 
-        SyncResponse data = session.sync(options);
-        ex.respondJson(data);
+        // Long-polling: the worker thread is released while waiting for events
+        respondLater(ex, session.syncAsync(options));
     }
 
 }
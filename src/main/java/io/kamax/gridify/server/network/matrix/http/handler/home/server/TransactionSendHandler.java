@@ -20,9 +20,7 @@
 
 package io.kamax.gridify.server.network.matrix.http.handler.home.server;
 
-import com.google.gson.JsonObject;
 import io.kamax.gridify.server.GridifyServer;
-import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
 import io.kamax.gridify.server.http.Exchange;
 import io.kamax.gridify.server.network.matrix.core.base.ServerSession;
 import io.kamax.gridify.server.network.matrix.http.json.ServerTransaction;
@@ -30,7 +28,6 @@ import io.kamax.gridify.server.util.KxLog;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
-import java.util.List;
 
 public class TransactionSendHandler extends AuthenticatedServerApiHandler {
 
@@ -46,9 +43,7 @@ public class TransactionSendHandler extends AuthenticatedServerApiHandler {
 
         ServerTransaction txn = ex.parseJsonTo(ServerTransaction.class);
         txn.setId(txnId);
-        List<ChannelEventAuthorization> auths = session.push(txn); // TODO deal with it
-
-        ex.respond(new JsonObject());
+        ex.respond(session.send(txn));
     }
 
 }
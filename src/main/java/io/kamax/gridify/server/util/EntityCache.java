@@ -0,0 +1,163 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keep the most used entities in memory, up to a total weight, and load each of them at most once when missing.
+ * <p>
+ * Entities are expected to be the only instance allowed to change what they represent. An evicted entity that is still
+ * referenced somewhere, like by a task in progress, is given back again instead of loading a second instance.
+ *
+ * @param <K> The type of keys
+ * @param <V> The type of entities
+ */
+public class EntityCache<K, V> {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private static class NotFoundException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        NotFoundException() {
+            super(null, null, false, false);
+        }
+
+    }
+
+    private final Cache<K, V> cache;
+    private final Cache<K, V> live;
+
+    /**
+     * @param name      The name of the entities, for logging
+     * @param maxWeight The maximum total weight of the entities kept in memory
+     * @param weigher   Give the weight of an entity, computed when it is added and each time it is re-weighed
+     */
+    public EntityCache(String name, long maxWeight, ToIntFunction<V> weigher) {
+        this.live = CacheBuilder.newBuilder().weakValues().build();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((K key, V value) -> Math.max(1, weigher.applyAsInt(value)))
+                .removalListener(n -> {
+                    if (n.getCause() == RemovalCause.SIZE) {
+                        log.debug("Evicted {} {} from memory", name, n.getKey());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Find an entity, loading it if not in memory
+     *
+     * @param key    The key of the entity
+     * @param loader Load the entity when not in memory, called at most once at a time for a given key
+     * @return The entity, if it exists
+     */
+    public Optional<V> find(K key, Function<K, Optional<V>> loader) {
+        try {
+            return Optional.of(cache.get(key, () -> {
+                V value = live.getIfPresent(key);
+                if (Objects.nonNull(value)) {
+                    return value;
+                }
+
+                value = loader.apply(key).orElseThrow(NotFoundException::new);
+                live.put(key, value);
+                return value;
+            }));
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof NotFoundException) {
+                return Optional.empty();
+            }
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        } catch (ExecutionException e) {
+            // Our loader does not throw checked exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Add a new entity, unless one is already known for the key
+     *
+     * @param key   The key of the entity
+     * @param value The entity
+     * @return The entity in use for the key, which might not be the given one
+     */
+    public V add(K key, V value) {
+        try {
+            V known = live.get(key, () -> value);
+            return cache.get(key, () -> known);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Compute again the weight of an entity still in memory, after it changed, and evict others if needed
+     *
+     * @param key The key of the entity
+     */
+    public void reweigh(K key) {
+        ConcurrentMap<K, V> map = cache.asMap();
+        V value = map.get(key);
+        if (Objects.nonNull(value)) {
+            // Replacing an entry weighs it again, and is a no-op if it was evicted or replaced meanwhile
+            map.replace(key, value, value);
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return The hit, miss, load and eviction counts since creation
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+}
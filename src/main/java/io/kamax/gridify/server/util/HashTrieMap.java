@@ -0,0 +1,296 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.gridify.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable Hash Array Mapped Trie.
+ * <p>
+ * Adding or replacing an entry returns a new map sharing all untouched nodes with the previous one, so only the path
+ * to the changed entry is allocated. Entries cannot be removed, which is all channel states need.
+ */
+public final class HashTrieMap<K, V> {
+
+    private static final int bits = 5;
+    private static final int mask = (1 << bits) - 1;
+
+    private static final class Entry<K, V> {
+
+        private final int hash;
+        private final K key;
+        private final V value;
+
+        Entry(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+    private interface Node<K, V> {
+
+        V find(int hash, Object key, int shift);
+
+        Node<K, V> put(Entry<K, V> entry, int shift, boolean[] added);
+
+        void forEach(BiConsumer<? super K, ? super V> consumer);
+
+    }
+
+    private static final class BitmapNode<K, V> implements Node<K, V> {
+
+        // Create the smallest node able to hold two entries which have different hashes
+        private static <K, V> Node<K, V> of(Entry<K, V> e1, Entry<K, V> e2, int shift) {
+            if (e1.hash == e2.hash) {
+                return new CollisionNode<>(e1.hash, new Object[]{e1, e2});
+            }
+
+            int idx1 = (e1.hash >>> shift) & mask;
+            int idx2 = (e2.hash >>> shift) & mask;
+            if (idx1 == idx2) {
+                return new BitmapNode<>(1 << idx1, new Object[]{of(e1, e2, shift + bits)});
+            }
+
+            Object[] slots = idx1 < idx2 ? new Object[]{e1, e2} : new Object[]{e2, e1};
+            return new BitmapNode<>((1 << idx1) | (1 << idx2), slots);
+        }
+
+        private final int bitmap;
+        private final Object[] slots; // Either an Entry or a Node
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int position(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V find(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & mask);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+
+            Object slot = slots[position(bit)];
+            if (slot instanceof Entry) {
+                Entry<K, V> e = (Entry<K, V>) slot;
+                return e.hash == hash && Objects.equals(e.key, key) ? e.value : null;
+            }
+
+            return ((Node<K, V>) slot).find(hash, key, shift + bits);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> put(Entry<K, V> entry, int shift, boolean[] added) {
+            int bit = 1 << ((entry.hash >>> shift) & mask);
+            int pos = position(bit);
+
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, pos);
+                newSlots[pos] = entry;
+                System.arraycopy(slots, pos, newSlots, pos + 1, slots.length - pos);
+                added[0] = true;
+                return new BitmapNode<>(bitmap | bit, newSlots);
+            }
+
+            Object slot = slots[pos];
+            Object newSlot;
+            if (slot instanceof Entry) {
+                Entry<K, V> e = (Entry<K, V>) slot;
+                if (e.hash == entry.hash && Objects.equals(e.key, entry.key)) {
+                    if (e.value == entry.value) {
+                        return this;
+                    }
+
+                    newSlot = entry;
+                } else {
+                    added[0] = true;
+                    newSlot = of(e, entry, shift + bits);
+                }
+            } else {
+                Node<K, V> node = (Node<K, V>) slot;
+                Node<K, V> newNode = node.put(entry, shift + bits, added);
+                if (newNode == node) {
+                    return this;
+                }
+
+                newSlot = newNode;
+            }
+
+            Object[] newSlots = slots.clone();
+            newSlots[pos] = newSlot;
+            return new BitmapNode<>(bitmap, newSlots);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEach(BiConsumer<? super K, ? super V> consumer) {
+            for (Object slot : slots) {
+                if (slot instanceof Entry) {
+                    Entry<K, V> e = (Entry<K, V>) slot;
+                    consumer.accept(e.key, e.value);
+                } else {
+                    ((Node<K, V>) slot).forEach(consumer);
+                }
+            }
+        }
+
+    }
+
+    // For keys with the exact same hash, which can only be told apart with equals()
+    private static final class CollisionNode<K, V> implements Node<K, V> {
+
+        private final int hash;
+        private final Object[] entries;
+
+        CollisionNode(int hash, Object[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V find(int hash, Object key, int shift) {
+            if (this.hash != hash) {
+                return null;
+            }
+
+            for (Object o : entries) {
+                Entry<K, V> e = (Entry<K, V>) o;
+                if (Objects.equals(e.key, key)) {
+                    return e.value;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> put(Entry<K, V> entry, int shift, boolean[] added) {
+            if (this.hash != entry.hash) {
+                // Push this node one level down, next to the new entry
+                int idx = (hash >>> shift) & mask;
+                Node<K, V> node = new BitmapNode<>(1 << idx, new Object[]{this});
+                return node.put(entry, shift, added);
+            }
+
+            for (int i = 0; i < entries.length; i++) {
+                Entry<K, V> e = (Entry<K, V>) entries[i];
+                if (Objects.equals(e.key, entry.key)) {
+                    if (e.value == entry.value) {
+                        return this;
+                    }
+
+                    Object[] newEntries = entries.clone();
+                    newEntries[i] = entry;
+                    return new CollisionNode<>(hash, newEntries);
+                }
+            }
+
+            Object[] newEntries = new Object[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            added[0] = true;
+            return new CollisionNode<>(hash, newEntries);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEach(BiConsumer<? super K, ? super V> consumer) {
+            for (Object o : entries) {
+                Entry<K, V> e = (Entry<K, V>) o;
+                consumer.accept(e.key, e.value);
+            }
+        }
+
+    }
+
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(new BitmapNode<>(0, new Object[0]), 0);
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrieMap<K, V> empty() {
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    private static int hash(Object key) {
+        int h = Objects.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private HashTrieMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(Object key) {
+        return root.find(hash(key), key, 0);
+    }
+
+    public boolean containsKey(Object key) {
+        return Objects.nonNull(get(key));
+    }
+
+    public HashTrieMap<K, V> plus(K key, V value) {
+        Objects.requireNonNull(value);
+
+        boolean[] added = new boolean[1];
+        Node<K, V> newRoot = root.put(new Entry<>(hash(key), key, value), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+
+        return new HashTrieMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> consumer) {
+        root.forEach(consumer);
+    }
+
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach((k, v) -> values.add(v));
+        return values;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, with power-of-two microsecond buckets.
+ * <p>
+ * Bucket <code>i</code> counts durations below <code>2^i</code> microseconds, the last one counting everything above.
+ * Percentiles are the upper bound of the bucket they fall in, so at most twice the actual value.
+ */
+public class LatencyHistogram {
+
+    private static final int bucketCount = 32;
+
+    private final LongAdder[] buckets = new LongAdder[bucketCount];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int i = Math.min(bucketCount - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[i].increment();
+        count.increment();
+        total.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Record the time elapsed since the given start
+     *
+     * @param start The start, as given by {@link System#nanoTime()}
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean duration, in microseconds
+     */
+    public long getMean() {
+        long c = getCount();
+        return c == 0 ? 0 : total.sum() / c;
+    }
+
+    /**
+     * @return The longest duration, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the duration below which the percentile of durations fall, in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBuckets();
+        long c = 0;
+        for (long v : counts) {
+            c += v;
+        }
+        if (c == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(c * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(1L << i, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return The amount of durations in each bucket
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMean() + "us, p50=" + getPercentile(50) + "us, p99=" +
+                getPercentile(99) + "us, max=" + getMax() + "us";
+    }
+
+}
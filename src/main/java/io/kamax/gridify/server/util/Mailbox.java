@@ -0,0 +1,155 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.gridify.server.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Run tasks one at a time and in submission order, without owning a thread.
+ * <p>
+ * Mailboxes share a pool, so tasks of different mailboxes run in parallel while the tasks of a given mailbox never
+ * overlap. The pool is not bounded as tasks might block on remote servers, and must not starve other mailboxes when
+ * doing so.
+ */
+public class Mailbox {
+
+    private static final ExecutorService shared = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("gridify-mailbox-%d").setDaemon(true).build());
+
+    // How many tasks are run in a row before giving the thread back to the pool
+    private static final int tasksPerRun = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Thread runner;
+
+    public Mailbox() {
+        this(shared);
+    }
+
+    public Mailbox(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return true if called from a task of this mailbox
+     */
+    public boolean isCurrent() {
+        return runner == Thread.currentThread();
+    }
+
+    /**
+     * Queue a task
+     *
+     * @param task The task to run
+     * @param <T>  The type of result
+     * @return The result of the task, once run
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        schedule();
+        return result;
+    }
+
+    /**
+     * Run a task and wait for its result. Tasks calling this are run directly, so they can call each other.
+     *
+     * @param task The task to run
+     * @param <T>  The type of result
+     * @return The result of the task
+     */
+    public <T> T call(Supplier<T> task) {
+        if (isCurrent()) {
+            return task.get();
+        }
+
+        try {
+            return submit(task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    public void run(Runnable task) {
+        call(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void drain() {
+        runner = Thread.currentThread();
+        try {
+            for (int i = 0; i < tasksPerRun; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+
+                task.run();
+            }
+        } finally {
+            runner = null;
+            scheduled.set(false);
+        }
+
+        // Tasks might have been queued after our last poll but before we were done
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+
+}
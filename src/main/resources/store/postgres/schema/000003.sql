@@ -0,0 +1,4 @@
+ALTER TABLE channel_states
+    ADD COLUMN parent_lid bigint DEFAULT NULL,
+    ADD COLUMN delta_depth integer NOT NULL DEFAULT 0
+;
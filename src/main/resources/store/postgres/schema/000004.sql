@@ -0,0 +1,26 @@
+CREATE TABLE user_memberships
+(
+    user_id text NOT NULL,
+    channel_lid bigint NOT NULL,
+    membership text NOT NULL,
+    event_lid bigint NOT NULL,
+    stream_sid bigint NOT NULL,
+    CONSTRAINT u_mem_uq UNIQUE (user_id, channel_lid)
+);
+
+-- Matrix events use state_key and content.membership, Grid events use scope and content.action
+INSERT INTO user_memberships (user_id, channel_lid, membership, event_lid, stream_sid)
+SELECT DISTINCT ON (COALESCE(e.data->>'state_key', e.data->>'scope'), e.channel_lid)
+       COALESCE(e.data->>'state_key', e.data->>'scope'),
+       e.channel_lid,
+       COALESCE(e.data->'content'->>'membership', e.data->'content'->>'action'),
+       e.lid,
+       s.sid
+FROM channel_events e
+JOIN channel_event_stream s ON s.lid = e.lid
+WHERE e.meta->>'processed' = 'true'
+  AND e.meta->>'allowed' = 'true'
+  AND e.data->>'type' IN ('m.room.member', 'g.c.s.member')
+  AND COALESCE(e.data->>'state_key', e.data->>'scope') IS NOT NULL
+  AND COALESCE(e.data->'content'->>'membership', e.data->'content'->>'action') IS NOT NULL
+ORDER BY COALESCE(e.data->>'state_key', e.data->>'scope'), e.channel_lid, s.sid DESC;
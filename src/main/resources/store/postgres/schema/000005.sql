@@ -0,0 +1,81 @@
+-- Primary keys on local IDs, which every join and lookup by lid relies on
+ALTER TABLE entities ADD CONSTRAINT entities_pk PRIMARY KEY (lid);
+ALTER TABLE domains ADD CONSTRAINT domains_pk PRIMARY KEY (lid);
+ALTER TABLE channels ADD CONSTRAINT channels_pk PRIMARY KEY (lid);
+ALTER TABLE channel_events ADD CONSTRAINT c_ev_pk PRIMARY KEY (lid);
+ALTER TABLE channel_states ADD CONSTRAINT c_state_pk PRIMARY KEY (lid);
+ALTER TABLE identity_users ADD CONSTRAINT id_user_pk PRIMARY KEY (lid);
+
+-- Covered by the primary key or by a unique constraint with the same leading column
+DROP INDEX IF EXISTS id_user_lid_idx;
+DROP INDEX IF EXISTS id_user_id_idx;
+DROP INDEX IF EXISTS entities_id_idx;
+DROP INDEX IF EXISTS c_ev_id_idx;
+
+-- Event lookups by local ID, timeline walks per channel
+CREATE INDEX IF NOT EXISTS ces_lid_idx
+    ON channel_event_stream(lid);
+CREATE INDEX IF NOT EXISTS c_ev_cid_lid_idx
+    ON channel_events(channel_lid, lid);
+DROP INDEX IF EXISTS c_ev_cid_idx;
+
+-- State resolution: event to state, state to its events, and the parent chain
+CREATE INDEX IF NOT EXISTS c_ev_states_ev_idx
+    ON channel_event_states(event_lid, state_lid);
+CREATE INDEX IF NOT EXISTS c_state_data_state_idx
+    ON channel_state_data(state_lid, event_lid);
+CREATE INDEX IF NOT EXISTS c_state_parent_idx
+    ON channel_states(parent_lid);
+
+-- Extremities are listed per channel and removed per event
+CREATE INDEX IF NOT EXISTS c_ext_fwd_cid_idx
+    ON channel_extremities_forward(channel_lid, event_lid);
+CREATE INDEX IF NOT EXISTS c_ext_fwd_ev_idx
+    ON channel_extremities_forward(event_lid);
+CREATE INDEX IF NOT EXISTS c_ext_bwd_cid_idx
+    ON channel_extremities_backward(channel_lid, event_lid);
+CREATE INDEX IF NOT EXISTS c_ext_bwd_ev_idx
+    ON channel_extremities_backward(event_lid);
+
+CREATE INDEX IF NOT EXISTS u_token_user_idx
+    ON user_access_tokens(user_lid);
+
+-- Membership lookups of a user across rooms, only processed and allowed events are ever looked for
+CREATE INDEX IF NOT EXISTS c_ev_member_idx
+    ON channel_events((data->>'state_key'), (data->>'type'))
+    WHERE meta->>'processed' = 'true' AND meta->>'allowed' = 'true';
+CREATE INDEX IF NOT EXISTS u_mem_cid_idx
+    ON user_memberships(channel_lid);
+
+-- Foreign keys are checked at commit, as rows of a single transaction are not inserted in dependency order.
+-- Existing rows are not validated so the migration does not scan large tables. Run VALIDATE CONSTRAINT to do so.
+ALTER TABLE channel_events
+    ADD CONSTRAINT c_ev_cid_fk FOREIGN KEY (channel_lid) REFERENCES channels(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_event_stream
+    ADD CONSTRAINT ces_lid_fk FOREIGN KEY (lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_states
+    ADD CONSTRAINT c_state_cid_fk FOREIGN KEY (channel_lid) REFERENCES channels(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT c_state_parent_fk FOREIGN KEY (parent_lid) REFERENCES channel_states(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_state_data
+    ADD CONSTRAINT c_state_data_state_fk FOREIGN KEY (state_lid) REFERENCES channel_states(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT c_state_data_ev_fk FOREIGN KEY (event_lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_event_states
+    ADD CONSTRAINT c_ev_states_ev_fk FOREIGN KEY (event_lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT c_ev_states_state_fk FOREIGN KEY (state_lid) REFERENCES channel_states(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_extremities_forward
+    ADD CONSTRAINT c_ext_fwd_cid_fk FOREIGN KEY (channel_lid) REFERENCES channels(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT c_ext_fwd_ev_fk FOREIGN KEY (event_lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE channel_extremities_backward
+    ADD CONSTRAINT c_ext_bwd_cid_fk FOREIGN KEY (channel_lid) REFERENCES channels(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT c_ext_bwd_ev_fk FOREIGN KEY (event_lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE user_memberships
+    ADD CONSTRAINT u_mem_cid_fk FOREIGN KEY (channel_lid) REFERENCES channels(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID,
+    ADD CONSTRAINT u_mem_ev_fk FOREIGN KEY (event_lid) REFERENCES channel_events(lid) DEFERRABLE INITIALLY DEFERRED NOT VALID;
+ALTER TABLE user_access_tokens
+    ADD CONSTRAINT u_token_user_fk FOREIGN KEY (user_lid) REFERENCES identity_users(lid) ON DELETE CASCADE NOT VALID;
+ALTER TABLE identity_user_credentials
+    ADD CONSTRAINT id_u_creds_user_fk FOREIGN KEY (user_lid) REFERENCES identity_users(lid) ON DELETE CASCADE NOT VALID;
+ALTER TABLE identity_user_store_links
+    ADD CONSTRAINT id_u_store_links_user_fk FOREIGN KEY (user_lid) REFERENCES identity_users(lid) ON DELETE CASCADE NOT VALID;
+ALTER TABLE identity_user_threepids
+    ADD CONSTRAINT id_u_tpid_user_fk FOREIGN KEY (user_lid) REFERENCES identity_users(lid) ON DELETE CASCADE NOT VALID;
@@ -0,0 +1,10 @@
+CREATE TABLE transactions
+(
+    scope text NOT NULL,
+    id text NOT NULL,
+    result jsonb NOT NULL,
+    created bigint NOT NULL,
+    CONSTRAINT txn_uq UNIQUE (scope, id)
+);
+CREATE INDEX IF NOT EXISTS txn_created_idx
+    ON transactions(created);
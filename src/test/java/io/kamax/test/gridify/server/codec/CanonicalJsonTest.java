@@ -0,0 +1,152 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.gridify.server.codec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.gridify.server.codec.CanonicalJson;
+import io.kamax.gridify.server.codec.GridHash;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CanonicalJsonTest {
+
+    // Reference encoding, as done through Gson before the streaming encoder
+    private static void write(JsonElement el, JsonWriter writer) throws IOException {
+        if (el.isJsonObject()) {
+            writer.beginObject();
+            List<Map.Entry<String, JsonElement>> entries = new ArrayList<>(el.getAsJsonObject().entrySet());
+            entries.sort(Map.Entry.comparingByKey());
+            for (Map.Entry<String, JsonElement> entry : entries) {
+                writer.name(entry.getKey());
+                write(entry.getValue(), writer);
+            }
+            writer.endObject();
+        } else if (el.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement item : el.getAsJsonArray()) {
+                write(item, writer);
+            }
+            writer.endArray();
+        } else if (el.isJsonNull()) {
+            writer.nullValue();
+        } else {
+            writer.jsonValue(el.toString());
+        }
+    }
+
+    private static String reference(JsonObject obj) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(false);
+        writer.setIndent("");
+        write(obj, writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    private static JsonObject sample() {
+        JsonObject content = new JsonObject();
+        content.addProperty("body", "Quote \" backslash \\ tab \t newline \n cr \r bs \b ff \f ctrl \u0001\u001f");
+        content.addProperty("html", "<b>&amp;</b> = '");
+        content.addProperty("unicode", "\u00e9\u65e5\u672c\u8a9e \u2028 \u2029 \ud83d\ude00 \u007f\u0080\u07ff\u0800\uffff");
+        content.addProperty("int", 42);
+        content.addProperty("negative", -9007199254740991L);
+        content.addProperty("bool", true);
+        content.add("null", JsonNull.INSTANCE);
+
+        JsonArray array = new JsonArray();
+        array.add("a");
+        array.add(1);
+        array.add(false);
+        array.add(new JsonObject());
+        array.add(new JsonArray());
+        content.add("array", array);
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("type", "m.room.message");
+        obj.addProperty("\u65e5", "key ordering");
+        obj.addProperty("Z", "key ordering");
+        obj.add("content", content);
+        return obj;
+    }
+
+    @Test
+    public void sameAsGsonWriter() throws IOException {
+        JsonObject obj = sample();
+        String expected = reference(obj);
+        assertEquals(expected, CanonicalJson.encode(obj));
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), CanonicalJson.encodeBytes(obj));
+    }
+
+    @Test
+    public void largerThanBuffer() throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            b.append("\u00e9\ud83d\ude00x");
+        }
+
+        JsonObject obj = new JsonObject();
+        obj.addProperty("big", b.toString());
+        assertEquals(reference(obj), CanonicalJson.encode(obj));
+    }
+
+    @Test
+    public void streamedHashSameAsStringHash() throws Exception {
+        JsonObject obj = sample();
+        String expected = GridHash.get().hashFromUtf8(reference(obj));
+        String expectedRaw = GridHash.get().hashRawFromUtf8(reference(obj));
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(pool.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        assertEquals(expected, GridHash.get().hashCanonical(obj));
+                        assertEquals(expectedRaw, GridHash.get().hashRawCanonical(obj));
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
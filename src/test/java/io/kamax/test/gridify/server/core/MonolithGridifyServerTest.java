@@ -29,6 +29,7 @@ import io.kamax.gridify.server.core.UserSession;
 import io.kamax.gridify.server.core.channel.Channel;
 import io.kamax.gridify.server.core.channel.ChannelMembership;
 import io.kamax.gridify.server.core.identity.User;
+import io.kamax.gridify.server.exception.InvalidTokenException;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
@@ -57,4 +58,20 @@ public class MonolithGridifyServerTest {
         g.stop();
     }
 
+    @Test(expected = InvalidTokenException.class)
+    public void sessionTokenRevoked() {
+        GridifyConfig cfg = GridifyConfig.inMemory();
+        GridifyServer g = new MonolithGridifyServer(cfg);
+        g.start();
+
+        User u = g.register("gridify", "gridify");
+        String token = g.createSessionToken("grid", u);
+        User resolved = g.validateSessionToken(token);
+        assertEquals(u.getId(), resolved.getId());
+        assertSame(resolved, g.validateSessionToken(token));
+
+        g.destroySessionToken(token);
+        g.validateSessionToken(token);
+    }
+
 }
@@ -44,7 +44,9 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.charset.StandardCharsets;
 
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertNotEquals;
 
 // FIXME uses other classes like MatrixDomainCrypto, should be self-contained
 public class Ed25519CryptopherTest {
@@ -147,4 +149,22 @@ public class Ed25519CryptopherTest {
         signEvent("m.room.message");
     }
 
+    @Test
+    public void decodedKeyDroppedOnChange() {
+        MemoryKeyStore store = new MemoryKeyStore();
+        Ed25519Cryptopher crypto = new Ed25519Cryptopher(store);
+        KeyIdentifier id = crypto.generateKey("Test key");
+        String pubKey = crypto.getPublicKeyBase64(id);
+        assertEquals(pubKey, crypto.getPublicKeyBase64(id));
+
+        // Replace the key material directly in the store
+        store.update(new Ed25519Key(id, "Test key", TestData.SIGN_KEY_SEED));
+        String newPubKey = cryptopher.getPublicKeyBase64(key.getId());
+        assertNotEquals(pubKey, newPubKey);
+        assertEquals(newPubKey, crypto.getPublicKeyBase64(id));
+
+        crypto.disableKey(id);
+        assertEquals(newPubKey, crypto.getPublicKeyBase64(id));
+    }
+
 }
@@ -0,0 +1,198 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.federation;
+
+import io.kamax.gridify.server.config.FederationConfig;
+import io.kamax.gridify.server.core.federation.DataServer;
+import io.kamax.gridify.server.core.federation.DataServerHttpClient;
+import io.kamax.gridify.server.core.federation.DataServerManager;
+import io.kamax.gridify.server.exception.RemoteServerException;
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DataServerManagerTest {
+
+    private static final int port = 60011;
+    private static final int closedPort = 60012; // Nothing listens on it
+    private static final String domain = "localhost:" + port;
+    private static final String as = "localhost";
+
+    private static final AtomicInteger discoveries = new AtomicInteger();
+    private static volatile int wellKnownStatus;
+    private static volatile String wellKnownServer;
+    private static boolean useHttps;
+    private static Undertow server;
+
+    @BeforeClass
+    public static void init() {
+        useHttps = DataServerHttpClient.useHttps;
+        DataServerHttpClient.useHttps = false;
+
+        // Answers discovery as configured, and every other request with an empty object
+        server = Undertow.builder()
+                .addHttpListener(port, "localhost")
+                .setHandler(ex -> {
+                    ex.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+                    if ("/.well-known/grid".equals(ex.getRequestPath())) {
+                        discoveries.incrementAndGet();
+                        ex.setStatusCode(wellKnownStatus);
+                        ex.getResponseSender().send(Objects.isNull(wellKnownServer) ? "{}" : "{\"data\":{\"server\":\"" + wellKnownServer + "\"}}");
+                    } else {
+                        ex.getResponseSender().send("{}");
+                    }
+                })
+                .build();
+        server.start();
+    }
+
+    @AfterClass
+    public static void deinit() {
+        DataServerHttpClient.useHttps = useHttps;
+        if (Objects.nonNull(server)) {
+            server.stop();
+        }
+    }
+
+    @Before
+    public void reset() {
+        discoveries.set(0);
+        wellKnownStatus = 404;
+        wellKnownServer = null;
+    }
+
+    private DataServer get(FederationConfig cfg) {
+        return new DataServerManager(cfg).resolve(domain);
+    }
+
+    @Test
+    public void endpointReusedAcrossRequests() {
+        DataServer srv = get(new FederationConfig());
+        assertTrue(srv.ping(as));
+        assertTrue(srv.ping(as));
+        assertTrue(srv.ping(as));
+        assertEquals(1, discoveries.get());
+    }
+
+    @Test
+    public void endpointExpiresAfterTtl() throws InterruptedException {
+        FederationConfig cfg = new FederationConfig();
+        cfg.getServers().setEndpointTtl(1);
+        DataServer srv = get(cfg);
+
+        assertTrue(srv.ping(as));
+        assertTrue(srv.ping(as));
+        assertEquals(1, discoveries.get());
+
+        Thread.sleep(1100);
+        assertTrue(srv.ping(as));
+        assertEquals(2, discoveries.get());
+    }
+
+    @Test
+    public void endpointDroppedWhenUnreachable() {
+        wellKnownStatus = 200;
+        wellKnownServer = "http://localhost:" + closedPort;
+        DataServer srv = get(new FederationConfig());
+
+        try {
+            srv.ping(as);
+            fail("Endpoint should not be reachable");
+        } catch (RemoteServerException e) {
+            assertEquals(1, discoveries.get());
+        }
+
+        wellKnownServer = "http://" + domain;
+        assertTrue(srv.ping(as));
+        assertEquals(2, discoveries.get());
+    }
+
+    @Test
+    public void failedDiscoveryNotCached() {
+        wellKnownStatus = 500;
+        DataServer srv = get(new FederationConfig());
+
+        try {
+            srv.ping(as);
+            fail("Discovery should have failed");
+        } catch (RemoteServerException e) {
+            assertEquals(1, discoveries.get());
+        }
+
+        wellKnownStatus = 404;
+        assertTrue(srv.ping(as));
+        assertTrue(srv.ping(as));
+        assertEquals(2, discoveries.get());
+    }
+
+    private FederationConfig.Client makePoolConfig(int max, int maxPerServer) {
+        FederationConfig.Client cfg = new FederationConfig.Client();
+        cfg.setMaxConnections(max);
+        cfg.setMaxConnectionsPerServer(maxPerServer);
+        cfg.setConnectionRequestTimeout(200);
+        return cfg;
+    }
+
+    // A response not yet consumed keeps its connection leased from the pool
+    private void assertPoolFull(CloseableHttpClient client, String first, String second) throws IOException {
+        try (CloseableHttpResponse res = client.execute(new HttpGet(first))) {
+            assertEquals(200, res.getStatusLine().getStatusCode());
+            try {
+                client.execute(new HttpGet(second)).close();
+                fail("Connection pool should have been exhausted");
+            } catch (ConnectionPoolTimeoutException e) {
+                // This is what we expect
+            }
+        }
+
+        // Once given back, the connection can be used again
+        client.execute(new HttpGet(second)).close();
+    }
+
+    @Test
+    public void connectionsPerServerLimited() throws IOException {
+        try (CloseableHttpClient client = DataServerHttpClient.build(makePoolConfig(10, 1))) {
+            assertPoolFull(client, "http://localhost:" + port + "/a", "http://localhost:" + port + "/b");
+        }
+    }
+
+    @Test
+    public void connectionsAcrossServersLimited() throws IOException {
+        try (CloseableHttpClient client = DataServerHttpClient.build(makePoolConfig(1, 10))) {
+            assertPoolFull(client, "http://localhost:" + port + "/a", "http://127.0.0.1:" + port + "/b");
+        }
+    }
+
+}
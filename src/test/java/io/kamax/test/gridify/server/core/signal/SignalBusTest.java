@@ -0,0 +1,171 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.signal;
+
+import io.kamax.gridify.server.config.SignalConfig;
+import io.kamax.gridify.server.core.signal.Signal;
+import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
+import io.kamax.gridify.server.util.LatencyHistogram;
+import net.engio.mbassy.listener.Handler;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SignalBusTest {
+
+    private static class Numbered extends Signal {
+
+        private final int value;
+
+        Numbered(int value) {
+            this.value = value;
+        }
+
+    }
+
+    private static class Recorder {
+
+        private final List<Integer> values = new CopyOnWriteArrayList<>();
+        private final List<Thread> threads = new CopyOnWriteArrayList<>();
+        private final CountDownLatch received;
+        private final CountDownLatch blocker;
+
+        Recorder(int expected, CountDownLatch blocker) {
+            this.received = new CountDownLatch(expected);
+            this.blocker = blocker;
+        }
+
+        @Handler
+        private void signal(Numbered signal) throws InterruptedException {
+            blocker.await();
+            values.add(signal.value);
+            threads.add(Thread.currentThread());
+            received.countDown();
+        }
+
+    }
+
+    private static SignalConfig async(int queueDepth) {
+        SignalConfig cfg = new SignalConfig();
+        cfg.setAsync(true);
+        cfg.setThreads(4);
+        cfg.setQueueDepth(queueDepth);
+        return cfg;
+    }
+
+    @Test
+    public void syncByDefault() {
+        SignalBus bus = new SignalBus();
+        assertFalse(bus.isAsync());
+
+        Recorder r = new Recorder(1, new CountDownLatch(0));
+        bus.forTopic(SignalTopic.Room).subscribe(r);
+        bus.forTopic(SignalTopic.Room).publish(new Numbered(1));
+
+        assertEquals(1, r.values.size());
+        assertSame(Thread.currentThread(), r.threads.get(0));
+        assertEquals(1, bus.getHandlerLatency().values().iterator().next().getCount());
+    }
+
+    @Test
+    public void asyncKeepsOrderWithinTopic() throws InterruptedException {
+        SignalBus bus = new SignalBus(async(16));
+        assertTrue(bus.isAsync());
+
+        int amount = 5000;
+        Recorder room = new Recorder(amount, new CountDownLatch(0));
+        Recorder channel = new Recorder(amount, new CountDownLatch(0));
+        bus.forTopic(SignalTopic.Room).subscribe(room);
+        bus.forTopic(SignalTopic.Channel).subscribe(channel);
+
+        for (int i = 0; i < amount; i++) {
+            bus.forTopic(SignalTopic.Room).publish(new Numbered(i));
+            bus.forTopic(SignalTopic.Channel).publish(new Numbered(i));
+        }
+
+        assertTrue(room.received.await(10, TimeUnit.SECONDS));
+        assertTrue(channel.received.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < amount; i++) {
+            assertEquals(i, (int) room.values.get(i));
+            assertEquals(i, (int) channel.values.get(i));
+        }
+        assertFalse(room.threads.contains(Thread.currentThread()));
+
+        // Latency is recorded once the handler returned, which can be after the last value was received
+        LatencyHistogram latency = bus.getHandlerLatency().values().iterator().next();
+        long end = System.currentTimeMillis() + 10_000;
+        while (latency.getCount() < 2L * amount && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(2L * amount, latency.getCount());
+    }
+
+    @Test
+    public void synchronousTopicOnAsyncBus() {
+        SignalBus bus = new SignalBus(async(16));
+        Recorder r = new Recorder(1, new CountDownLatch(0));
+        bus.forTopic(SignalTopic.Session).subscribe(r);
+        bus.forTopic(SignalTopic.Session).publish(new Numbered(1));
+
+        assertEquals(1, r.values.size());
+        assertSame(Thread.currentThread(), r.threads.get(0));
+    }
+
+    @Test
+    public void asyncQueueIsBounded() throws InterruptedException {
+        SignalBus bus = new SignalBus(async(2));
+        CountDownLatch blocker = new CountDownLatch(1);
+        Recorder r = new Recorder(4, blocker);
+        SignalBus.Topic topic = bus.forTopic(SignalTopic.Room);
+        topic.subscribe(r);
+
+        Thread publisher = new Thread(() -> {
+            for (int i = 0; i < 4; i++) {
+                topic.publish(new Numbered(i));
+            }
+        });
+        publisher.start();
+
+        // One signal is being handled, two are queued and the last one waits for room in the queue
+        long end = System.currentTimeMillis() + 10_000;
+        while ((publisher.getState() != Thread.State.WAITING || topic.getQueueDepth() != 2) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, publisher.getState());
+        assertEquals(2, topic.getQueueDepth());
+        Thread.sleep(100);
+        assertEquals(Thread.State.WAITING, publisher.getState());
+        assertEquals(2, topic.getQueueDepth());
+
+        blocker.countDown();
+        assertTrue(r.received.await(10, TimeUnit.SECONDS));
+        publisher.join(10_000);
+        assertEquals(0, topic.getQueueDepth());
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.store;
+
+import io.kamax.gridify.server.core.channel.ChannelDao;
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.store.CachingDataStore;
+import io.kamax.gridify.server.core.store.DataStore;
+import io.kamax.gridify.server.core.store.MemoryStore;
+import io.kamax.gridify.server.network.grid.core.ChannelID;
+import io.kamax.gridify.server.network.grid.core.EventID;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CachingDataStoreTest extends DataStoreTest {
+
+    @Override
+    protected DataStore getNewStore() {
+        return new CachingDataStore(MemoryStore.getNew(), 100);
+    }
+
+    @Test
+    public void eventsServedFromMemory() {
+        CachingDataStore store = new CachingDataStore(MemoryStore.getNew(), 100);
+        String cId = ChannelID.from(UUID.randomUUID().toString(), "example.org").full();
+        ChannelDao cDao = store.saveChannel(new ChannelDao("", "", cId, ""));
+        String eId = EventID.from("esfm", "example.org").full();
+        ChannelEvent ev = store.saveEvent(ChannelEvent.from(cDao.getSid(), eId, GsonUtil.parseObj("{\"type\":\"a\"}")));
+
+        ChannelEvent ev1 = store.getEvent(cId, eId);
+        ChannelEvent ev2 = store.getEvent(ev.getLid());
+        assertEquals(ev.getLid(), ev1.getLid());
+        assertEquals(eId, store.getEventId(ev.getLid()));
+        assertEquals(3, store.getEventStats().hitCount());
+        assertEquals(1, store.getIdStats().missCount());
+
+        // Callers get their own copy to change
+        assertNotSame(ev1, ev2);
+        ev1.getMeta().setAllowed(true);
+        assertFalse(store.getEvent(ev.getLid()).getMeta().isAllowed());
+
+        // Changes are seen once saved
+        store.saveEvent(ev1);
+        assertTrue(store.getEvent(cId, eId).getMeta().isAllowed());
+        assertTrue(store.getStore().getEvent(ev.getLid()).getMeta().isAllowed());
+    }
+
+}
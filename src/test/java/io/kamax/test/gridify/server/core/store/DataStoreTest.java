@@ -26,11 +26,15 @@ import io.kamax.gridify.server.core.channel.ChannelDao;
 import io.kamax.gridify.server.core.channel.event.BareCreateEvent;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
 import io.kamax.gridify.server.core.channel.state.ChannelState;
+import io.kamax.gridify.server.core.event.EventStreamID;
 import io.kamax.gridify.server.core.identity.GenericThreePid;
 import io.kamax.gridify.server.core.identity.ThreePid;
+import io.kamax.gridify.server.core.store.ChannelStateDao;
 import io.kamax.gridify.server.core.store.DataStore;
 import io.kamax.gridify.server.core.store.DomainDao;
+import io.kamax.gridify.server.core.store.EventCommit;
 import io.kamax.gridify.server.core.store.UserDao;
+import io.kamax.gridify.server.core.store.UserMembershipDao;
 import io.kamax.gridify.server.network.grid.core.ChannelID;
 import io.kamax.gridify.server.network.grid.core.EventID;
 import io.kamax.gridify.server.network.grid.core.UserID;
@@ -156,6 +160,61 @@ public abstract class DataStoreTest {
         assertFalse(store.findUser(user3).isPresent());
     }
 
+    @Test
+    public void userMembershipKeepsLatest() {
+        ChannelDao cDao = makeChannel();
+        String userId = UserID.from(RandomStringUtils.randomAlphanumeric(12), "example.org").full();
+
+        store.setUserMembership(new UserMembershipDao(userId, cDao.getSid(), "invite", 1, 10));
+        store.setUserMembership(new UserMembershipDao(userId, cDao.getSid(), "join", 2, 20));
+        store.setUserMembership(new UserMembershipDao(userId, cDao.getSid(), "leave", 3, 15));
+
+        List<UserMembershipDao> memberships = store.listUserMemberships(cDao.getNetwork(), userId);
+        assertEquals(1, memberships.size());
+        UserMembershipDao dao = memberships.get(0);
+        assertEquals(cDao.getSid(), dao.getChannelLid());
+        assertEquals(cDao.getId(), dao.getChannelId());
+        assertEquals("join", dao.getMembership());
+        assertEquals(20, dao.getStreamSid());
+
+        assertTrue(store.listUserMemberships(cDao.getNetwork(), "@other:example.org").isEmpty());
+    }
+
+    @Test
+    public void commitEventsInBatch() {
+        ChannelDao cDao = makeChannel();
+        long cSid = cDao.getSid();
+        EventStreamID stream = new EventStreamID("test", RandomStringUtils.randomAlphanumeric(12));
+        String userId = UserID.from(RandomStringUtils.randomAlphanumeric(12), "example.org").full();
+
+        ChannelEvent ev1 = ChannelEvent.from(cSid, EventID.from("ceib1", "example.org").full(), GsonUtil.parseObj("{\"type\":\"a\",\"scope\":\"\"}"));
+        EventCommit c1 = new EventCommit(ev1);
+        c1.setState(new ChannelStateDao(null, Collections.singletonList(ev1)));
+        c1.setSoleExtremity();
+        c1.setStream(stream);
+
+        ChannelEvent ev2 = ChannelEvent.from(cSid, EventID.from("ceib2", "example.org").full(), GsonUtil.parseObj("{\"type\":\"b\",\"scope\":\"\"}"));
+        EventCommit c2 = new EventCommit(ev2);
+        c2.setExtremity(Collections.singletonList(ev1.getId()));
+        c2.setStream(stream);
+        c2.addMembership(userId, "join");
+
+        store.commit(Arrays.asList(c1, c2));
+
+        assertTrue(ev1.hasLid());
+        assertTrue(ev2.hasLid());
+        assertTrue(c2.getStreamSid() > c1.getStreamSid());
+        assertEquals(c1.getStreamSid(), (long) ev1.getSid());
+        assertEquals(Collections.singletonList(ev2.getLid()), store.getForwardExtremities(cSid));
+        assertEquals(ev1.getId(), store.getStateForEvent(ev1.getLid()).getEvents().get(0).getId());
+        assertEquals(ev1.getLid(), store.getStateForEvent(ev1.getLid()).getEvents().get(0).getLid());
+        assertEquals(c2.getStreamSid(), store.getStreamPosition(stream));
+
+        List<UserMembershipDao> memberships = store.listUserMemberships(cDao.getNetwork(), userId);
+        assertEquals(1, memberships.size());
+        assertEquals(ev2.getLid().longValue(), memberships.get(0).getEventLid());
+    }
+
     @Test
     public void saveAndGetChannel() {
         makeChannel();
@@ -253,6 +312,24 @@ public abstract class DataStoreTest {
         //assertTrue(stateRead.getEvents().containsAll(state.getEvents()));
     }
 
+    @Test
+    public void channelStateDeltaIsRebuilt() {
+        long cSid = makeChannel().getSid();
+        ChannelEvent ev1 = store.saveEvent(ChannelEvent.from(cSid, EventID.from("csdir1", "example.org").full(), GsonUtil.parseObj("{\"type\":\"a\",\"scope\":\"\"}")));
+        ChannelEvent ev2 = store.saveEvent(ChannelEvent.from(cSid, EventID.from("csdir2", "example.org").full(), GsonUtil.parseObj("{\"type\":\"b\",\"scope\":\"\"}")));
+        ChannelEvent ev3 = store.saveEvent(ChannelEvent.from(cSid, EventID.from("csdir3", "example.org").full(), GsonUtil.parseObj("{\"type\":\"b\",\"scope\":\"\"}")));
+
+        ChannelState base = new ChannelState(store.getState(store.insertIfNew(cSid, ChannelState.empty().apply(ev1).apply(ev2))));
+        ChannelState child = base.apply(ev3);
+        assertEquals(base.getSid(), child.getParentSid());
+        assertEquals(1, child.getDelta().size());
+
+        ChannelState childRead = new ChannelState(store.getState(store.insertIfNew(cSid, child)));
+        assertEquals(2, childRead.getEvents().size());
+        assertTrue(childRead.find("b", "").isPresent());
+        assertEquals(ev3.getId(), childRead.find("b", "").get().getId());
+    }
+
     @Test
     public void channelEventState() {
         long cSid = makeChannel().getSid();
@@ -319,4 +396,19 @@ public abstract class DataStoreTest {
         assertTrue(extremities.isEmpty());
     }
 
+    @Test
+    public void transactionsReadAndWrite() {
+        String scope = "test:" + RandomStringUtils.randomAlphanumeric(8);
+        assertFalse(store.findTransaction(scope, "1").isPresent());
+
+        store.saveTransaction(scope, "1", GsonUtil.makeObj("value", "first"));
+        store.saveTransaction(scope, "1", GsonUtil.makeObj("value", "second"));
+        assertEquals("first", GsonUtil.getStringOrThrow(store.findTransaction(scope, "1").orElseThrow(IllegalStateException::new), "value"));
+        assertFalse(store.findTransaction(scope, "2").isPresent());
+        assertFalse(store.findTransaction(scope + "2", "1").isPresent());
+
+        store.deleteTransactionsBefore(System.currentTimeMillis() + 1);
+        assertFalse(store.findTransaction(scope, "1").isPresent());
+    }
+
 }
@@ -0,0 +1,213 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.store;
+
+import io.kamax.gridify.server.config.StorageConfig;
+import io.kamax.gridify.server.core.store.SqlConnectionPool;
+import io.kamax.gridify.server.core.store.postgres.PostgreSQLDataStore;
+import io.kamax.gridify.server.util.GsonUtil;
+import io.kamax.gridify.server.util.KxLog;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Check the hot query paths of the PostgreSQL store use indexes on a large data set.
+ * <p>
+ * Synthetic rows are added to the database once, until it holds the amount of events given by
+ * <code>GRIDIFY_TEST_STORE_POSTGRESQL_LOAD_EVENTS</code> (e.g. 10000000), so only point it at a throw-away database.
+ */
+public class PostgresSQLQueryPlanTest {
+
+    private static final Logger log = KxLog.make(MethodHandles.lookup().lookupClass());
+
+    private static final String network = "load";
+    private static final int eventsPerChannel = 1000;
+    private static final int usersCount = 100_000;
+
+    private static SqlConnectionPool pool;
+    private static long cLid;
+    private static long eLid;
+    private static long sLid;
+    private static long uLid;
+
+    @BeforeClass
+    public static void beforeClass() throws SQLException {
+        String cfgJson = System.getenv("GRIDIFY_TEST_STORE_POSTGRESQL_CONFIG");
+        String amount = System.getenv("GRIDIFY_TEST_STORE_POSTGRESQL_LOAD_EVENTS");
+        assumeTrue(StringUtils.isNotBlank(cfgJson) && StringUtils.isNumeric(amount));
+
+        StorageConfig cfg = new StorageConfig();
+        cfg.setDatabase(GsonUtil.parse(cfgJson, StorageConfig.Database.class));
+        cfg.getDatabase().getPool().setRetryAttempts(0);
+        new PostgreSQLDataStore(cfg); // Brings the schema up to date
+        pool = new SqlConnectionPool(cfg);
+
+        try (Connection conn = pool.get(); Statement stmt = conn.createStatement()) {
+            long events = Long.parseLong(amount);
+            long existing = getLong(stmt, "SELECT COUNT(*) FROM channel_events");
+            if (existing < events) {
+                seed(stmt, events - existing);
+            }
+
+            cLid = getLong(stmt, "SELECT MAX(lid) FROM channels WHERE network = '" + network + "'");
+            eLid = getLong(stmt, "SELECT MAX(lid) FROM channel_events WHERE channel_lid = " + cLid);
+            sLid = getLong(stmt, "SELECT MAX(lid) FROM channel_states WHERE channel_lid = " + cLid);
+            uLid = getLong(stmt, "SELECT MAX(lid) FROM identity_users");
+        }
+    }
+
+    private static long getLong(Statement stmt, String sql) throws SQLException {
+        try (ResultSet rSet = stmt.executeQuery(sql)) {
+            rSet.next();
+            return rSet.getLong(1);
+        }
+    }
+
+    private static void seed(Statement stmt, long events) throws SQLException {
+        long channels = Math.max(1, events / eventsPerChannel);
+        log.info("Seeding {} events across {} channels", events, channels);
+        long start = System.currentTimeMillis();
+
+        stmt.execute("INSERT INTO channels (network, type, id, version) " +
+                "SELECT '" + network + "', 'r', '!' || md5(random()::text) || ':example.org', '6' " +
+                "FROM generate_series(1, " + channels + ")");
+        long cLidMin = getLong(stmt, "SELECT MIN(lid) FROM channels c WHERE network = '" + network + "' " +
+                "AND NOT EXISTS (SELECT 1 FROM channel_events e WHERE e.channel_lid = c.lid)");
+        long eLidMin = getLong(stmt, "SELECT COALESCE(MAX(lid), 0) + 1 FROM channel_events");
+
+        // One in ten events is a membership, spread across a fixed set of users
+        stmt.execute("INSERT INTO channel_events (id, channel_lid, meta, data) " +
+                "SELECT '$' || md5(g::text || random()::text), " + cLidMin + " + (g % " + channels + "), " +
+                "'{\"processed\":true,\"allowed\":true}'::jsonb, " +
+                "CASE WHEN g % 10 = 0 " +
+                "THEN jsonb_build_object('type', 'm.room.member', 'state_key', '@u' || (g % " + usersCount + ") || ':example.org', 'content', '{\"membership\":\"join\"}'::jsonb) " +
+                "ELSE jsonb_build_object('type', 'm.room.message', 'content', '{\"body\":\"Hello\"}'::jsonb) END " +
+                "FROM generate_series(1, " + events + ") g");
+        stmt.execute("INSERT INTO channel_event_stream (type, scope, sid, lid) " +
+                "SELECT '" + network + "', '', lid, lid FROM channel_events WHERE lid >= " + eLidMin);
+
+        // A state per channel, holding one in a hundred of its events, which all its events point to
+        long sLidMin = getLong(stmt, "SELECT COALESCE(MAX(lid), 0) + 1 FROM channel_states");
+        stmt.execute("INSERT INTO channel_states (channel_lid) " +
+                "SELECT lid FROM channels WHERE network = '" + network + "' AND lid >= " + cLidMin);
+        stmt.execute("INSERT INTO channel_state_data (state_lid, event_lid) " +
+                "SELECT s.lid, e.lid FROM channel_states s JOIN channel_events e ON e.channel_lid = s.channel_lid " +
+                "WHERE s.lid >= " + sLidMin + " AND e.lid >= " + eLidMin + " AND e.lid % 100 = 0");
+        stmt.execute("INSERT INTO channel_event_states (event_lid, state_lid) " +
+                "SELECT e.lid, s.lid FROM channel_events e JOIN channel_states s ON s.channel_lid = e.channel_lid " +
+                "WHERE s.lid >= " + sLidMin + " AND e.lid >= " + eLidMin);
+        stmt.execute("INSERT INTO channel_extremities_forward (channel_lid, event_lid) " +
+                "SELECT channel_lid, MAX(lid) FROM channel_events WHERE lid >= " + eLidMin + " GROUP BY channel_lid");
+
+        stmt.execute("INSERT INTO identity_users (id) " +
+                "SELECT '@' || md5(g::text || random()::text) || ':example.org' FROM generate_series(1, " + usersCount + ") g");
+        stmt.execute("INSERT INTO user_access_tokens (user_lid, token) " +
+                "SELECT lid, md5(lid::text || random()::text) FROM identity_users");
+
+        stmt.execute("ANALYZE");
+        log.info("Seeded in {} ms", System.currentTimeMillis() - start);
+    }
+
+    private void assertIndexed(String sql, String... tables) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (Connection conn = pool.get(); Statement stmt = conn.createStatement();
+             ResultSet rSet = stmt.executeQuery("EXPLAIN " + sql)) {
+            while (rSet.next()) {
+                plan.append(rSet.getString(1)).append("\n");
+            }
+        }
+
+        log.info("Plan of {}\n{}", sql, plan);
+        for (String table : tables) {
+            assertFalse("Sequential scan on " + table + ":\n" + plan, plan.toString().contains("Seq Scan on " + table));
+        }
+    }
+
+    @Test
+    public void eventByLid() throws SQLException {
+        assertIndexed("SELECT * FROM channel_events ce LEFT JOIN channel_event_stream ces ON ces.lid = ce.lid WHERE ce.lid = " + eLid,
+                "channel_events", "channel_event_stream");
+    }
+
+    @Test
+    public void eventById() throws SQLException {
+        assertIndexed("SELECT * FROM channel_events e LEFT JOIN channel_event_stream s ON s.lid = e.lid " +
+                        "WHERE e.channel_lid = " + cLid + " AND e.id = (SELECT id FROM channel_events WHERE lid = " + eLid + ")",
+                "channel_events", "channel_event_stream");
+    }
+
+    @Test
+    public void streamNext() throws SQLException {
+        assertIndexed("SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid " +
+                        "WHERE s.type = '" + network + "' AND s.scope = '' AND s.sid > " + (eLid - 1000) + " AND s.sid <= " + eLid + " " +
+                        "ORDER BY s.sid ASC LIMIT 100",
+                "channel_events", "channel_event_stream");
+    }
+
+    @Test
+    public void timeline() throws SQLException {
+        assertIndexed("SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid " +
+                        "WHERE e.channel_lid = " + cLid + " AND s.sid > " + (eLid - 100_000) + " ORDER BY s.sid ASC LIMIT 100",
+                "channel_events", "channel_event_stream");
+        assertIndexed("SELECT * FROM channel_event_stream s JOIN channel_events e ON s.lid = e.lid " +
+                        "WHERE e.channel_lid = " + cLid + " AND s.sid < " + eLid + " ORDER BY s.sid DESC LIMIT 100",
+                "channel_events", "channel_event_stream");
+    }
+
+    @Test
+    public void stateOfEvent() throws SQLException {
+        assertIndexed("SELECT state_lid FROM channel_event_states WHERE event_lid = " + eLid, "channel_event_states");
+        assertIndexed("SELECT d.state_lid, e.* FROM channel_state_data d JOIN channel_events e ON e.lid = d.event_lid " +
+                "WHERE d.state_lid = ANY('{" + sLid + "}')", "channel_state_data", "channel_events");
+    }
+
+    @Test
+    public void extremities() throws SQLException {
+        assertIndexed("SELECT event_lid FROM channel_extremities_forward WHERE channel_lid = " + cLid, "channel_extremities_forward");
+        assertIndexed("DELETE FROM channel_extremities_forward WHERE event_lid = " + eLid, "channel_extremities_forward");
+    }
+
+    @Test
+    public void userTokens() throws SQLException {
+        assertIndexed("SELECT token FROM user_access_tokens WHERE user_lid = " + uLid, "user_access_tokens");
+    }
+
+    @Test
+    public void membershipEvents() throws SQLException {
+        assertIndexed("SELECT DISTINCT c.* FROM channel_events e JOIN channels c ON e.channel_lid = c.lid " +
+                        "WHERE network = '" + network + "' AND meta->>'processed' = 'true' AND meta->>'allowed' = 'true' " +
+                        "AND data->>'type' = 'm.room.member' AND data->>'state_key' = '@u42:example.org'",
+                "channel_events");
+    }
+
+}
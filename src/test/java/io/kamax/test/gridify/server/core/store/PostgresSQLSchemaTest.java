@@ -0,0 +1,46 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.store;
+
+import io.kamax.gridify.server.core.store.postgres.PostgreSQLDataStore;
+import org.junit.Test;
+
+import java.util.NavigableMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PostgresSQLSchemaTest {
+
+    @Test
+    public void schemasDiscovered() {
+        NavigableMap<Long, String> schemas = PostgreSQLDataStore.discoverSchemas();
+        assertEquals(0L, (long) schemas.firstKey());
+        assertEquals("000000.sql", schemas.firstEntry().getValue());
+        assertTrue(schemas.lastKey() >= 5L);
+
+        // No gap, so an update can't be silently left out
+        assertEquals(schemas.lastKey() + 1, schemas.size());
+        schemas.forEach((v, name) -> assertTrue(name.startsWith(String.format("%06d", v))));
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.store;
+
+import io.kamax.gridify.server.core.event.EventStreamID;
+import io.kamax.gridify.server.core.store.StreamPositions;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamPositionsTest {
+
+    private final EventStreamID stream = new EventStreamID("test", "positions");
+    private final AtomicLong sequence = new AtomicLong(10);
+    private final AtomicInteger reservations = new AtomicInteger();
+
+    private List<Long> reserve(EventStreamID id, int amount) {
+        reservations.incrementAndGet();
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            positions.add(sequence.incrementAndGet());
+        }
+        return positions;
+    }
+
+    @Test
+    public void positionsReservedInBlocks() {
+        StreamPositions positions = new StreamPositions(id -> 10L, this::reserve, 5);
+        assertEquals(10, positions.getPosition(stream));
+
+        assertEquals(Arrays.asList(11L, 12L, 13L), positions.allocate(stream, 3));
+        assertEquals(Arrays.asList(14L, 15L), positions.allocate(stream, 2));
+        assertEquals(1, reservations.get());
+        assertEquals(16, positions.allocate(stream));
+        assertEquals(2, reservations.get());
+    }
+
+    @Test
+    public void positionOnlyMovesPastFinished() {
+        StreamPositions positions = new StreamPositions(id -> null, this::reserve, 10);
+        assertEquals(0, positions.getPosition(stream));
+
+        long p1 = positions.allocate(stream);
+        long p2 = positions.allocate(stream);
+        long p3 = positions.allocate(stream);
+
+        positions.finish(stream, p2);
+        assertEquals(p1 - 1, positions.getPosition(stream));
+
+        positions.finish(stream, p1);
+        assertEquals(p2, positions.getPosition(stream));
+
+        positions.finish(stream, p3);
+        assertEquals(p3, positions.getPosition(stream));
+    }
+
+    @Test
+    public void lowestPositionDoesNotOverflow() {
+        sequence.set(Long.MIN_VALUE - 1);
+        StreamPositions positions = new StreamPositions(id -> null, this::reserve, 10);
+
+        long p1 = positions.allocate(stream);
+        long p2 = positions.allocate(stream);
+        assertEquals(Long.MIN_VALUE, p1);
+
+        positions.finish(stream, p2);
+        assertEquals(0, positions.getPosition(stream));
+
+        positions.finish(stream, p1);
+        assertEquals(p2, positions.getPosition(stream));
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.core.store;
+
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.config.StorageConfig;
+import io.kamax.gridify.server.core.store.DataStore;
+import io.kamax.gridify.server.core.store.MemoryStore;
+import io.kamax.gridify.server.core.store.TransactionCache;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TransactionCacheTest {
+
+    @Test
+    public void processedOnce() {
+        DataStore store = MemoryStore.getNew();
+        TransactionCache txns = new TransactionCache(store, new StorageConfig.Transactions());
+        AtomicInteger runs = new AtomicInteger();
+
+        JsonObject first = txns.process("remote", "1", () -> GsonUtil.makeObj("run", runs.incrementAndGet()));
+        JsonObject retry = txns.process("remote", "1", () -> GsonUtil.makeObj("run", runs.incrementAndGet()));
+        assertEquals(1, runs.get());
+        assertEquals(first, retry);
+
+        // Other scopes and IDs are independent
+        txns.process("remote", "2", () -> GsonUtil.makeObj("run", runs.incrementAndGet()));
+        txns.process("other", "1", () -> GsonUtil.makeObj("run", runs.incrementAndGet()));
+        assertEquals(3, runs.get());
+
+        // Results outlive the in-memory cache
+        TransactionCache restarted = new TransactionCache(store, new StorageConfig.Transactions());
+        assertEquals(first, restarted.process("remote", "1", () -> GsonUtil.makeObj("run", runs.incrementAndGet())));
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void failuresNotKept() {
+        TransactionCache txns = new TransactionCache(MemoryStore.getNew(), new StorageConfig.Transactions());
+        try {
+            txns.process("remote", "1", () -> {
+                throw new IllegalStateException("Boom");
+            });
+            fail("The failure should be given back");
+        } catch (IllegalStateException e) {
+            assertEquals("Boom", e.getMessage());
+        }
+
+        JsonObject result = txns.process("remote", "1", () -> GsonUtil.makeObj("ok", true));
+        assertTrue(result.get("ok").getAsBoolean());
+    }
+
+    @Test
+    public void concurrentRetriesWaitForFirst() throws Exception {
+        TransactionCache txns = new TransactionCache(MemoryStore.getNew(), new StorageConfig.Transactions());
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<JsonObject>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return txns.process("remote", "1", () -> {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return GsonUtil.makeObj("run", runs.incrementAndGet());
+                    });
+                }));
+            }
+            start.countDown();
+
+            for (Future<JsonObject> result : results) {
+                assertEquals(1, result.get(10, TimeUnit.SECONDS).get("run").getAsInt());
+            }
+            assertEquals(1, runs.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
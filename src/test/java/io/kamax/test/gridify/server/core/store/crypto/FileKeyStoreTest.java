@@ -0,0 +1,106 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.gridify.server.core.store.crypto;
+
+import io.kamax.gridify.server.core.crypto.GenericKey;
+import io.kamax.gridify.server.core.crypto.GenericKeyIdentifier;
+import io.kamax.gridify.server.core.crypto.KeyAlgorithm;
+import io.kamax.gridify.server.core.crypto.KeyIdentifier;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Cryptopher;
+import io.kamax.gridify.server.core.store.crypto.FileKeyStore;
+import io.kamax.test.gridify.server.TestData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class FileKeyStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void publicKeyIndexSurvivesRestart() throws IOException {
+        String path = folder.newFolder().toString();
+        FileKeyStore store = new FileKeyStore(path);
+        Ed25519Cryptopher crypto = new Ed25519Cryptopher(store);
+        KeyIdentifier id = crypto.generateKey("Test key");
+        String pubKey = crypto.getPublicKeyBase64(id);
+        assertEquals(Optional.of(id), store.findByPublicKey(pubKey));
+
+        FileKeyStore reloaded = new FileKeyStore(path);
+        assertEquals(Optional.of(new GenericKeyIdentifier(id)), reloaded.findByPublicKey(pubKey));
+        assertEquals(Optional.of(pubKey), reloaded.getPublicKey(id));
+
+        reloaded.delete(id);
+        assertFalse(reloaded.findByPublicKey(pubKey).isPresent());
+    }
+
+    @Test
+    public void unindexedKeysIndexedOnStartup() throws IOException {
+        FileKeyStore store = new FileKeyStore(folder.newFolder().toString());
+        KeyIdentifier id = new GenericKeyIdentifier(KeyAlgorithm.Ed25519, "1");
+        store.add(new GenericKey(id, true, "Test key", TestData.SIGN_KEY_SEED));
+        assertFalse(store.getPublicKey(id).isPresent());
+
+        Ed25519Cryptopher crypto = new Ed25519Cryptopher(store);
+        assertTrue(crypto.isValid(crypto.getPublicKeyBase64(id)));
+        assertEquals(id, crypto.getKeyWithPublic(crypto.getPublicKeyBase64(id)));
+    }
+
+    @Test
+    public void indexDroppedWhenKeyChanges() throws IOException {
+        FileKeyStore store = new FileKeyStore(folder.newFolder().toString());
+        Ed25519Cryptopher crypto = new Ed25519Cryptopher(store);
+        KeyIdentifier id = crypto.generateKey("Test key");
+        String pubKey = crypto.getPublicKeyBase64(id);
+
+        store.update(new GenericKey(id, false, "Test key", store.get(id).getPrivateKeyBase64()));
+        assertEquals(Optional.of(pubKey), store.getPublicKey(id));
+
+        store.update(new GenericKey(id, true, "Test key", TestData.SIGN_KEY_SEED));
+        assertFalse(store.findByPublicKey(pubKey).isPresent());
+        assertFalse(store.getPublicKey(id).isPresent());
+    }
+
+    @Test
+    public void listenersToldOfChanges() throws IOException {
+        FileKeyStore store = new FileKeyStore(folder.newFolder().toString());
+        KeyIdentifier id = new GenericKeyIdentifier(KeyAlgorithm.Ed25519, "1");
+        List<KeyIdentifier> changes = new ArrayList<>();
+        store.addListener(changes::add);
+
+        store.add(new GenericKey(id, true, "Test key", TestData.SIGN_KEY_SEED));
+        assertTrue(changes.isEmpty());
+        store.update(new GenericKey(id, false, "Test key", TestData.SIGN_KEY_SEED));
+        store.delete(id);
+        assertEquals(2, changes.size());
+        assertEquals(id.getId(), changes.get(0).getId());
+        assertEquals(id.getId(), changes.get(1).getId());
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.http;
+
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.http.Exchange;
+import io.kamax.gridify.server.network.matrix.http.handler.home.client.ClientApiHandler;
+import io.kamax.gridify.server.util.GsonUtil;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ExchangeTest {
+
+    private static final int port = 60010;
+    private static final long maxBodySize = 64 * 1024;
+
+    private static Undertow server;
+    private static ScheduledExecutorService timer;
+
+    // Fails to give its last element, once the ones before are serialized
+    private static class FailingList extends AbstractList<String> {
+
+        private final int size;
+
+        FailingList(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index == size) {
+                throw new IllegalStateException("Serialization failure");
+            }
+            return StringUtils.repeat('x', 1024);
+        }
+
+        @Override
+        public int size() {
+            return size + 1;
+        }
+
+    }
+
+    @BeforeClass
+    public static void init() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+
+        // Gives back the request with padding of the requested size, or a list failing to serialize after the given size.
+        // With a delay, the response is given later, or fails if requested.
+        ClientApiHandler echo = new ClientApiHandler() {
+
+            @Override
+            protected void handle(Exchange ex) {
+                JsonObject body = ex.parseJsonObject();
+                if (body.has("delay")) {
+                    CompletableFuture<JsonObject> later = new CompletableFuture<>();
+                    timer.schedule(() -> {
+                        if (body.has("fail")) {
+                            later.completeExceptionally(new IllegalArgumentException("Failed later"));
+                        } else {
+                            later.complete(body);
+                        }
+                    }, GsonUtil.getLong(body, "delay"), TimeUnit.MILLISECONDS);
+                    respondLater(ex, later);
+                    return;
+                }
+
+                int size = (int) GsonUtil.getLong(body, "size");
+                        if (body.has("fail")) {
+                    ex.respondJson(new FailingList(size));
+                    return;
+                }
+
+                body.addProperty("padding", StringUtils.repeat('x', size));
+                ex.respond(body);
+            }
+
+        };
+
+        server = Undertow.builder()
+                .setServerOption(UndertowOptions.MAX_ENTITY_SIZE, maxBodySize)
+                .setWorkerThreads(1)
+                .addHttpListener(port, "localhost")
+                .setHandler(echo)
+                .build();
+        server.start();
+    }
+
+    @AfterClass
+    public static void deinit() {
+        if (Objects.nonNull(server)) {
+            server.stop();
+        }
+
+        if (Objects.nonNull(timer)) {
+            timer.shutdownNow();
+        }
+    }
+
+    private HttpURLConnection post(String body, boolean chunked) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setDoOutput(true);
+        if (chunked) {
+            conn.setChunkedStreamingMode(4096);
+        }
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return conn;
+    }
+
+    private JsonObject read(HttpURLConnection conn) throws IOException {
+        InputStream is = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+        return GsonUtil.parseObj(IOUtils.toString(is, StandardCharsets.UTF_8));
+    }
+
+    private String makeRequest(int size, int extra) {
+        JsonObject body = new JsonObject();
+        body.addProperty("size", size);
+        body.addProperty("extra", StringUtils.repeat('y', extra));
+        return GsonUtil.toJson(body);
+    }
+
+    @Test
+    public void smallResponseIsSentWithLength() throws IOException {
+        HttpURLConnection conn = post(makeRequest(10, 0), false);
+        assertEquals(200, conn.getResponseCode());
+        assertNotNull(conn.getHeaderField("Content-Length"));
+        assertNull(conn.getHeaderField("Transfer-Encoding"));
+        assertEquals(10, GsonUtil.getStringOrThrow(read(conn), "padding").length());
+    }
+
+    @Test
+    public void largeResponseIsSentInChunks() throws IOException {
+        HttpURLConnection conn = post(makeRequest(1024 * 1024, 0), false);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+        assertEquals(1024 * 1024, GsonUtil.getStringOrThrow(read(conn), "padding").length());
+    }
+
+    @Test
+    public void requestIsParsedFromChunks() throws IOException {
+        HttpURLConnection conn = post(makeRequest(10, 32 * 1024), true);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(32 * 1024, GsonUtil.getStringOrThrow(read(conn), "extra").length());
+    }
+
+    @Test
+    public void requestOverLimitIsRefused() throws IOException {
+        HttpURLConnection conn = post(makeRequest(10, (int) maxBodySize), false);
+        assertEquals(413, conn.getResponseCode());
+        assertEquals("M_TOO_LARGE", GsonUtil.getStringOrThrow(read(conn), "errcode"));
+    }
+
+    // The size is only known once the limit is crossed, Undertow then closes the connection without a response
+    @Test(expected = IOException.class)
+    public void chunkedRequestOverLimitIsRefused() throws IOException {
+        post(makeRequest(10, (int) maxBodySize), true).getResponseCode();
+    }
+
+    private void readFailing(int size) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("size", size);
+        body.addProperty("fail", true);
+        HttpURLConnection conn = post(GsonUtil.toJson(body), false);
+        IOUtils.toString(conn.getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    @Test(expected = IOException.class)
+    public void failedSmallResponseIsNotCompleted() throws IOException {
+        readFailing(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void failedLargeResponseIsNotCompleted() throws IOException {
+        readFailing(1024);
+    }
+
+    @Test
+    public void invalidJsonIsRefused() throws IOException {
+        HttpURLConnection conn = post("{\"size\":", false);
+        assertEquals(400, conn.getResponseCode());
+        assertEquals("M_INVALID_PARAM", GsonUtil.getStringOrThrow(read(conn), "errcode"));
+    }
+
+    private String makeDelayedRequest(long delay, boolean fail) {
+        JsonObject body = new JsonObject();
+        body.addProperty("delay", delay);
+        if (fail) {
+            body.addProperty("fail", true);
+        }
+        return GsonUtil.toJson(body);
+    }
+
+    @Test
+    public void laterResponseIsSent() throws IOException {
+        HttpURLConnection conn = post(makeDelayedRequest(100, false), false);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(100, GsonUtil.getLong(read(conn), "delay"));
+    }
+
+    @Test
+    public void laterFailureIsHandled() throws IOException {
+        HttpURLConnection conn = post(makeDelayedRequest(100, true), false);
+        assertEquals(400, conn.getResponseCode());
+        assertEquals("M_INVALID_PARAM", GsonUtil.getStringOrThrow(read(conn), "errcode"));
+    }
+
+    // The only worker thread is released while a response is pending, so other requests are still served
+    @Test
+    public void laterResponseDoesNotHoldWorker() throws Exception {
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> parked = client.submit(() -> post(makeDelayedRequest(2000, false), false).getResponseCode());
+            Thread.sleep(200);
+
+            HttpURLConnection conn = post(makeRequest(10, 0), false);
+            assertEquals(200, conn.getResponseCode());
+            assertFalse(parked.isDone());
+            assertEquals(200, parked.get(5, TimeUnit.SECONDS).intValue());
+        } finally {
+            client.shutdownNow();
+        }
+    }
+
+}
@@ -40,6 +40,10 @@ import org.junit.Test;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.*;
 
@@ -75,4 +79,102 @@ public class BasicUsageTest {
         assertEquals(1, data.rooms.join.get(r.getId()).getTimeline().getEvents().size());
     }
 
+    @Test
+    public void sendRetryIsIdempotent() {
+        GridifyConfig cfg = GridifyConfig.inMemory();
+        GridifyServer g = new MonolithGridifyServer(cfg);
+        g.overMatrix().addDomain("localhost", "localhost");
+        g.start();
+        MatrixDataClient client = g.overMatrix().vHost("localhost").asClient();
+
+        User u = client.register("test", "test");
+        UserSession session = client.login(u);
+        Room r = session.createRoom(new JsonObject());
+        SyncResponse data = session.sync(new SyncOptions().setToken("0").setTimeout(0));
+
+        String txnId = UUID.randomUUID().toString();
+        String evId = session.send(r.getId(), RoomEventType.Message.getId(), txnId, new JsonObject());
+        assertEquals(evId, session.send(r.getId(), RoomEventType.Message.getId(), txnId, new JsonObject()));
+        assertNotEquals(evId, client.login(u).send(r.getId(), RoomEventType.Message.getId(), txnId, new JsonObject()));
+
+        data = session.sync(new SyncOptions().setToken(data.nextBatch).setTimeout(0));
+        assertEquals(2, data.rooms.join.get(r.getId()).getTimeline().getEvents().size());
+    }
+
+    private void assertNoSyncWaiter(GridifyServer g) throws InterruptedException {
+        long end = System.currentTimeMillis() + 1000;
+        while (g.overMatrix().getSyncNotifier().getWaiting() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, g.overMatrix().getSyncNotifier().getWaiting());
+    }
+
+    @Test
+    public void asyncSyncCompletesOnMessage() throws InterruptedException, ExecutionException, TimeoutException {
+        GridifyConfig cfg = GridifyConfig.inMemory();
+        GridifyServer g = new MonolithGridifyServer(cfg);
+        g.overMatrix().addDomain("localhost", "localhost");
+        g.start();
+        MatrixDataClient client = g.overMatrix().vHost("localhost").asClient();
+
+        User u = client.register("test", "test");
+        UserSession session = client.login(u);
+        Room r = session.createRoom(new JsonObject());
+        SyncResponse data = session.sync(new SyncOptions().setToken("0").setTimeout(0));
+
+        CompletableFuture<SyncResponse> later = session.syncAsync(new SyncOptions().setToken(data.nextBatch).setTimeout(30000));
+        assertFalse(later.isDone());
+        assertEquals(1, g.overMatrix().getSyncNotifier().getWaiting());
+
+        session.send(r.getId(), RoomEventType.Message.getId(), UUID.randomUUID().toString(), new JsonObject());
+        data = later.get(5, TimeUnit.SECONDS);
+        assertEquals(1, data.rooms.join.get(r.getId()).getTimeline().getEvents().size());
+        assertNoSyncWaiter(g);
+    }
+
+    @Test
+    public void asyncSyncCompletesOnTimeout() throws InterruptedException, ExecutionException, TimeoutException {
+        GridifyConfig cfg = GridifyConfig.inMemory();
+        GridifyServer g = new MonolithGridifyServer(cfg);
+        g.overMatrix().addDomain("localhost", "localhost");
+        g.start();
+        MatrixDataClient client = g.overMatrix().vHost("localhost").asClient();
+
+        User u = client.register("test", "test");
+        UserSession session = client.login(u);
+        Room r = session.createRoom(new JsonObject());
+        SyncResponse data = session.sync(new SyncOptions().setToken("0").setTimeout(0));
+
+        CompletableFuture<SyncResponse> later = session.syncAsync(new SyncOptions().setToken(data.nextBatch).setTimeout(100));
+        assertFalse(later.isDone());
+
+        data = later.get(5, TimeUnit.SECONDS);
+        assertFalse(data.rooms.join.containsKey(r.getId()));
+        assertTrue(StringUtils.isNotBlank(data.nextBatch));
+        assertNoSyncWaiter(g);
+    }
+
+    @Test
+    public void grownRoomIsEvicted() {
+        GridifyConfig cfg = GridifyConfig.inMemory();
+        cfg.getRoom().getCache().setMaxWeight(30);
+        GridifyServer g = new MonolithGridifyServer(cfg);
+        g.overMatrix().addDomain("localhost", "localhost");
+        g.start();
+        MatrixDataClient client = g.overMatrix().vHost("localhost").asClient();
+
+        User u = client.register("test", "test");
+        UserSession session = client.login(u);
+        Room r1 = session.createRoom(new JsonObject());
+        Room r2 = session.createRoom(new JsonObject());
+        assertEquals(0, g.overMatrix().roomMgr().getCacheStats().evictionCount());
+
+        for (int i = 0; i < 20; i++) {
+            session.sendState(r2.getId(), "io.kamax.test", Integer.toString(i), new JsonObject());
+        }
+
+        assertTrue(r2.getView().getState().size() > 20);
+        assertTrue(g.overMatrix().roomMgr().getCacheStats().evictionCount() > 0);
+    }
+
 }
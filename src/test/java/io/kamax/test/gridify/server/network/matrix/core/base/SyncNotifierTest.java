@@ -0,0 +1,140 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.network.matrix.core.base;
+
+import io.kamax.gridify.server.core.channel.event.ChannelEvent;
+import io.kamax.gridify.server.core.channel.state.ChannelEventAuthorization;
+import io.kamax.gridify.server.core.signal.ChannelMessageProcessed;
+import io.kamax.gridify.server.core.signal.SignalBus;
+import io.kamax.gridify.server.core.signal.SignalTopic;
+import io.kamax.gridify.server.network.matrix.core.base.SyncNotifier;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SyncNotifierTest {
+
+    private static void publish(SignalBus bus, String roomId, String sender, String stateKey, long sid) {
+        ChannelEvent ev = new ChannelEvent(1L, sid);
+        ev.setData(GsonUtil.makeObj("room_id", roomId));
+        ev.getData().addProperty("sender", sender);
+        if (stateKey != null) {
+            ev.getData().addProperty("state_key", stateKey);
+        }
+        ev.setSid(sid);
+        bus.forTopic(SignalTopic.Room).publish(new ChannelMessageProcessed(ev, ChannelEventAuthorization.from(ev)));
+    }
+
+    // The waiter is unregistered once the result is completed, which might be right after it is given
+    private static void assertNoWaiter(SyncNotifier notifier) throws InterruptedException {
+        long end = System.currentTimeMillis() + 1000;
+        while (notifier.getWaiting() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, notifier.getWaiting());
+    }
+
+    @Test
+    public void onlyWakesRelevantWaiters() throws InterruptedException {
+        SignalBus bus = new SignalBus();
+        SyncNotifier notifier = new SyncNotifier(bus);
+        SyncNotifier.Waiter a = notifier.register("@a:example.org", Collections.singletonList("!a:example.org"));
+        SyncNotifier.Waiter b = notifier.register("@b:example.org", Collections.singletonList("!b:example.org"));
+
+        publish(bus, "!a:example.org", "@c:example.org", null, 5L);
+        assertTrue(a.await(1000));
+        assertEquals(5L, a.getPosition());
+        assertFalse(b.await(10));
+        assertEquals(0L, b.getPosition());
+
+        // A membership change about a user wakes them up even if they are not in the room yet
+        publish(bus, "!c:example.org", "@c:example.org", "@b:example.org", 6L);
+        assertTrue(b.await(1000));
+        assertEquals(6L, b.getPosition());
+        assertFalse(a.await(10));
+
+        notifier.unregister(a);
+        publish(bus, "!a:example.org", "@c:example.org", null, 7L);
+        assertFalse(a.await(10));
+        assertEquals(5L, a.getPosition());
+    }
+
+    @Test
+    public void awaitCompletesOnWake() throws InterruptedException, ExecutionException, TimeoutException {
+        SignalBus bus = new SignalBus();
+        SyncNotifier notifier = new SyncNotifier(bus);
+        SyncNotifier.Waiter w = notifier.register("@a:example.org", Collections.singletonList("!a:example.org"));
+        AtomicInteger checks = new AtomicInteger();
+
+        CompletableFuture<Long> result = notifier.await(w, 30000, () -> {
+            checks.incrementAndGet();
+            return w.getPosition() > 0 ? Optional.of(w.getPosition()) : Optional.empty();
+        }, () -> -1L);
+        assertFalse(result.isDone());
+        assertEquals(1, checks.get());
+        assertEquals(1, notifier.getWaiting());
+
+        publish(bus, "!a:example.org", "@c:example.org", null, 5L);
+        assertEquals(5L, result.get(1, TimeUnit.SECONDS).longValue());
+        assertNoWaiter(notifier);
+
+        // Once done, the waiter is not checked anymore
+        int checked = checks.get();
+        publish(bus, "!a:example.org", "@c:example.org", null, 6L);
+        Thread.sleep(50);
+        assertEquals(checked, checks.get());
+    }
+
+    @Test
+    public void awaitCompletesOnTimeout() throws InterruptedException, ExecutionException, TimeoutException {
+        SignalBus bus = new SignalBus();
+        SyncNotifier notifier = new SyncNotifier(bus);
+        SyncNotifier.Waiter w = notifier.register("@a:example.org", Collections.singletonList("!a:example.org"));
+
+        CompletableFuture<Long> result = notifier.await(w, 100, Optional::empty, () -> -1L);
+        assertFalse(result.isDone());
+        assertEquals(-1L, result.get(1, TimeUnit.SECONDS).longValue());
+        assertNoWaiter(notifier);
+    }
+
+    @Test
+    public void awaitCompletesRightAway() throws InterruptedException {
+        SignalBus bus = new SignalBus();
+        SyncNotifier notifier = new SyncNotifier(bus);
+        SyncNotifier.Waiter w = notifier.register("@a:example.org", Collections.singletonList("!a:example.org"));
+
+        CompletableFuture<Long> result = notifier.await(w, 30000, () -> Optional.of(1L), () -> -1L);
+        assertTrue(result.isDone());
+        assertEquals(1L, result.join().longValue());
+        assertNoWaiter(notifier);
+    }
+
+}
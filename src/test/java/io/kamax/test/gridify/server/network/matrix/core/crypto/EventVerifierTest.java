@@ -0,0 +1,148 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.gridify.server.network.matrix.core.crypto;
+
+import com.google.gson.JsonObject;
+import io.kamax.gridify.server.core.crypto.KeyIdentifier;
+import io.kamax.gridify.server.core.crypto.Signature;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Cryptopher;
+import io.kamax.gridify.server.core.crypto.ed25519.Ed25519Verifier;
+import io.kamax.gridify.server.core.store.crypto.MemoryKeyStore;
+import io.kamax.gridify.server.network.matrix.core.crypto.EventVerifier;
+import io.kamax.gridify.server.network.matrix.core.crypto.MatrixDomainCryptopher;
+import io.kamax.gridify.server.network.matrix.core.crypto.RemoteKeyCache;
+import io.kamax.gridify.server.network.matrix.core.event.BareMessageEvent;
+import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgo;
+import io.kamax.gridify.server.network.matrix.core.room.algo.RoomAlgoV6;
+import io.kamax.gridify.server.util.GsonUtil;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventVerifierTest {
+
+    private static final String domain = "example.org";
+    private static final RoomAlgo algo = new RoomAlgoV6();
+
+    private static Ed25519Cryptopher crypto;
+    private static KeyIdentifier keyId;
+    private static MatrixDomainCryptopher domainCrypto;
+
+    @BeforeClass
+    public static void beforeClass() {
+        crypto = new Ed25519Cryptopher(new MemoryKeyStore());
+        keyId = crypto.generateKey("Test key");
+        domainCrypto = new MatrixDomainCryptopher() {
+            @Override
+            public String getDomain() {
+                return domain;
+            }
+
+            @Override
+            public Signature sign(JsonObject obj) {
+                return crypto.sign(obj, keyId);
+            }
+
+            @Override
+            public Signature sign(byte[] data) {
+                return crypto.sign(data, keyId);
+            }
+        };
+    }
+
+    private static JsonObject getKeyDocument() {
+        String id = keyId.getAlgorithm() + ":" + keyId.getSerial();
+        JsonObject doc = new JsonObject();
+        doc.addProperty("server_name", domain);
+        doc.addProperty("valid_until_ts", Instant.now().plusSeconds(3600).toEpochMilli());
+        doc.add("verify_keys", GsonUtil.makeObj(id, GsonUtil.makeObj("key", crypto.getPublicKeyBase64(keyId))));
+        doc.add("signatures", GsonUtil.makeObj(domain, GsonUtil.makeObj(id, crypto.sign(doc, keyId).getSignature())));
+        return doc;
+    }
+
+    private static JsonObject makeEvent(String body) {
+        JsonObject doc = BareMessageEvent.makeText(body).getJson();
+        doc.addProperty("room_id", "!room:" + domain);
+        doc.addProperty("sender", "@alice:" + domain);
+        doc.addProperty("origin", domain);
+        doc.addProperty("origin_server_ts", Instant.now().toEpochMilli());
+        doc.addProperty("depth", 1);
+        return algo.signEvent(doc, domainCrypto);
+    }
+
+    @Test
+    public void verifySignedEvents() {
+        AtomicInteger fetches = new AtomicInteger();
+        RemoteKeyCache keys = new RemoteKeyCache((origin, remote) -> {
+            fetches.incrementAndGet();
+            return getKeyDocument();
+        }, new Ed25519Verifier());
+        EventVerifier verifier = new EventVerifier(keys, new Ed25519Verifier(), 4);
+
+        List<JsonObject> docs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            docs.add(makeEvent("Message " + i));
+        }
+
+        JsonObject redactable = makeEvent("Redactable");
+        GsonUtil.getObj(redactable, "content").addProperty("body", "Changed after signing");
+        docs.add(redactable);
+
+        JsonObject tampered = makeEvent("Tampered");
+        tampered.addProperty("sender", "@mallory:" + domain);
+        docs.add(tampered);
+
+        List<String> results = verifier.verify("local.example.org", docs, doc -> algo);
+        assertEquals(docs.size(), results.size());
+        for (int i = 0; i < 51; i++) {
+            assertEquals("", results.get(i));
+        }
+        assertNotEquals("", results.get(51));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void rejectUnreachableServer() {
+        RemoteKeyCache keys = new RemoteKeyCache((origin, remote) -> {
+            throw new IllegalStateException("Unreachable");
+        }, new Ed25519Verifier());
+        EventVerifier verifier = new EventVerifier(keys, new Ed25519Verifier(), 1);
+        assertNotEquals("", verifier.verify("local.example.org", algo, makeEvent("Hello")));
+    }
+
+    @Test
+    public void rejectUnsignedKeyDocument() {
+        RemoteKeyCache keys = new RemoteKeyCache((origin, remote) -> {
+            JsonObject doc = getKeyDocument();
+            doc.remove("signatures");
+            return doc;
+        }, new Ed25519Verifier());
+        EventVerifier verifier = new EventVerifier(keys, new Ed25519Verifier(), 1);
+        assertNotEquals("", verifier.verify("local.example.org", algo, makeEvent("Hello")));
+    }
+
+}
@@ -20,6 +20,7 @@
 
 package io.kamax.test.gridify.server.network.matrix.core.federation;
 
+import com.google.gson.JsonObject;
 import io.kamax.gridify.server.core.channel.event.ChannelEvent;
 import io.kamax.gridify.server.network.matrix.core.event.BareCanonicalAliasEvent;
 import io.kamax.gridify.server.network.matrix.core.event.BareJoinRulesEvent;
@@ -27,9 +28,11 @@ import io.kamax.gridify.server.network.matrix.core.event.BareMessageEvent;
 import io.kamax.gridify.server.network.matrix.core.room.Room;
 import io.kamax.gridify.server.network.matrix.core.room.RoomAlias;
 import io.kamax.gridify.server.network.matrix.core.room.RoomMembership;
+import io.kamax.gridify.server.network.matrix.http.json.ServerTransaction;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
@@ -39,6 +42,7 @@ import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class BasicFederation extends FederationTest {
@@ -127,4 +131,25 @@ public class BasicFederation extends FederationTest {
         }
     }
 
+    @Test
+    public void pushGivesResultPerPdu() {
+        String roomId = makeSharedRoomViaInvite();
+        String evId = s1.send(roomId, BareMessageEvent.makeText("Hello"));
+        JsonObject doc = mx1.store().findEvent(roomId, evId).orElseThrow(IllegalStateException::new).getData();
+
+        JsonObject forged = doc.deepCopy();
+        forged.addProperty("origin_server_ts", forged.get("origin_server_ts").getAsLong() + 1);
+        String forgedId = mx2.roomMgr().get(roomId).getAlgo().getEventId(forged);
+
+        ServerTransaction txn = new ServerTransaction();
+        txn.setOrigin(s1.getDomain());
+        txn.setTimestamp(System.currentTimeMillis());
+        txn.setPdus(Arrays.asList(doc, forged));
+        JsonObject pdus = mx2.vHost(s2.getDomain()).asServer(s1.getDomain()).push(txn).getAsJsonObject("pdus");
+
+        assertEquals(2, pdus.size());
+        assertFalse(pdus.getAsJsonObject(evId).has("error"));
+        assertTrue(pdus.getAsJsonObject(forgedId).has("error"));
+    }
+
 }
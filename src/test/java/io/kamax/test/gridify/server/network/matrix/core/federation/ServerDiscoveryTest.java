@@ -0,0 +1,158 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.network.matrix.core.federation;
+
+import io.kamax.gridify.server.config.FederationConfig;
+import io.kamax.gridify.server.core.federation.Address;
+import io.kamax.gridify.server.network.matrix.core.federation.ServerDiscovery;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServerDiscoveryTest {
+
+    private static class StubDiscovery extends ServerDiscovery {
+
+        private final AtomicInteger wellKnownCalls = new AtomicInteger();
+        private final AtomicInteger srvCalls = new AtomicInteger();
+        private final CountDownLatch release;
+        private final String delegated;
+        private final Address srv;
+
+        StubDiscovery(CountDownLatch release, String delegated, Address srv) {
+            this(release, delegated, srv, new FederationConfig.Servers());
+        }
+
+        StubDiscovery(CountDownLatch release, String delegated, Address srv, FederationConfig.Servers cfg) {
+            super(null, true, cfg);
+            this.release = release;
+            this.delegated = delegated;
+            this.srv = srv;
+        }
+
+        @Override
+        protected Answer<String> fetchWellKnown(String host) {
+            wellKnownCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (delegated == null) {
+                return Answer.none(Duration.ofHours(1));
+            }
+
+            return Answer.of(delegated, Duration.ofHours(24));
+        }
+
+        @Override
+        protected Answer<Address> findSrv(String host) {
+            srvCalls.incrementAndGet();
+            if (srv == null) {
+                return Answer.none(Duration.ofHours(1));
+            }
+
+            return Answer.of(srv, Duration.ofHours(1));
+        }
+
+    }
+
+    @Test
+    public void explicitPortSkipsLookups() {
+        StubDiscovery d = new StubDiscovery(new CountDownLatch(0), "other.example.org", null);
+        ServerDiscovery.Target t = d.resolve("example.org:8448");
+        assertEquals("https://example.org:8448", t.getUri().toString());
+        assertEquals("example.org:8448", t.getHost());
+        assertEquals(0, d.wellKnownCalls.get());
+        assertEquals(0, d.srvCalls.get());
+
+        t = d.resolve("[::1]");
+        assertEquals("https://[::1]:443", t.getUri().toString());
+        assertEquals(0, d.wellKnownCalls.get());
+        assertEquals(0, d.srvCalls.get());
+    }
+
+    @Test
+    public void delegationThenSrv() {
+        StubDiscovery d = new StubDiscovery(new CountDownLatch(0), "matrix.example.org", new Address("fed.example.org", 8448));
+        ServerDiscovery.Target t = d.resolve("example.org");
+        assertEquals("https://fed.example.org:8448", t.getUri().toString());
+        assertEquals("matrix.example.org", t.getHost());
+    }
+
+    @Test
+    public void noDelegationFallsBackToDefaultPort() {
+        StubDiscovery d = new StubDiscovery(new CountDownLatch(0), null, null);
+        ServerDiscovery.Target t = d.resolve("example.org");
+        assertEquals("https://example.org:443", t.getUri().toString());
+        assertEquals("example.org", t.getHost());
+        assertEquals(1, d.srvCalls.get());
+
+        // Negative answers are cached too
+        d.resolve("example.org");
+        assertEquals(1, d.wellKnownCalls.get());
+        assertEquals(1, d.srvCalls.get());
+    }
+
+    @Test
+    public void concurrentLookupsAreCollapsed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        StubDiscovery d = new StubDiscovery(release, "matrix.example.org:8448", null);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ServerDiscovery.Target>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> d.resolve("example.org")));
+            }
+
+            release.countDown();
+            for (Future<ServerDiscovery.Target> result : results) {
+                assertEquals("https://matrix.example.org:8448", result.get(10, TimeUnit.SECONDS).getUri().toString());
+            }
+            assertEquals(1, d.wellKnownCalls.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        FederationConfig.Servers cfg = new FederationConfig.Servers();
+        cfg.setMaxSize(1);
+        StubDiscovery d = new StubDiscovery(new CountDownLatch(0), null, null, cfg);
+        d.resolve("a.example.org");
+        d.resolve("a.example.org");
+        assertEquals(1, d.wellKnownCalls.get());
+
+        d.resolve("b.example.org");
+        d.resolve("a.example.org");
+        assertEquals(3, d.wellKnownCalls.get());
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.util;
+
+import io.kamax.gridify.server.util.EntityCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+
+    private static class Entity {
+
+        private final String id;
+        private int weight;
+
+        Entity(String id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+    }
+
+    @Test
+    public void loadedOnceOnConcurrentMiss() throws Exception {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 100, e -> e.weight);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Entity>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.find("a", id -> {
+                        loads.incrementAndGet();
+                        return Optional.of(new Entity(id, 1));
+                    }).orElseThrow(IllegalStateException::new);
+                }));
+            }
+            start.countDown();
+
+            Entity first = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<Entity> result : results) {
+                assertSame(first, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void missingIsNotCached() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 100, e -> e.weight);
+        assertFalse(cache.find("a", id -> Optional.empty()).isPresent());
+        assertTrue(cache.find("a", id -> Optional.of(new Entity(id, 1))).isPresent());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 10, e -> e.weight);
+        for (int i = 0; i < 10; i++) {
+            cache.add("e" + i, new Entity("e" + i, 5));
+        }
+
+        assertTrue(cache.size() <= 2);
+        assertTrue(cache.getStats().evictionCount() >= 8);
+    }
+
+    @Test
+    public void evictsGrownEntity() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 10, e -> e.weight);
+        Entity grown = cache.add("grown", new Entity("grown", 1));
+        cache.add("other", new Entity("other", 5));
+        assertEquals(2, cache.size());
+
+        grown.weight = 8;
+        cache.reweigh("grown");
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.getStats().evictionCount() >= 1);
+    }
+
+    @Test
+    public void reweighIgnoresMissing() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 10, e -> e.weight);
+        cache.reweigh("a");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictedEntityInUseIsGivenBack() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 10, e -> e.weight);
+        Entity held = cache.add("held", new Entity("held", 10));
+        cache.add("other", new Entity("other", 10));
+
+        Entity found = cache.find("held", id -> Optional.of(new Entity(id, 10))).orElseThrow(IllegalStateException::new);
+        assertSame(held, found);
+    }
+
+    @Test
+    public void addKeepsExisting() {
+        EntityCache<String, Entity> cache = new EntityCache<>("test", 10, e -> e.weight);
+        Entity first = cache.add("a", new Entity("a", 1));
+        assertSame(first, cache.add("a", new Entity("a", 1)));
+        assertEquals(1, cache.getStats().hitCount());
+    }
+
+}
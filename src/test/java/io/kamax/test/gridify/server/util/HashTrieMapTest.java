@@ -0,0 +1,109 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.gridify.server.util;
+
+import io.kamax.gridify.server.util.HashTrieMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HashTrieMapTest {
+
+    private static class CollidingKey {
+
+        private final String id;
+
+        CollidingKey(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && id.equals(((CollidingKey) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.length();
+        }
+
+    }
+
+    @Test
+    public void sameContentAsHashMap() {
+        Random rng = new Random(0);
+        Map<Integer, String> expected = new HashMap<>();
+        HashTrieMap<Integer, String> map = HashTrieMap.empty();
+        for (int i = 0; i < 100_000; i++) {
+            int key = rng.nextInt(50_000);
+            String value = Integer.toString(i);
+            expected.put(key, value);
+            map = map.plus(key, value);
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), map.values().size());
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertNull(map.get(-1));
+    }
+
+    @Test
+    public void previousVersionIsUnchanged() {
+        HashTrieMap<String, String> v1 = HashTrieMap.<String, String>empty().plus("a", "1");
+        HashTrieMap<String, String> v2 = v1.plus("a", "2").plus("b", "3");
+
+        assertEquals(1, v1.size());
+        assertEquals("1", v1.get("a"));
+        assertFalse(v1.containsKey("b"));
+        assertEquals(2, v2.size());
+        assertEquals("2", v2.get("a"));
+        assertEquals("3", v2.get("b"));
+    }
+
+    @Test
+    public void sameValueReturnsSameMap() {
+        String value = "1";
+        HashTrieMap<String, String> v1 = HashTrieMap.<String, String>empty().plus("a", value);
+        assertSame(v1, v1.plus("a", value));
+    }
+
+    @Test
+    public void hashCollisions() {
+        HashTrieMap<CollidingKey, String> map = HashTrieMap.empty();
+        map = map.plus(new CollidingKey("ab"), "1")
+                .plus(new CollidingKey("cd"), "2")
+                .plus(new CollidingKey("efg"), "3")
+                .plus(new CollidingKey("ab"), "4");
+
+        assertEquals(3, map.size());
+        assertEquals("4", map.get(new CollidingKey("ab")));
+        assertEquals("2", map.get(new CollidingKey("cd")));
+        assertEquals("3", map.get(new CollidingKey("efg")));
+        assertNull(map.get(new CollidingKey("xy")));
+    }
+
+}
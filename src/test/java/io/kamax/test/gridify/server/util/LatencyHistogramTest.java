@@ -0,0 +1,55 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.util;
+
+import io.kamax.gridify.server.util.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(99));
+
+        for (int i = 0; i < 99; i++) {
+            h.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        h.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, h.getCount());
+        assertEquals(50_000, h.getMax());
+        assertEquals(599, h.getMean());
+        assertEquals(128, h.getPercentile(50));
+        assertEquals(128, h.getPercentile(99));
+        assertEquals(50_000, h.getPercentile(100));
+
+        long[] buckets = h.getBuckets();
+        assertEquals(99, buckets[7]);
+        assertEquals(1, buckets[16]);
+    }
+
+}
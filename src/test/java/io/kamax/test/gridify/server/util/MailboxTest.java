@@ -0,0 +1,105 @@
+/*
+ * Gridify Server
+ * Copyright (C) 2021 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.kamax.test.gridify.server.util;
+
+import io.kamax.gridify.server.util.Mailbox;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MailboxTest {
+
+    @Test
+    public void tasksRunInOrderOneAtATime() {
+        Mailbox mailbox = new Mailbox();
+        AtomicInteger running = new AtomicInteger();
+        List<Integer> order = new ArrayList<>();
+
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int n = i;
+            results.add(mailbox.submit(() -> {
+                assertEquals(1, running.incrementAndGet());
+                order.add(n);
+                running.decrementAndGet();
+                return n;
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).join().intValue());
+        }
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void nestedCallDoesNotDeadlock() {
+        Mailbox mailbox = new Mailbox();
+        int value = mailbox.call(() -> mailbox.call(() -> 42) + 1);
+        assertEquals(43, value);
+    }
+
+    @Test
+    public void mailboxesRunInParallel() throws InterruptedException {
+        Mailbox m1 = new Mailbox();
+        Mailbox m2 = new Mailbox();
+        CountDownLatch both = new CountDownLatch(2);
+
+        // Each task waits for the other, which only works if they run at the same time
+        Runnable task = () -> {
+            both.countDown();
+            try {
+                assertTrue(both.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        CompletableFuture<Void> f1 = m1.submit(() -> {
+            task.run();
+            return null;
+        });
+        CompletableFuture<Void> f2 = m2.submit(() -> {
+            task.run();
+            return null;
+        });
+
+        f1.join();
+        f2.join();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void callRethrowsTaskException() {
+        new Mailbox().call(() -> {
+            throw new IllegalStateException();
+        });
+    }
+
+}